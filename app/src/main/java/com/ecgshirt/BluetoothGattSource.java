@@ -0,0 +1,105 @@
+package com.ecgshirt;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+import android.os.Build;
+
+import java.util.List;
+
+/**
+ * {@link GattSource} backed by the Bluetooth radio.
+ */
+public final class BluetoothGattSource implements GattSource {
+
+    /**
+     * Connects to devices through the given adapter.
+     */
+    public static final class Factory implements GattSource.Factory {
+        private final BluetoothAdapter mAdapter;
+
+        public Factory(BluetoothAdapter adapter) {
+            mAdapter = adapter;
+        }
+
+        @Override
+        public GattSource connect(Context context, String address, BluetoothGattCallback callback) {
+            final BluetoothDevice device = mAdapter.getRemoteDevice(address);
+            if (device == null) return null;
+            // We want to directly connect to the device, so we are setting the autoConnect
+            // parameter to false.
+            final BluetoothGatt gatt = device.connectGatt(context, false, callback);
+            // Null when the stack refuses, e.g. out of client slots or turning off
+            return gatt != null ? new BluetoothGattSource(gatt) : null;
+        }
+    }
+
+    private final BluetoothGatt mGatt;
+
+    public BluetoothGattSource(BluetoothGatt gatt) {
+        mGatt = gatt;
+    }
+
+    /** The underlying connection. */
+    public BluetoothGatt getGatt() {
+        return mGatt;
+    }
+
+    @Override
+    public boolean connect() {
+        return mGatt.connect();
+    }
+
+    @Override
+    public void disconnect() {
+        mGatt.disconnect();
+    }
+
+    @Override
+    public void close() {
+        mGatt.close();
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) return false;
+        return mGatt.requestMtu(mtu);
+    }
+
+    @Override
+    public boolean requestConnectionPriority(int priority) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) return false;
+        return mGatt.requestConnectionPriority(priority);
+    }
+
+    @Override
+    public boolean discoverServices() {
+        return mGatt.discoverServices();
+    }
+
+    @Override
+    public List<BluetoothGattService> getServices() {
+        return mGatt.getServices();
+    }
+
+    @Override
+    public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+        return mGatt.readCharacteristic(characteristic);
+    }
+
+    @Override
+    public boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
+                                                 boolean enable) {
+        return mGatt.setCharacteristicNotification(characteristic, enable);
+    }
+
+    @Override
+    public boolean writeDescriptor(BluetoothGattDescriptor descriptor) {
+        return mGatt.writeDescriptor(descriptor);
+    }
+}
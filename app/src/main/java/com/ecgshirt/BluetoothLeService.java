@@ -1,57 +1,92 @@
 package com.ecgshirt;
 
 
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.support.v4.app.NotificationCompat;
 import android.util.Log;
-import android.widget.Toast;
 
-import java.nio.ByteBuffer;
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.UUID;
 
 /**
- * Service for managing connection and data communication with a GATT server hosted on a
- * given Bluetooth LE device.
+ * Service for managing connections and data communication with the GATT servers hosted
+ * on Bluetooth LE devices.
+ *
+ * Several devices can be connected at once; each is identified by its address and has
+ * its own connection, decoding, heart rate detection and recording (see
+ * {@link DeviceConnection}). Broadcasts carry the address of the device they are about
+ * in {@link #EXTRA_ADDRESS}, and all devices are time stamped on the same clock,
+ * {@link #clockMillis()}, so their streams can be lined up.
+ *
+ * While any device is acquired from (between {@link #startAcquisition} and
+ * {@link #stopAcquisition}) the service runs in the foreground and holds a partial wake
+ * lock; activities only bind to it to show live data, so the streams keep going with the
+ * screen off, in the background and across rotation.
  */
 public class BluetoothLeService extends Service {
     private final static String TAG = BluetoothLeService.class.getSimpleName();
 
-    CharSequence text = "Wrote to File!";
-    int duration = Toast.LENGTH_LONG;
-
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
-    private String mBluetoothDeviceAddress;
-    private BluetoothGatt mBluetoothGatt;
-    private int mConnectionState = STATE_DISCONNECTED;
-
-    private static final int STATE_DISCONNECTED = 0;
-    private static final int STATE_CONNECTING = 1;
-    private static final int STATE_CONNECTED = 2;
 
     public final static String ACTION_GATT_CONNECTED =
             "com.example.bluetooth.le.ACTION_GATT_CONNECTED";
     public final static String ACTION_GATT_DISCONNECTED =
             "com.example.bluetooth.le.ACTION_GATT_DISCONNECTED";
+    public final static String ACTION_GATT_RECONNECTING =
+            "com.example.bluetooth.le.ACTION_GATT_RECONNECTING";
     public final static String ACTION_GATT_SERVICES_DISCOVERED =
             "com.example.bluetooth.le.ACTION_GATT_SERVICES_DISCOVERED";
     public final static String ACTION_DATA_AVAILABLE =
             "com.example.bluetooth.le.ACTION_DATA_AVAILABLE";
+    /** Sent to the service, by its notification, to end acquisition from all devices. */
+    public final static String ACTION_STOP_ACQUISITION =
+            "com.ecgshirt.ACTION_STOP_ACQUISITION";
     public final static String EXTRA_DATA =
             "com.example.bluetooth.le.EXTRA_DATA";
+    public final static String EXTRA_HEART_RATE =
+            "com.example.bluetooth.le.EXTRA_HEART_RATE";
+    public final static String EXTRA_RR_INTERVAL =
+            "com.example.bluetooth.le.EXTRA_RR_INTERVAL";
+    public final static String EXTRA_R_PEAK_SAMPLE =
+            "com.example.bluetooth.le.EXTRA_R_PEAK_SAMPLE";
+    /** All RR intervals of a Heart Rate Measurement, oldest first, in ms (int[]). */
+    public final static String EXTRA_RR_INTERVALS =
+            "com.example.bluetooth.le.EXTRA_RR_INTERVALS";
+    /** Skin temperature in degrees Celsius (float). */
+    public final static String EXTRA_TEMPERATURE =
+            "com.example.bluetooth.le.EXTRA_TEMPERATURE";
+    /** Steps counted by the Angel Sensor (int). */
+    public final static String EXTRA_STEP_COUNT =
+            "com.example.bluetooth.le.EXTRA_STEP_COUNT";
+    /** Address of the device a broadcast is about. */
+    public final static String EXTRA_ADDRESS =
+            "com.example.bluetooth.le.EXTRA_ADDRESS";
+    /** {@link #clockMillis()} when the event a broadcast reports happened. */
+    public final static String EXTRA_TIMESTAMP =
+            "com.example.bluetooth.le.EXTRA_TIMESTAMP";
 
 
     public final static UUID UUID_HEART_RATE_MEASUREMENT =
@@ -74,156 +109,378 @@ public class BluetoothLeService extends Service {
 
 
 
-    private static BluetoothLeService mThis = null;
+    /* The running service, set by initialize() and cleared when it is destroyed */
+    private static volatile BluetoothLeService mThis = null;
 
-    // Implements callback methods for GATT events that the app cares about.  For example,
-    // connection change and services discovered.
-    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
-        @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            String intentAction;
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
-                intentAction = ACTION_GATT_CONNECTED;
-                mConnectionState = STATE_CONNECTED;
-                broadcastUpdate(intentAction);
-                Log.i(TAG, "Connected to GATT server.");
-                // Attempts to discover services after successful connection.
-                Log.i(TAG, "Attempting to start service discovery:" +
-                        mBluetoothGatt.discoverServices());
-
-            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                intentAction = ACTION_GATT_DISCONNECTED;
-                mConnectionState = STATE_DISCONNECTED;
-                Log.i(TAG, "Disconnected from GATT server.");
-                broadcastUpdate(intentAction);
-            }
+    /* Opens GATT connections instead of the Bluetooth radio when set */
+    private static volatile GattSource.Factory sGattSourceFactory;
+
+    /* Connected, connecting and reconnecting devices by address, in connection order */
+    private final Map<String, DeviceConnection> mConnections =
+            new LinkedHashMap<String, DeviceConnection>();
+
+    /* Wall clock time at SystemClock.elapsedRealtime() 0, fixed for the life of the
+       service so that the clock all devices are stamped with never jumps */
+    private final long mClockBase = System.currentTimeMillis() - SystemClock.elapsedRealtime();
+
+    /* Id of the notification shown while acquiring */
+    private static final int NOTIFICATION_ID = 1;
+
+    /* Keeps the CPU running for the GATT callbacks and the recorders while acquiring */
+    private PowerManager.WakeLock mWakeLock;
+
+    /* Metrics snapshots are saved under Android/data/com.ecgshirt as
+       "metrics-<start time>.txt" while acquiring, in every build: the counters are
+       always kept, and a line per device every ten seconds costs next to nothing */
+    private static final String METRICS_FILE_PATTERN = "'metrics-'yyyyMMdd-HHmmss'.txt'";
+    private MetricsSnapshotWriter mMetricsWriter;
+
+    /* Last device acquired from and what was subscribed to on each, see getKnownDevices() */
+    private KnownDevices mKnownDevices;
+
+    /* A device not connected this long after startAcquisition is looked for by scanning,
+       and connected to again as soon as it advertises; the scan gives up after
+       FALLBACK_SCAN_MS */
+    private static final long DIRECT_CONNECT_TIMEOUT_MS = 5000;
+    private static final long FALLBACK_SCAN_MS = 60000;
+    private final Handler mHandler = new Handler();
+    private DeviceScanner mFallbackScanner;
+
+    public class LocalBinder extends Binder {
+       public BluetoothLeService getService() {
+            return BluetoothLeService.this;
         }
 
+        /**
+         * @return Ring of decoded ECG samples from the given device, null if it is not
+         *         connected. Only one consumer may drain it.
+         */
+        public SampleRingBuffer getEcgSamples(String address) {
+            final DeviceConnection connection = getConnection(address);
+            return connection != null ? connection.getEcgSamples() : null;
+        }
+
+        /**
+         * @return Metrics of the given device's data path, for consumers to add their
+         *         timings to; null if it is not connected.
+         */
+        DataPathMetrics getMetrics(String address) {
+            final DeviceConnection connection = getConnection(address);
+            return connection != null ? connection.getMetrics() : null;
+        }
+
+        /**
+         * @return Current metrics of the given device, null if it is not connected.
+         */
+        DataPathMetrics.Snapshot snapshotMetrics(String address) {
+            final DeviceConnection connection = getConnection(address);
+            return connection != null ? connection.snapshotMetrics() : null;
+        }
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    @Override
+    public boolean onUnbind(Intent intent) {
+        // After using a given device, you should make sure that BluetoothGatt.close() is called
+        // such that resources are cleaned up properly.  Unless acquisition is running in the
+        // foreground, close() is invoked when the UI is disconnected from the Service.
+        if (!isAcquiring()) close();
+        return super.onUnbind(intent);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && ACTION_STOP_ACQUISITION.equals(intent.getAction())) {
+            stopAcquisition();
+        }
+        // Not restarted if killed: there would be no device to connect to
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        if (mThis == this) mThis = null;
+        close();
+        releaseWakeLock();
+        stopMetricsSnapshots();
+        stopFallbackScan();
+        super.onDestroy();
+    }
+
+    /**
+     * Time on the clock shared by all devices, in ms since the epoch: the wall clock when
+     * the service was created, advanced by the monotonic elapsed realtime since, so it is
+     * not affected by the user or the network setting the time.
+     */
+    public long clockMillis() {
+        return mClockBase + SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Connects to a device and keeps acquiring its data, in the foreground, until
+     * {@link #stopAcquisition(String)}; the service keeps running after the activities
+     * that started it are gone. Devices already acquired from keep going. Does nothing if
+     * already acquiring from that device.
+     *
+     * @param deviceName name shown in the notification, may be null.
+     * @return false if the connection could not be initiated.
+     */
+    public boolean startAcquisition(String deviceName, String address) {
+        final DeviceConnection existing = getConnection(address);
+        if (existing != null && existing.isAcquiring()) return true;
+        if (!connect(address)) return false;
+        final DeviceConnection connection = getConnection(address);
+        connection.setName(deviceName);
+        connection.setAcquiring(true);
+        // Connected to straight away on the next launch; simulated devices are not
+        if (sGattSourceFactory == null) getKnownDevices().remember(address, deviceName);
+        mHandler.removeCallbacks(mStartFallbackScan);
+        mHandler.postDelayed(mStartFallbackScan, DIRECT_CONNECT_TIMEOUT_MS);
+        // Started as well as bound, so unbinding does not destroy the service
+        startService(new Intent(this, BluetoothLeService.class));
+        startForeground(NOTIFICATION_ID, buildNotification());
+        if (mWakeLock == null) {
+            final PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
+            mWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+            mWakeLock.setReferenceCounted(false);
+        }
+        mWakeLock.acquire();
+        startMetricsSnapshots();
+        return true;
+    }
+
+    /**
+     * Disconnects a device and closes its recording. Once no device is acquired from,
+     * the service leaves the foreground, and it stops once no activity is bound to it
+     * any more.
+     */
+    public void stopAcquisition(String address) {
+        final DeviceConnection connection = getConnection(address);
+        if (connection == null || !connection.isAcquiring()) return;
+        connection.setAcquiring(false);
+        connection.disconnect();
+        connection.stopRecording();
+        if (isAcquiring()) {
+            updateNotification();
+            return;
+        }
+        releaseWakeLock();
+        stopMetricsSnapshots();
+        stopFallbackScan();
+        stopForeground(true);
+        stopSelf();
+    }
+
+    /**
+     * Stops acquiring from all devices, see {@link #stopAcquisition(String)}.
+     */
+    public void stopAcquisition() {
+        for (DeviceConnection connection : getConnections()) {
+            stopAcquisition(connection.getAddress());
+        }
+    }
+
+    /** Whether acquisition is running from any device, see {@link #startAcquisition}. */
+    public boolean isAcquiring() {
+        for (DeviceConnection connection : getConnections()) {
+            if (connection.isAcquiring()) return true;
+        }
+        return false;
+    }
+
+    /** Whether acquisition is running from the given device. */
+    public boolean isAcquiring(String address) {
+        final DeviceConnection connection = getConnection(address);
+        return connection != null && connection.isAcquiring();
+    }
+
+    /** Whether the given device is connected. */
+    public boolean isConnected(String address) {
+        final DeviceConnection connection = getConnection(address);
+        return connection != null
+                && connection.getConnectionState() == DeviceConnection.STATE_CONNECTED;
+    }
+
+    /** Whether the connection to the given device was lost and is being re-established. */
+    public boolean isReconnecting(String address) {
+        final DeviceConnection connection = getConnection(address);
+        return connection != null && connection.isReconnecting();
+    }
+
+    /**
+     * @return Addresses of the devices connected or being connected to.
+     */
+    public List<String> getAddresses() {
+        final List<String> addresses = new ArrayList<String>();
+        for (DeviceConnection connection : getConnections()) {
+            addresses.add(connection.getAddress());
+        }
+        return addresses;
+    }
+
+    /**
+     * Devices acquired from before, see {@link KnownDevices}.
+     */
+    synchronized KnownDevices getKnownDevices() {
+        if (mKnownDevices == null) mKnownDevices = new KnownDevices(this);
+        return mKnownDevices;
+    }
+
+    // Scans for the devices being acquired from that a direct connect has not reached,
+    // in case they are out of range or not known to the Bluetooth stack yet.
+    private final Runnable mStartFallbackScan = new Runnable() {
         @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
-            } else {
-                Log.w(TAG, "onServicesDiscovered received: " + status);
+        public void run() {
+            if (mBluetoothAdapter == null || sGattSourceFactory != null) return;
+            if (!hasPendingConnections()) return;
+            if (mFallbackScanner == null) {
+                mFallbackScanner = new DeviceScanner(mBluetoothAdapter,
+                        UUID_ECG_WAVEFORM_SERVICE, mFallbackScanListener);
             }
+            Log.i(TAG, "Not connected after " + DIRECT_CONNECT_TIMEOUT_MS + " ms, scanning");
+            mFallbackScanner.start();
+            mHandler.postDelayed(mStopFallbackScan, FALLBACK_SCAN_MS);
         }
+    };
 
+    private final Runnable mStopFallbackScan = new Runnable() {
         @Override
-        public void onCharacteristicRead(BluetoothGatt gatt,
-                                         BluetoothGattCharacteristic characteristic,
-                                         int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
-                Log.w(TAG, "onCharacteristicRead called status: " + status);
-            }
+        public void run() {
+            stopFallbackScan();
         }
+    };
 
+    private final DeviceScanner.Listener mFallbackScanListener = new DeviceScanner.Listener() {
         @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt,
-                                            BluetoothGattCharacteristic characteristic) {
-            broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
-            Log.w(TAG, "onCharacteristicChanged called");
+        public void onDevicesChanged(List<DeviceScanner.ScannedDevice> devices) {
+            boolean found = false;
+            for (DeviceScanner.ScannedDevice device : devices) {
+                final DeviceConnection connection = getConnection(device.getDevice().getAddress());
+                if (connection == null || !connection.isAcquiring()
+                        || connection.getConnectionState() == DeviceConnection.STATE_CONNECTED) {
+                    continue;
+                }
+                Log.i(TAG, connection.getAddress() + " found by scanning, connecting");
+                connection.connectNow();
+                found = true;
+            }
+            if (!found) return;
+            // Give the new attempts time to connect before scanning for the rest
+            stopFallbackScan();
+            mHandler.postDelayed(mStartFallbackScan, DIRECT_CONNECT_TIMEOUT_MS);
         }
     };
 
-    private void broadcastUpdate(final String action) {
-        final Intent intent = new Intent(action);
-        sendBroadcast(intent);
+    // Whether a device being acquired from is not connected (yet).
+    private boolean hasPendingConnections() {
+        for (DeviceConnection connection : getConnections()) {
+            if (connection.isAcquiring()
+                    && connection.getConnectionState() != DeviceConnection.STATE_CONNECTED) {
+                return true;
+            }
+        }
+        return false;
     }
 
-    private void broadcastUpdate(final String action,
-                                 final BluetoothGattCharacteristic characteristic) {
-        final Intent intent = new Intent(action);
+    private void stopFallbackScan() {
+        mHandler.removeCallbacks(mStartFallbackScan);
+        mHandler.removeCallbacks(mStopFallbackScan);
+        if (mFallbackScanner != null) mFallbackScanner.stop();
+    }
 
-        //TODO: must figure out how to parse for each characteristic!!!
-        //received notification for a new ECG packet 
-        if (UUID_ECG_WAVEFORM_CHAR.equals(characteristic.getUuid())) {
-            byte[] ecg_bytes = characteristic.getValue();
-            String ecg_floats = "";
-            
-            int i;
-            //packet contains 20Bytes of data
-            //each Byte is an 8-bit character encoding of a voltage
-            //value between -1V and +1V
-            for(int j = 0; j < 20; j++){
-	            i = (int) (ByteBuffer.wrap(ecg_bytes, j, 1).get() & 0x0ff);
-	            ecg_floats += String.valueOf(i) + ",";
-            }
-            intent.putExtra(EXTRA_DATA, ecg_floats);
-        }
-        if (UUID_SKIN_TEMPERATURE_CHAR.equals(characteristic.getUuid())){
-            int flag = characteristic.getProperties();
-            int format = -1;
-            if (flag !=0){
-                format = BluetoothGattCharacteristic.FORMAT_UINT8; //flags for temp characteristic, first char is Celcius (float)
-                Log.d(TAG, "Skin Temperature format UNIT8");
-            } else {
-                format = BluetoothGattCharacteristic.FORMAT_UINT16;
-                Log.d(TAG, "Heart rate format UINT16.");
-            }
+    private void releaseWakeLock() {
+        if (mWakeLock != null && mWakeLock.isHeld()) mWakeLock.release();
+    }
 
-            final float skinTemp = characteristic.getFloatValue(format, 1);
-            Log.d(TAG, "Received skin temperature");
-            intent.putExtra(EXTRA_DATA, String.valueOf(skinTemp));
-        }
-        if (UUID_HEART_RATE_MEASUREMENT.equals(characteristic.getUuid())) {
-            int flag = characteristic.getProperties();
-            int format = -1;
-            if ((flag & 0x01) != 0) {
-                format = BluetoothGattCharacteristic.FORMAT_UINT16;
-                Log.d(TAG, "Heart rate format UINT16.");
+    private void startMetricsSnapshots() {
+        if (mMetricsWriter != null) return;
+        final File dir = getExternalFilesDir(null);
+        if (dir == null) return;
+        final String name = new SimpleDateFormat(METRICS_FILE_PATTERN, Locale.US).format(new Date());
+        mMetricsWriter = new MetricsSnapshotWriter(this, new File(dir, name));
+        mMetricsWriter.start();
+    }
+
+    private void stopMetricsSnapshots() {
+        if (mMetricsWriter == null) return;
+        mMetricsWriter.stop();
+        mMetricsWriter = null;
+    }
+
+    // Lists the state of every device acquired from, and opens the live view of the first.
+    private Notification buildNotification() {
+        final StringBuilder text = new StringBuilder();
+        DeviceConnection first = null;
+        for (DeviceConnection connection : getConnections()) {
+            if (!connection.isAcquiring()) continue;
+            if (first == null) {
+                first = connection;
             } else {
-                format = BluetoothGattCharacteristic.FORMAT_UINT8;
-                Log.d(TAG, "Heart rate format UINT8.");
+                text.append(", ");
             }
-            final int heartRate = characteristic.getIntValue(format, 1);
-            Log.d(TAG, String.format("Received heart rate: %d", heartRate));
-            intent.putExtra(EXTRA_DATA, String.valueOf(heartRate));
+            text.append(connection.getName() != null ? connection.getName() : connection.getAddress())
+                    .append(": ").append(getString(stateOf(connection)));
         }
-        if (UUID_ANGEL_STEP_COUNT_CHAR.equals(characteristic.getUuid())){
-            int flag = characteristic.getProperties();
-            int format = -1;
-            if (flag !=0){
-                format = BluetoothGattCharacteristic.FORMAT_UINT32; //labeled as a uint24
-                Log.d(TAG, "Step Count format UNIT32");
-            }
-            final int stepCount = characteristic.getIntValue(format, 0);
-            Log.d(TAG, String.format("Received step count %.0f", stepCount));
-            intent.putExtra(EXTRA_DATA, String.valueOf(stepCount));
+        final Intent view = new Intent(this, DeviceControlActivity.class);
+        if (first != null) {
+            view.putExtra("EXTRAS_DEVICE_NAME", first.getName());
+            view.putExtra("EXTRAS_DEVICE_ADDRESS", first.getAddress());
         }
-        sendBroadcast(intent);
-
-    	//DO NOTHING
-        /*else {
-            // For all other profiles, writes the data formatted in HEX.
-            final byte[] data = characteristic.getValue();
-            if (data != null && data.length > 0) {
-                final StringBuilder stringBuilder = new StringBuilder(data.length);
-                for(byte byteChar : data)
-                    stringBuilder.append(String.format("%02X", byteChar));
-                intent.putExtra(EXTRA_DATA, new String(data) + "\n" + stringBuilder.toString());
-            }
-        }*/
+        final Intent stop = new Intent(this, BluetoothLeService.class);
+        stop.setAction(ACTION_STOP_ACQUISITION);
+        return new NotificationCompat.Builder(this)
+                .setSmallIcon(R.drawable.ic_launcher)
+                .setContentTitle(getString(R.string.acquisition_title))
+                .setContentText(text)
+                .setOngoing(true)
+                .setPriority(NotificationCompat.PRIORITY_LOW)
+                .setContentIntent(PendingIntent.getActivity(this, 0, view,
+                        PendingIntent.FLAG_UPDATE_CURRENT))
+                .addAction(0, getString(R.string.menu_stop),
+                        PendingIntent.getService(this, 0, stop, PendingIntent.FLAG_UPDATE_CURRENT))
+                .build();
     }
 
-    public class LocalBinder extends Binder {
-       public BluetoothLeService getService() {
-            return BluetoothLeService.this;
+    private static int stateOf(DeviceConnection connection) {
+        if (connection.isReconnecting()) return R.string.reconnecting;
+        switch (connection.getConnectionState()) {
+            case DeviceConnection.STATE_CONNECTED:
+                return R.string.connected;
+            case DeviceConnection.STATE_CONNECTING:
+                return R.string.connecting;
+            default:
+                return R.string.disconnected;
         }
     }
 
-    @Override
-    public IBinder onBind(Intent intent) {
-        return mBinder;
+    private void updateNotification() {
+        final NotificationManager manager =
+                (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        manager.notify(NOTIFICATION_ID, buildNotification());
     }
 
-    @Override
-    public boolean onUnbind(Intent intent) {
-        // After using a given device, you should make sure that BluetoothGatt.close() is called
-        // such that resources are cleaned up properly.  In this particular example, close() is
-        // invoked when the UI is disconnected from the Service.
-        close();
-        return super.onUnbind(intent);
+    /**
+     * New broadcast about the given device, stamped with its address and the time.
+     */
+    Intent newIntent(DeviceConnection connection, String action) {
+        final Intent intent = new Intent(action);
+        intent.putExtra(EXTRA_ADDRESS, connection.getAddress());
+        intent.putExtra(EXTRA_TIMESTAMP, clockMillis());
+        return intent;
+    }
+
+    void broadcastUpdate(DeviceConnection connection, final String action) {
+        sendBroadcast(newIntent(connection, action));
+        if (connection.isAcquiring()
+                && (ACTION_GATT_CONNECTED.equals(action)
+                || ACTION_GATT_RECONNECTING.equals(action)
+                || ACTION_GATT_DISCONNECTED.equals(action))) {
+            updateNotification();
+        }
     }
 
     private final IBinder mBinder = new LocalBinder();
@@ -234,9 +491,12 @@ public class BluetoothLeService extends Service {
      * @return Return true if the initialization is successful.
      */
     public boolean initialize() {
+        mThis = this;
+        // A simulated device does not need the radio
+        if (sGattSourceFactory != null) return true;
+
         // For API level 18 and above, get a reference to BluetoothAdapter through
         // BluetoothManager.
-        mThis = this;
         if (mBluetoothManager == null) {
             mBluetoothManager = (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
             if (mBluetoothManager == null) {
@@ -254,7 +514,13 @@ public class BluetoothLeService extends Service {
     }
 
     /**
-     * Connects to the GATT server hosted on the Bluetooth LE device.
+     * Connects to the GATT server hosted on the Bluetooth LE device. Other devices stay
+     * connected.
+     *
+     * If the connection is lost afterwards, it is re-established with increasing delays
+     * and the notifications that were enabled are enabled again; meanwhile
+     * {@link #ACTION_GATT_RECONNECTING} is broadcast, and {@link #ACTION_GATT_DISCONNECTED}
+     * only once reconnecting is given up on or {@link #disconnect(String)} is called.
      *
      * @param address The device address of the destination device.
      *
@@ -264,35 +530,29 @@ public class BluetoothLeService extends Service {
      *         callback.
      */
     public boolean connect(final String address) {
-        if (mBluetoothAdapter == null || address == null) {
+        final GattSource.Factory factory = getGattSourceFactory();
+        if (factory == null || address == null) {
             Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
             return false;
         }
-
-        // Previously connected device.  Try to reconnect.
-        if (mBluetoothDeviceAddress != null && address.equals(mBluetoothDeviceAddress)
-                && mBluetoothGatt != null) {
-            Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
-            if (mBluetoothGatt.connect()) {
-                mConnectionState = STATE_CONNECTING;
-                return true;
-            } else {
-                return false;
+        DeviceConnection connection;
+        boolean added = false;
+        synchronized (mConnections) {
+            connection = mConnections.get(address);
+            if (connection == null) {
+                connection = new DeviceConnection(this, address);
+                mConnections.put(address, connection);
+                added = true;
             }
         }
-
-        final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
-        if (device == null) {
-            Log.w(TAG, "Device not found.  Unable to connect.");
-            return false;
+        if (connection.connect(factory)) return true;
+        if (added) {
+            synchronized (mConnections) {
+                mConnections.remove(address);
+            }
+            connection.close();
         }
-        // We want to directly connect to the device, so we are setting the autoConnect
-        // parameter to false.
-        mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
-        Log.d(TAG, "Trying to create a new connection.");
-        mBluetoothDeviceAddress = address;
-        mConnectionState = STATE_CONNECTING;
-        return true;
+        return false;
     }
 
     /**
@@ -301,24 +561,36 @@ public class BluetoothLeService extends Service {
      * {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
      * callback.
      */
-    public void disconnect() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
+    public void disconnect(String address) {
+        final DeviceConnection connection = getConnection(address);
+        if (connection == null) {
+            Log.w(TAG, "Not connected to " + address);
             return;
         }
-        mBluetoothGatt.disconnect();
+        connection.disconnect();
+    }
+
+    /**
+     * Disconnects all devices, see {@link #disconnect(String)}.
+     */
+    public void disconnect() {
+        for (DeviceConnection connection : getConnections()) {
+            connection.disconnect();
+        }
     }
 
     /**
      * After using a given BLE device, the app must call this method to ensure resources are
-     * released properly.
+     * released properly. Releases all devices.
      */
     public void close() {
-        if (mBluetoothGatt == null) {
-            return;
+        final List<DeviceConnection> connections = getConnections();
+        synchronized (mConnections) {
+            mConnections.clear();
+        }
+        for (DeviceConnection connection : connections) {
+            connection.close();
         }
-        mBluetoothGatt.close();
-        mBluetoothGatt = null;
     }
 
     /**
@@ -326,80 +598,127 @@ public class BluetoothLeService extends Service {
      * asynchronously through the {@code BluetoothGattCallback#onCharacteristicRead(android.bluetooth.BluetoothGatt, android.bluetooth.BluetoothGattCharacteristic, int)}
      * callback.
      *
+     * @param address Device the characteristic is on.
      * @param characteristic The characteristic to read from.
      */
-    public void readCharacteristic(BluetoothGattCharacteristic characteristic) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
+    public void readCharacteristic(String address, BluetoothGattCharacteristic characteristic) {
+        final DeviceConnection connection = getConnection(address);
+        if (connection == null) {
+            Log.w(TAG, "Not connected to " + address);
             return;
         }
-        mBluetoothGatt.readCharacteristic(characteristic);
+        connection.readCharacteristic(characteristic);
     }
 
     /**
      * Enables or disables notification on a given characteristic.
      *
+     * @param address Device the characteristic is on.
      * @param characteristic Characteristic to act on.
      * @param enabled If true, enable notification.  False otherwise.
      */
-    public void setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
+    public void setCharacteristicNotification(String address,
+                                              BluetoothGattCharacteristic characteristic,
                                               boolean enabled) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
+        final DeviceConnection connection = getConnection(address);
+        if (connection == null) {
+            Log.w(TAG, "Not connected to " + address);
             return;
         }
-        mBluetoothGatt.setCharacteristicNotification(characteristic, enabled);
-
-        //TODO: check that config values are correct if errors appear.
-        // This is specific to Heart Rate Measurement.
-        if (UUID_HEART_RATE_MEASUREMENT.equals(characteristic.getUuid())) {
-            BluetoothGattDescriptor descriptor = characteristic.getDescriptor(
-                    UUID.fromString(SampleGattAttributes.CLIENT_CHARACTERISTIC_CONFIG));
-            descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            mBluetoothGatt.writeDescriptor(descriptor);
-        }
-        
-        // Enable notifications for the ECG shirt
-        if (UUID_ECG_WAVEFORM_CHAR.equals(characteristic.getUuid())) {
-            BluetoothGattDescriptor descriptor = characteristic.getDescriptor(
-                    UUID.fromString(SampleGattAttributes.ECG_CHARACTERTISTIC_CONFIG));
-            descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            mBluetoothGatt.writeDescriptor(descriptor);
-        }
+        connection.setCharacteristicNotification(characteristic, enabled);
+    }
+
+    /**
+     * Retrieves a list of supported GATT services on the connected device. This should be
+     * invoked only after {@code BluetoothGatt#discoverServices()} completes successfully.
+     *
+     * @return A {@code List} of supported services.
+     */
+    public List<BluetoothGattService> getSupportedGattServices(String address) {
+        final DeviceConnection connection = getConnection(address);
+        if (connection == null) return null;
+
+        return connection.getServices();
+    }
+
+    GattSource.Factory getGattSourceFactory() {
+        if (sGattSourceFactory != null) return sGattSourceFactory;
+        if (mBluetoothAdapter != null) return new BluetoothGattSource.Factory(mBluetoothAdapter);
+        return null;
+    }
 
-        // Enable notifications for Angel Step Count
-        if (UUID_ANGEL_STEP_COUNT_CHAR.equals(characteristic.getUuid())){
-            BluetoothGattDescriptor descriptor = characteristic.getDescriptor(
-                    UUID.fromString(SampleGattAttributes.ANGEL_STEP_COUNT_CONFIG));
-            descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            mBluetoothGatt.writeDescriptor(descriptor);
+    private DeviceConnection getConnection(String address) {
+        if (address == null) return null;
+        synchronized (mConnections) {
+            return mConnections.get(address);
         }
+    }
 
-        // Enable notifications for Angel skin Temperature
-        if (UUID_SKIN_TEMPERATURE_CHAR.equals(characteristic.getUuid())){
-            BluetoothGattDescriptor descriptor = characteristic.getDescriptor(
-                    UUID.fromString(SampleGattAttributes.TEMPERATURE_CONFIG));
-            descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            mBluetoothGatt.writeDescriptor(descriptor);
+    // Copy of the connections, to iterate over while they may be added or removed.
+    List<DeviceConnection> getConnections() {
+        synchronized (mConnections) {
+            return new ArrayList<DeviceConnection>(mConnections.values());
         }
+    }
 
-        
+    /**
+     * @return Time from the last lost connection to the given device to the first ECG
+     *         packet after it, in ms, or -1 if the connection was never lost and regained.
+     */
+    public long getLastTimeToData(String address) {
+        final DeviceConnection connection = getConnection(address);
+        return connection != null ? connection.getLastTimeToData() : -1;
     }
 
     /**
-     * Retrieves a list of supported GATT services on the connected device. This should be
-     * invoked only after {@code BluetoothGatt#discoverServices()} completes successfully.
-     *
-     * @return A {@code List} of supported services.
+     * @return Time from starting to connect to the given device to its first ECG packet,
+     *         in ms, or -1 if none has arrived yet.
+     */
+    public long getTimeToFirstSample(String address) {
+        final DeviceConnection connection = getConnection(address);
+        return connection != null ? connection.getTimeToFirstSample() : -1;
+    }
+
+    /**
+     * @return GATT connection to the given device, or null if there is none or the
+     *         service is not running.
      */
-    public List<BluetoothGattService> getSupportedGattServices() {
-        if (mBluetoothGatt == null) return null;
+    public static GattSource getGattSource(String address) {
+        final BluetoothLeService service = mThis;
+        if (service == null) return null;
+        final DeviceConnection connection = service.getConnection(address);
+        return connection != null ? connection.getGattSource() : null;
+    }
 
-        return mBluetoothGatt.getServices();
+    /**
+     * @return ATT MTU of the connection to the given device; ECG notifications carry
+     *         MTU - 3 samples.
+     */
+    public int getMtu(String address) {
+        final DeviceConnection connection = getConnection(address);
+        return connection != null ? connection.getMtu() : EcgPacketDecoder.DEFAULT_MTU;
     }
 
-    public static BluetoothGatt getBtGatt() {
-        return mThis.mBluetoothGatt;
+    /**
+     * @return The BluetoothGatt.CONNECTION_PRIORITY_* the connection to the given device
+     *         was given.
+     */
+    public int getConnectionPriority(String address) {
+        final DeviceConnection connection = getConnection(address);
+        return connection != null ? connection.getConnectionPriority()
+                : BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+    }
+
+    /**
+     * Makes every connection opened from now on use the given factory instead of the
+     * Bluetooth radio, for example a {@link ReplayGattSource.Factory} to drive the app
+     * from a recording or a synthetic signal, or {@link ReplayGattSource.Devices} to
+     * simulate several devices at once.
+     *
+     * @param factory null to go back to the radio.
+     */
+    public static void setGattSourceFactory(GattSource.Factory factory) {
+        sGattSourceFactory = factory;
     }
 
 
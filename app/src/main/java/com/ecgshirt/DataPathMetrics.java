@@ -0,0 +1,209 @@
+package com.ecgshirt;
+
+import android.os.SystemClock;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and histograms of one device's data path, from notification to recording
+ * and display, to tell whether the phone keeps up with the shirt.
+ *
+ * The GATT callback thread counts notifications, times ECG packets and publishes the
+ * lost samples and clock rate its {@link SampleClock} found; the live view times its
+ * filtering and samples the ECG ring's occupancy. Everything is lock-free and
+ * allocation-free to record. {@link #snapshot} reads it all, with the ring and recorder
+ * gauges, for the debug overlay of {@code DeviceControlActivity} and the snapshot file
+ * {@link BluetoothLeService} writes while acquiring.
+ */
+final class DataPathMetrics {
+
+    /* Time between ECG notifications, in ns */
+    final Histogram mInterArrival = new Histogram();
+
+    /* Time to decode an ECG packet, buffer it and queue it for recording, in ns */
+    final Histogram mDecodeTime = new Histogram();
+
+    /* Time the live view takes to filter one batch of samples, in ns */
+    final Histogram mFilterTime = new Histogram();
+
+    /* Samples waiting in the ECG ring each time the live view drains it */
+    final Histogram mOccupancy = new Histogram();
+
+    /* ECG samples received and lost, gaps, and the shirt's sample rate in mHz, as
+       estimated by the connection's SampleClock */
+    private final AtomicLong mReceivedSamples = new AtomicLong();
+    private final AtomicLong mLostSamples = new AtomicLong();
+    private final AtomicLong mGaps = new AtomicLong();
+    private final AtomicLong mSampleRateMilliHz = new AtomicLong();
+
+    /* Notifications received, by characteristic */
+    private final ConcurrentHashMap<UUID, AtomicLong> mNotifications =
+            new ConcurrentHashMap<UUID, AtomicLong>();
+
+    /**
+     * @return Counter of the notifications of a characteristic; look it up once and keep it.
+     */
+    AtomicLong notifications(UUID characteristic) {
+        AtomicLong counter = mNotifications.get(characteristic);
+        if (counter == null) {
+            final AtomicLong created = new AtomicLong();
+            counter = mNotifications.putIfAbsent(characteristic, created);
+            if (counter == null) counter = created;
+        }
+        return counter;
+    }
+
+    /**
+     * Publishes the counts of a sample clock, which must only be used from the calling
+     * thread, for the snapshots.
+     */
+    void publishClock(SampleClock clock) {
+        mReceivedSamples.lazySet(clock.getReceivedSamples());
+        mLostSamples.lazySet(clock.getLostSamples());
+        mGaps.lazySet(clock.getGapCount());
+        mSampleRateMilliHz.lazySet(Math.round(clock.getSampleRate() * 1000));
+    }
+
+    /**
+     * @param ring ECG ring of the device.
+     * @param recorder current recording, null if none.
+     */
+    Snapshot snapshot(SampleRingBuffer ring, EcgRecorder recorder) {
+        final Map<UUID, Long> notifications = new LinkedHashMap<UUID, Long>();
+        for (Map.Entry<UUID, AtomicLong> entry : mNotifications.entrySet()) {
+            notifications.put(entry.getKey(), entry.getValue().get());
+        }
+        return new Snapshot(SystemClock.elapsedRealtime(), notifications,
+                mInterArrival.snapshot(), mDecodeTime.snapshot(), mFilterTime.snapshot(),
+                mOccupancy.snapshot(), ring.size(), ring.capacity(), ring.getDroppedSamples(),
+                recorder != null ? recorder.getDroppedSamples() : 0,
+                recorder != null ? recorder.getBytesWritten() : 0,
+                mReceivedSamples.get(), mLostSamples.get(), mGaps.get(),
+                mSampleRateMilliHz.get() / 1000.0);
+    }
+
+    /**
+     * Metrics at one point in time. Rates and distributions are given over the time
+     * since an earlier snapshot.
+     */
+    static final class Snapshot {
+        private final long mTime;
+        private final Map<UUID, Long> mNotifications;
+        private final Histogram.Snapshot mInterArrival;
+        private final Histogram.Snapshot mDecodeTime;
+        private final Histogram.Snapshot mFilterTime;
+        private final Histogram.Snapshot mOccupancy;
+        private final int mRingSize;
+        private final int mRingCapacity;
+        private final long mRingDropped;
+        private final long mRecorderDropped;
+        private final long mBytesWritten;
+        private final long mReceivedSamples;
+        private final long mLostSamples;
+        private final long mGaps;
+        private final double mSampleRate;
+
+        private Snapshot(long time, Map<UUID, Long> notifications,
+                         Histogram.Snapshot interArrival, Histogram.Snapshot decodeTime,
+                         Histogram.Snapshot filterTime, Histogram.Snapshot occupancy,
+                         int ringSize, int ringCapacity, long ringDropped,
+                         long recorderDropped, long bytesWritten,
+                         long receivedSamples, long lostSamples, long gaps, double sampleRate) {
+            mTime = time;
+            mNotifications = notifications;
+            mInterArrival = interArrival;
+            mDecodeTime = decodeTime;
+            mFilterTime = filterTime;
+            mOccupancy = occupancy;
+            mRingSize = ringSize;
+            mRingCapacity = ringCapacity;
+            mRingDropped = ringDropped;
+            mRecorderDropped = recorderDropped;
+            mBytesWritten = bytesWritten;
+            mReceivedSamples = receivedSamples;
+            mLostSamples = lostSamples;
+            mGaps = gaps;
+            mSampleRate = sampleRate;
+        }
+
+        /**
+         * @return Fraction of the ECG samples lost since {@code previous}, or since
+         *         connecting if null, from 0 to 1.
+         */
+        double getLossRate(Snapshot previous) {
+            final long lost = mLostSamples - (previous != null ? previous.mLostSamples : 0);
+            final long taken = lost + mReceivedSamples
+                    - (previous != null ? previous.mReceivedSamples : 0);
+            return taken > 0 ? (double) lost / taken : 0;
+        }
+
+        /**
+         * @param previous earlier snapshot of the same device, null for totals since
+         *                 connecting.
+         * @param separator put between the lines, for example "\n".
+         */
+        String format(Snapshot previous, String separator) {
+            final double seconds = previous != null
+                    ? Math.max(1, mTime - previous.mTime) / 1000.0 : 0;
+            final StringBuilder out = new StringBuilder();
+            out.append("notifications/s");
+            for (Map.Entry<UUID, Long> entry : mNotifications.entrySet()) {
+                final Long before = previous != null
+                        ? previous.mNotifications.get(entry.getKey()) : null;
+                final long count = entry.getValue() - (before != null ? before : 0);
+                out.append(' ').append(shortName(entry.getKey())).append(' ')
+                        .append(seconds > 0 ? String.format(Locale.US, "%.1f", count / seconds)
+                                : String.valueOf(count));
+            }
+            out.append(separator);
+            appendHistogram(out, "inter-arrival ms", mInterArrival.since(
+                    previous != null ? previous.mInterArrival : null), 1000000);
+            out.append(separator);
+            appendHistogram(out, "decode us", mDecodeTime.since(
+                    previous != null ? previous.mDecodeTime : null), 1000);
+            out.append(separator);
+            appendHistogram(out, "filter us", mFilterTime.since(
+                    previous != null ? previous.mFilterTime : null), 1000);
+            out.append(separator);
+            final Histogram.Snapshot occupancy = mOccupancy.since(
+                    previous != null ? previous.mOccupancy : null);
+            out.append("ring ").append(mRingSize).append('/').append(mRingCapacity)
+                    .append(" p99 ").append(occupancy.getPercentile(0.99))
+                    .append(" max ").append(occupancy.getMax())
+                    .append(" dropped ").append(mRingDropped);
+            out.append(separator);
+            out.append(String.format(Locale.US, "lost %.2f%% (%d samples, %d gaps) clock %.3f Hz",
+                    getLossRate(previous) * 100, mLostSamples, mGaps, mSampleRate));
+            out.append(separator);
+            out.append("recorder dropped ").append(mRecorderDropped)
+                    .append(" written ").append(mBytesWritten).append(" B");
+            if (seconds > 0 && mBytesWritten >= previous.mBytesWritten) {
+                out.append(String.format(Locale.US, " %.0f B/s",
+                        (mBytesWritten - previous.mBytesWritten) / seconds));
+            }
+            return out.toString();
+        }
+
+        private static void appendHistogram(StringBuilder out, String name,
+                                            Histogram.Snapshot histogram, long unit) {
+            out.append(name).append(" n ").append(histogram.getCount())
+                    .append(" mean ").append(histogram.getMean() / unit)
+                    .append(" p99 ").append(histogram.getPercentile(0.99) / unit)
+                    .append(" max ").append(histogram.getMax() / unit);
+        }
+
+        // Name of the characteristic if known, otherwise the first part of its UUID.
+        private static String shortName(UUID uuid) {
+            if (BluetoothLeService.UUID_ECG_WAVEFORM_CHAR.equals(uuid)) return "ECG";
+            if (BluetoothLeService.UUID_HEART_RATE_MEASUREMENT.equals(uuid)) return "HR";
+            if (BluetoothLeService.UUID_SKIN_TEMPERATURE_CHAR.equals(uuid)) return "temp";
+            if (BluetoothLeService.UUID_ANGEL_STEP_COUNT_CHAR.equals(uuid)) return "steps";
+            return uuid.toString().substring(0, 8);
+        }
+    }
+}
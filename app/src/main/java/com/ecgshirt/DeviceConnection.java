@@ -0,0 +1,870 @@
+package com.ecgshirt;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One device connected through {@link BluetoothLeService}: its GATT connection and
+ * callback, operation queue, reconnect logic, and the decoding, heart rate detection
+ * and recording of what it sends.
+ *
+ * Each device gets its own ECG ring and recording, so several devices can stream at
+ * once. Everything is time stamped on the service's clock
+ * ({@link BluetoothLeService#clockMillis()}), which all devices share, so their streams
+ * can be lined up afterwards.
+ */
+final class DeviceConnection {
+    private final static String TAG = DeviceConnection.class.getSimpleName();
+
+    static final int STATE_DISCONNECTED = 0;
+    static final int STATE_CONNECTING = 1;
+    static final int STATE_CONNECTED = 2;
+
+    /* Number of ECG samples buffered for consumers, about 20 seconds at 200Hz */
+    private static final int ECG_RING_CAPACITY = 4096;
+
+    /* ATT MTU asked for on connecting: 244 samples per ECG notification, which fits the
+       251 byte link layer packets of Bluetooth 4.2 data length extension */
+    private static final int REQUESTED_MTU = 247;
+
+    /* Some stacks accept the MTU request and never call onMtuChanged; services are
+       discovered anyway once the operation queue's timeout has passed without it */
+    private static final long MTU_TIMEOUT_MS = GattOperationQueue.TIMEOUT_MILLIS;
+
+    /* Session recordings are saved under Android/data/com.ecgshirt as
+       "ecg-<start time>-<address>.ecg" */
+    private static final String RECORDING_FILE_PATTERN = "'ecg-'yyyyMMdd-HHmmss'-'";
+
+    /* Delays before the reconnect attempts after the connection was lost; the last one
+       repeats until RECONNECT_GIVE_UP_MS have passed without a connection */
+    private static final long[] RECONNECT_BACKOFF_MS = {0, 250, 500, 1000, 2000, 4000, 8000};
+    private static final long RECONNECT_GIVE_UP_MS = 60000;
+
+    /* A reconnect attempt not answered within this time is abandoned for the next one,
+       instead of waiting for the stack's own 30 second timeout */
+    private static final long CONNECT_TIMEOUT_MS = 10000;
+
+    private final BluetoothLeService mService;
+    private final String mAddress;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private volatile GattSource mGattSource;
+    private volatile int mConnectionState = STATE_DISCONNECTED;
+
+    /* Name shown for the device, may be null */
+    private volatile String mName;
+
+    /* Whether the device is being acquired from, see BluetoothLeService.startAcquisition */
+    private volatile boolean mAcquiring;
+
+    /* Decoded ECG samples handed to consumers without going through broadcasts */
+    private final SampleRingBuffer mEcgRing = new SampleRingBuffer(ECG_RING_CAPACITY);
+
+    /* Buffer reused for every ECG notification, only touched from the GATT callback thread */
+    private final short[] mEcgSamples = new short[EcgPacketDecoder.MAX_SAMPLES_PER_PACKET];
+
+    /* Places ECG packets on the shirt's sample clock and finds the lost ones, on the GATT
+       callback thread. A delay of more than the longest connection interval beyond the
+       usual latency may be a loss */
+    private static final long GAP_THRESHOLD_NS = 50000000;
+    private final SampleClock mSampleClock =
+            new SampleClock(EcgFilter.DEFAULT_SAMPLE_RATE, GAP_THRESHOLD_NS);
+
+    /* Arrival time of the current ECG packet on the service's clock and on
+       System.nanoTime(), for time stamping the samples the placer passes on */
+    private long mPacketArrivalMillis;
+    private long mPacketStartNanos;
+
+    /* Hands ECG samples to the ring, the recording and the heart rate detection once the
+       clock has settled where they belong; lost samples are marked as gaps, never filled */
+    private final EcgPacketPlacer mPacketPlacer = new EcgPacketPlacer(mSampleClock,
+            new EcgPacketPlacer.Listener() {
+                @Override
+                public void onLoss(long lostSamples) {
+                    if (Diagnostics.TRACE) {
+                        Diagnostics.trace(TAG, "Lost " + lostSamples + " ECG samples from "
+                                + mAddress);
+                    }
+                    mEcgRing.skip(lostSamples);
+                    final EcgRecorder recorder = mRecorder;
+                    if (recorder != null) recorder.markGap(lostSamples);
+                    // No RR interval spans the lost beats
+                    mQrsDetector.markGap(lostSamples);
+                }
+
+                @Override
+                public void onSamples(short[] samples, int offset, int count,
+                                      long firstSample) {
+                    mEcgRing.write(samples, offset, count);
+                    if (mRecorder == null) startRecording();
+                    final EcgRecorder recorder = mRecorder;
+                    if (recorder != null) {
+                        // Time the first sample was taken, on the shirt's clock, rather
+                        // than arrival
+                        final long time = mPacketArrivalMillis - (mPacketStartNanos
+                                - mSampleClock.getSampleTimeNanos(firstSample)) / 1000000;
+                        recorder.append(samples, offset, count, time);
+                    }
+                    for (int j = 0; j < count; j++) {
+                        if (mQrsDetector.process(EcgPacketDecoder.toVolts(samples[offset + j]))) {
+                            broadcastBeat(BluetoothLeService.ACTION_DATA_AVAILABLE);
+                        }
+                    }
+                }
+            });
+
+    /* Descriptor writes and reads, run one at a time as Android requires */
+    private final GattOperationQueue mGattQueue = new GattOperationQueue();
+
+    /* MTU and connection priority of the current connection, for diagnostics */
+    private volatile int mMtu = EcgPacketDecoder.DEFAULT_MTU;
+    private volatile int mConnectionPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+
+    /* Set while services wait for the answer to the MTU request; whichever of
+       onMtuChanged and mMtuTimeout clears it starts discovery */
+    private final AtomicBoolean mAwaitingMtu = new AtomicBoolean();
+
+    /* Records the ECG stream from the first ECG packet until close(), across disconnects */
+    private volatile EcgRecorder mRecorder;
+
+    /* ECG characteristic of the current connection, once subscribed to */
+    private volatile BluetoothGattCharacteristic mEcgCharacteristic;
+
+    /* Parsers of the other characteristics subscribed to or read, resolved once each */
+    private final Map<BluetoothGattCharacteristic, CharacteristicParser> mParsers =
+            new IdentityHashMap<BluetoothGattCharacteristic, CharacteristicParser>();
+
+    /* Measurement every parsed value is read into, only touched from the GATT callback
+       thread */
+    private final GattMeasurement mMeasurement = new GattMeasurement();
+
+    /* Counters and timings of the data path, and the ECG notification counter */
+    private final DataPathMetrics mMetrics = new DataPathMetrics();
+    private final AtomicLong mEcgNotifications =
+            mMetrics.notifications(BluetoothLeService.UUID_ECG_WAVEFORM_CHAR);
+
+    /* System.nanoTime() of the last ECG packet of the connection, 0 before the first */
+    private long mLastEcgAt;
+
+    /* Notification rate, logged every few seconds when tracing */
+    private final Diagnostics.SampledLog mNotificationLog = Diagnostics.TRACE
+            ? new Diagnostics.SampledLog(TAG, "notifications", 5000) : null;
+
+    /* Heart rate detection on the shirt's raw ECG, run on the GATT callback thread */
+    private final QrsDetector mQrsDetector = new QrsDetector(EcgFilter.DEFAULT_SAMPLE_RATE);
+
+    /* Whether to reconnect when the connection is lost: set by connect(), cleared by
+       disconnect() and close() */
+    private volatile boolean mAutoReconnect;
+    private int mReconnectAttempts;
+
+    /* SystemClock.elapsedRealtime() the connection was lost, 0 while connected */
+    private volatile long mReconnectingSince;
+
+    /* SystemClock.elapsedRealtime() the ECG stream was interrupted, 0 while it flows */
+    private volatile long mDataLostAt;
+
+    /* Time from losing the connection to the first ECG packet after it, -1 if none yet */
+    private volatile long mLastTimeToData = -1;
+
+    /* SystemClock.elapsedRealtime() connect() was called, and the time from there to the
+       first ECG packet, -1 until it arrives */
+    private volatile long mConnectStartedAt;
+    private volatile long mTimeToFirstSample = -1;
+
+    /* Characteristics notifications are enabled on, mapped to their service, so they can
+       be enabled again as soon as a reconnect has discovered services */
+    private final Map<UUID, UUID> mSubscriptions = new LinkedHashMap<UUID, UUID>();
+
+    // Implements callback methods for GATT events that the app cares about.  For example,
+    // connection change and services discovered.
+    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                mConnectionState = STATE_CONNECTED;
+                mHandler.removeCallbacks(mConnectTimeout);
+                if (mReconnectingSince != 0) {
+                    Log.i(TAG, mAddress + " reconnected after " + mReconnectAttempts
+                            + " attempts, " + (SystemClock.elapsedRealtime() - mReconnectingSince)
+                            + " ms");
+                    mReconnectingSince = 0;
+                }
+                mReconnectAttempts = 0;
+                mService.broadcastUpdate(DeviceConnection.this,
+                        BluetoothLeService.ACTION_GATT_CONNECTED);
+                Log.i(TAG, "Connected to GATT server " + mAddress);
+                // A short connection interval and a large MTU let the shirt send more
+                // samples per connection event; discovery follows once the MTU is settled.
+                final GattSource source = mGattSource;
+                if (source == null) return;
+                mMtu = EcgPacketDecoder.DEFAULT_MTU;
+                mConnectionPriority = source.requestConnectionPriority(
+                        BluetoothGatt.CONNECTION_PRIORITY_HIGH)
+                        ? BluetoothGatt.CONNECTION_PRIORITY_HIGH
+                        : BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+                mAwaitingMtu.set(true);
+                if (source.requestMtu(REQUESTED_MTU)) {
+                    mHandler.postDelayed(mMtuTimeout, MTU_TIMEOUT_MS);
+                } else {
+                    mAwaitingMtu.set(false);
+                    discoverServices();
+                }
+
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                mConnectionState = STATE_DISCONNECTED;
+                mHandler.removeCallbacks(mMtuTimeout);
+                mAwaitingMtu.set(false);
+                // The time until the next packet is the outage, not inter-arrival jitter,
+                // and the recording marks it as a gap already
+                mLastEcgAt = 0;
+                mPacketPlacer.reset();
+                mQrsDetector.markGap(0);
+                // Keep the recording open for a reconnect, but get everything onto storage
+                final EcgRecorder recorder = mRecorder;
+                if (recorder != null) {
+                    recorder.checkpoint();
+                    recorder.markGap();
+                }
+                mGattQueue.clear();
+                Log.i(TAG, "Disconnected from GATT server " + mAddress + ". GATT operations: "
+                        + mGattQueue.getCompleted() + " completed, "
+                        + mGattQueue.getFailed() + " failed, "
+                        + mGattQueue.getRetries() + " retries, latency mean "
+                        + mGattQueue.getMeanLatencyNanos() / 1000000 + " ms, max "
+                        + mGattQueue.getMaxLatencyNanos() / 1000000 + " ms, status " + status);
+                if (mAutoReconnect) {
+                    if (mDataLostAt == 0) mDataLostAt = SystemClock.elapsedRealtime();
+                    if (mReconnectingSince == 0) mReconnectingSince = SystemClock.elapsedRealtime();
+                    mHandler.post(mScheduleReconnect);
+                } else {
+                    mService.broadcastUpdate(DeviceConnection.this,
+                            BluetoothLeService.ACTION_GATT_DISCONNECTED);
+                }
+            }
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mMtu = mtu;
+            }
+            Log.i(TAG, mAddress + " MTU " + mMtu + " (" + EcgPacketDecoder.samplesPerPacket(mMtu)
+                    + " samples per packet), status " + status);
+            mHandler.removeCallbacks(mMtuTimeout);
+            // Unless the timeout has discovered services already, or the device changed
+            // the MTU on its own
+            if (mAwaitingMtu.getAndSet(false)) discoverServices();
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                resubscribe();
+                subscribeToEcg();
+                mService.broadcastUpdate(DeviceConnection.this,
+                        BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED);
+            } else {
+                Log.w(TAG, "onServicesDiscovered received: " + status);
+            }
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt,
+                                         BluetoothGattCharacteristic characteristic,
+                                         int status) {
+            mGattQueue.onCharacteristicRead(characteristic, status);
+            if (Diagnostics.TRACE) {
+                Diagnostics.trace(TAG, "Read " + characteristic.getUuid() + " from " + mAddress
+                        + ", status " + status);
+            }
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                dataAvailable(characteristic);
+            }
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+                                      int status) {
+            mGattQueue.onDescriptorWrite(descriptor, status);
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt,
+                                            BluetoothGattCharacteristic characteristic) {
+            if (Diagnostics.TRACE) mNotificationLog.event(mAddress);
+            if (characteristic == mEcgCharacteristic) {
+                mEcgNotifications.incrementAndGet();
+            } else {
+                mMetrics.notifications(characteristic.getUuid()).incrementAndGet();
+            }
+            dataAvailable(characteristic);
+        }
+    };
+
+    private final Runnable mReconnect = new Runnable() {
+        @Override
+        public void run() {
+            reconnect();
+        }
+    };
+
+    private final Runnable mScheduleReconnect = new Runnable() {
+        @Override
+        public void run() {
+            scheduleReconnect();
+        }
+    };
+
+    private final Runnable mConnectTimeout = new Runnable() {
+        @Override
+        public void run() {
+            Log.w(TAG, mAddress + " reconnect attempt timed out");
+            scheduleReconnect();
+        }
+    };
+
+    private final Runnable mMtuTimeout = new Runnable() {
+        @Override
+        public void run() {
+            if (!mAwaitingMtu.getAndSet(false)) return;
+            Log.w(TAG, mAddress + " MTU request unanswered, discovering services at MTU " + mMtu);
+            discoverServices();
+        }
+    };
+
+    DeviceConnection(BluetoothLeService service, String address) {
+        mService = service;
+        mAddress = address;
+    }
+
+    String getAddress() {
+        return mAddress;
+    }
+
+    String getName() {
+        return mName;
+    }
+
+    void setName(String name) {
+        mName = name;
+    }
+
+    boolean isAcquiring() {
+        return mAcquiring;
+    }
+
+    void setAcquiring(boolean acquiring) {
+        mAcquiring = acquiring;
+    }
+
+    int getConnectionState() {
+        return mConnectionState;
+    }
+
+    /** Whether connect() has been called and the connection is being kept up. */
+    boolean isReconnecting() {
+        return mReconnectingSince != 0;
+    }
+
+    GattSource getGattSource() {
+        return mGattSource;
+    }
+
+    SampleRingBuffer getEcgSamples() {
+        return mEcgRing;
+    }
+
+    int getMtu() {
+        return mMtu;
+    }
+
+    int getConnectionPriority() {
+        return mConnectionPriority;
+    }
+
+    long getLastTimeToData() {
+        return mLastTimeToData;
+    }
+
+    long getTimeToFirstSample() {
+        return mTimeToFirstSample;
+    }
+
+    DataPathMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    DataPathMetrics.Snapshot snapshotMetrics() {
+        return mMetrics.snapshot(mEcgRing, mRecorder);
+    }
+
+    /**
+     * Connects, or reconnects, and keeps the connection up until {@link #disconnect()}
+     * or {@link #close()}.
+     *
+     * A new connection the stack refuses to start is retried like a lost one, with
+     * the reconnect backoff.
+     *
+     * @return false if the existing connection could not be reconnected.
+     */
+    boolean connect(GattSource.Factory factory) {
+        if (!mAutoReconnect) {
+            // A new session, timed to its first sample
+            mConnectStartedAt = SystemClock.elapsedRealtime();
+            mTimeToFirstSample = -1;
+            // Subscribe to what was subscribed to last time as soon as services are
+            // discovered, without waiting for anyone to browse them
+            final Map<UUID, UUID> known = mService.getKnownDevices().getSubscriptions(mAddress);
+            synchronized (mSubscriptions) {
+                if (mSubscriptions.isEmpty()) mSubscriptions.putAll(known);
+            }
+        }
+        // The connection is kept up from now on, until disconnect() or close()
+        mAutoReconnect = true;
+        mReconnectAttempts = 0;
+        if (mReconnectingSince != 0) {
+            // Reconnecting already; try again right away
+            mReconnectingSince = SystemClock.elapsedRealtime();
+            mHandler.removeCallbacks(mReconnect);
+            mHandler.removeCallbacks(mConnectTimeout);
+            reconnect();
+            return true;
+        }
+
+        // Previously connected device.  Try to reconnect.
+        final GattSource existing = mGattSource;
+        if (existing != null) {
+            Log.d(TAG, "Trying to use an existing GATT connection to " + mAddress);
+            if (existing.connect()) {
+                mConnectionState = STATE_CONNECTING;
+                return true;
+            } else {
+                return false;
+            }
+        }
+
+        final GattSource source = factory.connect(mService, mAddress, mGattCallback);
+        if (source == null) {
+            Log.w(TAG, "Unable to connect to " + mAddress + ", retrying");
+            mReconnectingSince = SystemClock.elapsedRealtime();
+            scheduleReconnect();
+            return true;
+        }
+        setGattSource(source);
+        Log.d(TAG, "Trying to create a new connection to " + mAddress);
+        mConnectionState = STATE_CONNECTING;
+        return true;
+    }
+
+    private void setGattSource(GattSource source) {
+        mGattSource = source;
+        mGattQueue.setSource(source);
+        // Characteristics are new objects on every connection
+        mEcgCharacteristic = null;
+        synchronized (mParsers) {
+            mParsers.clear();
+        }
+    }
+
+    // Schedules the next reconnect attempt, or gives up and reports the disconnect.
+    // Reconnecting runs on the main thread.
+    private void scheduleReconnect() {
+        mHandler.removeCallbacks(mScheduleReconnect);
+        mHandler.removeCallbacks(mReconnect);
+        mHandler.removeCallbacks(mConnectTimeout);
+        if (!mAutoReconnect) return;
+        final long lost = SystemClock.elapsedRealtime() - mReconnectingSince;
+        if (lost >= RECONNECT_GIVE_UP_MS) {
+            Log.w(TAG, "Giving up reconnecting to " + mAddress + " after "
+                    + mReconnectAttempts + " attempts, " + lost + " ms");
+            mAutoReconnect = false;
+            mReconnectingSince = 0;
+            mDataLostAt = 0;
+            final GattSource source = mGattSource;
+            if (source != null) source.disconnect();
+            mService.broadcastUpdate(this, BluetoothLeService.ACTION_GATT_DISCONNECTED);
+            return;
+        }
+        final long delay = RECONNECT_BACKOFF_MS[
+                Math.min(mReconnectAttempts, RECONNECT_BACKOFF_MS.length - 1)];
+        mReconnectAttempts++;
+        mService.broadcastUpdate(this, BluetoothLeService.ACTION_GATT_RECONNECTING);
+        mHandler.postDelayed(mReconnect, delay);
+    }
+
+    /**
+     * Replaces a pending connection attempt with a new one, for when the device has just
+     * been seen advertising. Does nothing once connected or if not connecting.
+     */
+    void connectNow() {
+        if (!mAutoReconnect || mConnectionState == STATE_CONNECTED) return;
+        mHandler.removeCallbacks(mScheduleReconnect);
+        mHandler.removeCallbacks(mReconnect);
+        mHandler.removeCallbacks(mConnectTimeout);
+        reconnect();
+    }
+
+    // Opens a new connection to the device, replacing the lost one.
+    private void reconnect() {
+        if (!mAutoReconnect) return;
+        final GattSource.Factory factory = mService.getGattSourceFactory();
+        if (factory == null) return;
+        Log.d(TAG, "Reconnect attempt " + mReconnectAttempts + " to " + mAddress);
+        final GattSource old = mGattSource;
+        if (old != null) {
+            setGattSource(null);
+            old.close();
+        }
+        // Connecting directly to the cached address skips scanning
+        final GattSource source = factory.connect(mService, mAddress, mGattCallback);
+        if (source == null) {
+            scheduleReconnect();
+            return;
+        }
+        setGattSource(source);
+        mConnectionState = STATE_CONNECTING;
+        mHandler.postDelayed(mConnectTimeout, CONNECT_TIMEOUT_MS);
+    }
+
+    // Enables notifications again on the characteristics subscribed to before a reconnect.
+    private void resubscribe() {
+        final List<BluetoothGattService> services = getServices();
+        if (services == null) return;
+        final List<BluetoothGattCharacteristic> characteristics =
+                new ArrayList<BluetoothGattCharacteristic>();
+        synchronized (mSubscriptions) {
+            for (Map.Entry<UUID, UUID> subscription : mSubscriptions.entrySet()) {
+                for (BluetoothGattService service : services) {
+                    if (!service.getUuid().equals(subscription.getValue())) continue;
+                    final BluetoothGattCharacteristic characteristic =
+                            service.getCharacteristic(subscription.getKey());
+                    if (characteristic != null) characteristics.add(characteristic);
+                }
+            }
+        }
+        for (BluetoothGattCharacteristic characteristic : characteristics) {
+            setCharacteristicNotification(characteristic, true);
+        }
+    }
+
+    // Enables ECG notifications as soon as services are discovered, unless they are
+    // already: acquisition needs nobody to pick the characteristic.
+    private void subscribeToEcg() {
+        synchronized (mSubscriptions) {
+            if (mSubscriptions.containsKey(BluetoothLeService.UUID_ECG_WAVEFORM_CHAR)) return;
+        }
+        final List<BluetoothGattService> services = getServices();
+        if (services == null) return;
+        for (BluetoothGattService service : services) {
+            if (!BluetoothLeService.UUID_ECG_WAVEFORM_SERVICE.equals(service.getUuid())) continue;
+            final BluetoothGattCharacteristic characteristic =
+                    service.getCharacteristic(BluetoothLeService.UUID_ECG_WAVEFORM_CHAR);
+            if (characteristic != null) {
+                setCharacteristicNotification(characteristic, true);
+                return;
+            }
+        }
+        Log.w(TAG, mAddress + " has no ECG waveform characteristic");
+    }
+
+    // Attempts to discover services after successful connection.
+    private void discoverServices() {
+        final GattSource source = mGattSource;
+        if (source == null) return;
+        Log.i(TAG, "Attempting to start service discovery:" + source.discoverServices());
+    }
+
+    /**
+     * Disconnects an existing connection or cancels a pending connection, and stops
+     * reconnecting.
+     */
+    void disconnect() {
+        stopReconnecting();
+        final GattSource source = mGattSource;
+        if (source == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized");
+            return;
+        }
+        source.disconnect();
+    }
+
+    // Stops keeping the connection up; a pending reconnect is reported as a disconnect.
+    private void stopReconnecting() {
+        mAutoReconnect = false;
+        mHandler.removeCallbacks(mScheduleReconnect);
+        mHandler.removeCallbacks(mReconnect);
+        mHandler.removeCallbacks(mConnectTimeout);
+        synchronized (mSubscriptions) {
+            mSubscriptions.clear();
+        }
+        mDataLostAt = 0;
+        if (mReconnectingSince != 0) {
+            mReconnectingSince = 0;
+            mService.broadcastUpdate(this, BluetoothLeService.ACTION_GATT_DISCONNECTED);
+        }
+    }
+
+    /**
+     * Releases the connection and closes the recording.
+     */
+    void close() {
+        stopReconnecting();
+        stopRecording();
+        final GattSource source = mGattSource;
+        if (source == null) {
+            return;
+        }
+        setGattSource(null);
+        source.close();
+        mConnectionState = STATE_DISCONNECTED;
+    }
+
+    /**
+     * Starts recording the ECG stream to a new session file in Android/data/com.ecgshirt,
+     * unless a recording is already running.
+     */
+    private synchronized void startRecording() {
+        if (mRecorder != null) return;
+        final File dir = mService.getExternalFilesDir(null);
+        if (dir == null) {
+            Log.e(TAG, "External storage unavailable, not recording.");
+            return;
+        }
+        // On the service's clock, like the sample times, so a replay is stamped consistently
+        final long startTime = mService.clockMillis();
+        final String name = new SimpleDateFormat(RECORDING_FILE_PATTERN, Locale.US)
+                .format(new Date(startTime)) + mAddress.replace(":", "") + ".ecg";
+        final EcgRecorder recorder = new EcgRecorder(new File(dir, name),
+                mAddress, EcgFilter.DEFAULT_SAMPLE_RATE);
+        try {
+            recorder.start(startTime);
+            mRecorder = recorder;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open recording " + recorder.getFile(), e);
+        }
+    }
+
+    /**
+     * Writes out and closes the current recording; the next ECG packet starts a new one.
+     */
+    synchronized void stopRecording() {
+        final EcgRecorder recorder = mRecorder;
+        if (recorder == null) return;
+        mRecorder = null;
+        recorder.stop();
+        if (recorder.getError() != null) {
+            Log.e(TAG, "Recording failed", recorder.getError());
+        }
+        Log.i(TAG, "Recorded " + recorder.getBytesWritten() + " bytes, dropped "
+                + recorder.getDroppedSamples() + " samples.");
+    }
+
+    private void dataAvailable(final BluetoothGattCharacteristic characteristic) {
+        final String action = BluetoothLeService.ACTION_DATA_AVAILABLE;
+        //received notification for a new ECG packet
+        //samples go straight into the ring buffer, no broadcast is sent for them
+        if (characteristic == mEcgCharacteristic) {
+            //packet contains up to MTU - 3 Bytes of data, 20 unless a larger MTU was negotiated
+            //each Byte is an 8-bit character encoding of a voltage
+            //value between -1V and +1V
+            if (mTimeToFirstSample < 0) {
+                mTimeToFirstSample = SystemClock.elapsedRealtime() - mConnectStartedAt;
+                Log.i(TAG, "First ECG data from " + mAddress + " " + mTimeToFirstSample
+                        + " ms after connecting");
+            }
+            if (mDataLostAt != 0) {
+                mLastTimeToData = SystemClock.elapsedRealtime() - mDataLostAt;
+                mDataLostAt = 0;
+                Log.i(TAG, "ECG data from " + mAddress + " resumed " + mLastTimeToData
+                        + " ms after the connection was lost");
+            }
+            final long arrival = mService.clockMillis();
+            final long start = System.nanoTime();
+            if (mLastEcgAt != 0) mMetrics.mInterArrival.record(start - mLastEcgAt);
+            mLastEcgAt = start;
+            final int count = EcgPacketDecoder.decode(characteristic.getValue(), mEcgSamples, 0);
+            mPacketArrivalMillis = arrival;
+            mPacketStartNanos = start;
+            mPacketPlacer.onPacket(start, mEcgSamples, 0, count);
+            mMetrics.publishClock(mSampleClock);
+            mMetrics.mDecodeTime.record(System.nanoTime() - start);
+            return;
+        }
+
+        final Intent intent = mService.newIntent(this, action);
+        final CharacteristicParser parser = getParser(characteristic);
+        if (parser != null && parser.parse(characteristic.getValue(), mMeasurement)) {
+            putMeasurement(intent, mMeasurement);
+        }
+        mService.sendBroadcast(intent);
+    }
+
+    private static void putMeasurement(Intent intent, GattMeasurement measurement) {
+        switch (measurement.getType()) {
+            case GattMeasurement.TYPE_HEART_RATE: {
+                final int heartRate = measurement.getHeartRate();
+                intent.putExtra(BluetoothLeService.EXTRA_DATA, String.valueOf(heartRate));
+                intent.putExtra(BluetoothLeService.EXTRA_HEART_RATE, heartRate);
+                final int count = measurement.getRrIntervalCount();
+                if (count > 0) {
+                    final int[] rrIntervals = new int[count];
+                    for (int i = 0; i < count; i++) {
+                        rrIntervals[i] = measurement.getRrIntervalMillis(i);
+                    }
+                    intent.putExtra(BluetoothLeService.EXTRA_RR_INTERVAL, rrIntervals[count - 1]);
+                    intent.putExtra(BluetoothLeService.EXTRA_RR_INTERVALS, rrIntervals);
+                }
+                break;
+            }
+            case GattMeasurement.TYPE_TEMPERATURE:
+                intent.putExtra(BluetoothLeService.EXTRA_DATA,
+                        String.valueOf(measurement.getTemperature()));
+                intent.putExtra(BluetoothLeService.EXTRA_TEMPERATURE, measurement.getTemperature());
+                break;
+            case GattMeasurement.TYPE_STEP_COUNT:
+                intent.putExtra(BluetoothLeService.EXTRA_DATA,
+                        String.valueOf(measurement.getStepCount()));
+                intent.putExtra(BluetoothLeService.EXTRA_STEP_COUNT, measurement.getStepCount());
+                break;
+        }
+    }
+
+    // Looks up how values of a characteristic are handled, once per characteristic of a
+    // connection: notified ECG packets are recognised by identity, anything else gets the
+    // parser registered for its UUID.
+    private CharacteristicParser resolve(BluetoothGattCharacteristic characteristic) {
+        if (BluetoothLeService.UUID_ECG_WAVEFORM_CHAR.equals(characteristic.getUuid())) {
+            mEcgCharacteristic = characteristic;
+            return null;
+        }
+        synchronized (mParsers) {
+            if (mParsers.containsKey(characteristic)) return mParsers.get(characteristic);
+            final CharacteristicParser parser = CharacteristicParsers.get(characteristic.getUuid());
+            mParsers.put(characteristic, parser);
+            return parser;
+        }
+    }
+
+    private CharacteristicParser getParser(BluetoothGattCharacteristic characteristic) {
+        synchronized (mParsers) {
+            final CharacteristicParser parser = mParsers.get(characteristic);
+            if (parser != null || mParsers.containsKey(characteristic)) return parser;
+        }
+        // Neither subscribed to nor read through this connection
+        return resolve(characteristic);
+    }
+
+    // Reports a beat found in the ECG stream the same way as a heart rate measurement
+    // from the Angel Sensor, with the RR interval and R-peak position added.
+    private void broadcastBeat(final String action) {
+        final int rrInterval = mQrsDetector.getLastRrIntervalMillis();
+        if (rrInterval <= 0) return;
+
+        final int heartRate = mQrsDetector.getInstantHeartRate();
+        final Intent intent = mService.newIntent(this, action);
+        intent.putExtra(BluetoothLeService.EXTRA_DATA, String.valueOf(heartRate));
+        intent.putExtra(BluetoothLeService.EXTRA_HEART_RATE, heartRate);
+        intent.putExtra(BluetoothLeService.EXTRA_RR_INTERVAL, rrInterval);
+        intent.putExtra(BluetoothLeService.EXTRA_R_PEAK_SAMPLE, mQrsDetector.getLastRPeak());
+        mService.sendBroadcast(intent);
+    }
+
+    /**
+     * Request a read on a given {@code BluetoothGattCharacteristic}.
+     */
+    void readCharacteristic(BluetoothGattCharacteristic characteristic) {
+        if (mGattSource == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized");
+            return;
+        }
+        resolve(characteristic);
+        mGattQueue.readCharacteristic(characteristic);
+    }
+
+    /**
+     * Enables or disables notification on a given characteristic.
+     */
+    void setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
+                                       boolean enabled) {
+        final GattSource source = mGattSource;
+        if (source == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized");
+            return;
+        }
+        if (enabled) resolve(characteristic);
+        source.setCharacteristicNotification(characteristic, enabled);
+        final BluetoothGattService service = characteristic.getService();
+        if (service != null) {
+            final Map<UUID, UUID> subscriptions;
+            synchronized (mSubscriptions) {
+                if (enabled) {
+                    mSubscriptions.put(characteristic.getUuid(), service.getUuid());
+                } else {
+                    mSubscriptions.remove(characteristic.getUuid());
+                }
+                subscriptions = new LinkedHashMap<UUID, UUID>(mSubscriptions);
+            }
+            mService.getKnownDevices().setSubscriptions(mAddress, subscriptions);
+        }
+
+        //TODO: check that config values are correct if errors appear.
+        final UUID config;
+        if (BluetoothLeService.UUID_HEART_RATE_MEASUREMENT.equals(characteristic.getUuid())) {
+            // This is specific to Heart Rate Measurement.
+            config = UUID.fromString(SampleGattAttributes.CLIENT_CHARACTERISTIC_CONFIG);
+        } else if (BluetoothLeService.UUID_ECG_WAVEFORM_CHAR.equals(characteristic.getUuid())) {
+            // Enable notifications for the ECG shirt
+            config = UUID.fromString(SampleGattAttributes.ECG_CHARACTERTISTIC_CONFIG);
+        } else if (BluetoothLeService.UUID_ANGEL_STEP_COUNT_CHAR.equals(characteristic.getUuid())) {
+            // Enable notifications for Angel Step Count
+            config = UUID.fromString(SampleGattAttributes.ANGEL_STEP_COUNT_CONFIG);
+        } else if (BluetoothLeService.UUID_SKIN_TEMPERATURE_CHAR.equals(characteristic.getUuid())) {
+            // Enable notifications for Angel skin Temperature
+            config = UUID.fromString(SampleGattAttributes.TEMPERATURE_CONFIG);
+        } else {
+            return;
+        }
+        final BluetoothGattDescriptor descriptor = characteristic.getDescriptor(config);
+        if (descriptor == null) {
+            Log.w(TAG, "No configuration descriptor on " + characteristic.getUuid());
+            return;
+        }
+        // Queued, so subscribing to several characteristics in a row does not lose writes
+        mGattQueue.writeDescriptor(descriptor, enabled
+                ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE
+                : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+    }
+
+    /**
+     * Services of the device, once discovered; null while not connected.
+     */
+    List<BluetoothGattService> getServices() {
+        final GattSource source = mGattSource;
+        if (source == null) return null;
+        return source.getServices();
+    }
+}
@@ -30,28 +30,20 @@ import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.graphics.Color;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
-import android.os.PowerManager;
 import android.os.Vibrator;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.view.WindowManager;
 import android.widget.ExpandableListView;
 import android.widget.SimpleExpandableListAdapter;
 import android.widget.TextView;
-import android.widget.Toast;
 
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
-import java.sql.Date;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
-import java.util.TimeZone;
 
 import com.androidplot.xy.*;
 
@@ -61,8 +53,8 @@ import com.androidplot.xy.*;
  * Provides user interface to connect to shirt (RFduino on-board) and then
  * collect, filter and plot the ECG data in real time (200Hz sampling rate)
  * Alerts user if BLE connection is lost, file is *NOT* lost if this occurs
- * File is saved under Android/data/com.ecgshirt as "ecg.txt" and contains
- * timing information as well as the ECG voltage
+ * File is saved under Android/data/com.ecgshirt as "ecg-<start time>.ecg" and contains
+ * timing information as well as the raw ECG samples (see EcgSessionFormat)
  *
  * This code is a modified version of a sample Android app which connects
  * and displays a list of a device's available GATT services and characteristics
@@ -75,9 +67,6 @@ import com.androidplot.xy.*;
 
 public class DeviceControlActivity extends Activity {
 
-    CharSequence text = "Wrote to File!";
-    int duration = Toast.LENGTH_LONG;
-
     /* Tag for LogCat purposes */
     private final static String TAG = DeviceControlActivity.class.getSimpleName();
 
@@ -89,6 +78,7 @@ public class DeviceControlActivity extends Activity {
     /*Information about the BLE connection and device */
     private TextView mConnectionState;
     private TextView mDataField;
+    private TextView mHeartRateField;
     private String mDeviceName;
     private String mDeviceAddress;
     private boolean mConnected = false;
@@ -97,6 +87,44 @@ public class DeviceControlActivity extends Activity {
 
     /* Service that manages BLE connection */
     private BluetoothLeService mBluetoothLeService;
+    private BluetoothLeService.LocalBinder mBinder;
+
+    /* Decoded ECG samples of this device, published by BluetoothLeService */
+    private SampleRingBuffer mEcgSamples;
+
+    /* Data path metrics of this device, the filter timing and ring occupancy are added here */
+    private DataPathMetrics mMetrics;
+
+    /* Metrics shown over the plot once a second while enabled from the menu */
+    private static final long OVERLAY_INTERVAL_MS = 1000;
+    private TextView mDebugOverlay;
+    private boolean mShowMetrics;
+    private DataPathMetrics.Snapshot mShownMetrics;
+    private final Handler mOverlayHandler = new Handler();
+
+    /* Batch that samples are drained into, reused on every pass */
+    private short[] mSampleBatch;
+
+    /* Sequence number in mEcgSamples following the last sample traced */
+    private long mTraceSequence;
+
+    /* Drains the ECG sample ring and redraws the plot once per display frame */
+    private RenderScheduler mRenderScheduler;
+
+    /* Samples added to the trace but not drawn yet because the plot was busy */
+    private int mUndrawnSamples;
+
+    /* The latest filtered sample is shown as text a few times a second, not every frame,
+       formatted into a reused builder */
+    private static final long VOLTAGE_INTERVAL_NS = 250000000;
+    private long mVoltageShownAt;
+    private final StringBuilder mVoltageText = new StringBuilder();
+
+    /* Whether the time from connecting to the first sample has been shown */
+    private boolean mTimeToFirstSampleShown;
+
+    /* Whether the services browser is shown, a debugging aid: acquisition does not need it */
+    private boolean mShowServices;
 
     /* List of GATT characteristics and services offered by device */
     private ArrayList<ArrayList<BluetoothGattCharacteristic>> mGattCharacteristics =
@@ -106,35 +134,19 @@ public class DeviceControlActivity extends Activity {
     private final String LIST_UUID = "UUID";
     private final String LIST_DATA = "DATA";
 
-    /* ArrayLists which hold unfiltered and filtered data, resp. */
-    private String[] data_points;
-    private List<Float> ecgDataValues;
-    private List<String> angelDataValues;
-    private List<Double> ecgFilteredDataValues;
-
-    /* Plot and series for ECG data */
-    private XYPlot mySimpleXYPlot;
-    SimpleXYSeries series1;
-
-    /* Number of points to display on plot during one screen refresh */
-    private static final int HISTORY_SIZE = 200;
+    /* Digital filter run on the ECG samples as they are drained */
+    private final EcgFilter mEcgFilter = new EcgFilter();
 
-    /* Keeps track of how many points have been placed into the unfiltered data buffer */
-    public int samples_collected;
+    /* Filtered ECG samples (in volts) of the batch being processed */
+    private float[] mFilteredBatch;
 
-    /* Intent for Bluetooth GATT service */
-    public Intent gattServiceIntent;
+    /* Plot and scrolling trace of the filtered ECG data */
+    private XYPlot mEcgPlot;
+    private EcgTraceSeries mEcgTrace;
 
-    /* WakeLock variables */
-    public PowerManager pm;
-    public PowerManager.WakeLock wl;
-    public Activity mDeviceControlActivity;
-
-    /* Thread for plotting and saving data */
-    public Thread mThread;
-
-    /* Current time stamp (for file saving purposes) */
-    private long currentTime;
+    /* Lengths of trace, in seconds, that a tap on the plot cycles through */
+    private static final double[] TRACE_WINDOWS = {5, 15, 60};
+    private int mTraceWindow;
 
     /* Context of DeviceControlActivity */
     public Context mContext;
@@ -148,61 +160,180 @@ public class DeviceControlActivity extends Activity {
 
         @Override
         public void onServiceConnected(ComponentName componentName, IBinder service) {
-            mBluetoothLeService = ((BluetoothLeService.LocalBinder) service).getService();
+            final BluetoothLeService.LocalBinder binder = (BluetoothLeService.LocalBinder) service;
+            mBluetoothLeService = binder.getService();
+            mBinder = binder;
             if (!mBluetoothLeService.initialize()) {
                 Log.e(TAG, "Unable to initialize Bluetooth");
                 finish();
             }
-            // Automatically connects to the device upon successful start-up initialization.
-            mBluetoothLeService.connect(mDeviceAddress);
+            // Automatically starts acquiring from the device upon successful start-up
+            // initialization, or attaches to the acquisition already running.
+            mBluetoothLeService.startAcquisition(mDeviceName, mDeviceAddress);
+            attachEcgSamples();
+            if (mBluetoothLeService.isConnected(mDeviceAddress)) {
+                mConnected = true;
+                updateConnectionState(R.string.connected);
+                invalidateOptionsMenu();
+                if (mShowServices) {
+                    displayGattServices(mBluetoothLeService.getSupportedGattServices(mDeviceAddress));
+                }
+            }
         }
 
         @Override
         public void onServiceDisconnected(ComponentName componentName) {
             mBluetoothLeService = null;
+            mBinder = null;
+            mEcgSamples = null;
+            mMetrics = null;
+        }
+    };
+
+    // Takes the ECG samples of this activity's device from the service, once it has a
+    // connection to the device.
+    private void attachEcgSamples() {
+        if (mBinder == null) return;
+        final SampleRingBuffer samples = mBinder.getEcgSamples(mDeviceAddress);
+        if (samples == null || samples == mEcgSamples) return;
+        mSampleBatch = new short[samples.capacity()];
+        mFilteredBatch = new float[samples.capacity()];
+        // Samples queued while no activity was attached are stale; start from live data
+        samples.skipAll();
+        mTraceSequence = samples.getReadSequence();
+        mEcgSamples = samples;
+        mMetrics = mBinder.getMetrics(mDeviceAddress);
+        mShownMetrics = null;
+    }
+
+    // Shows the metrics of the last interval over the plot, until turned off.
+    private final Runnable mUpdateOverlay = new Runnable() {
+        @Override
+        public void run() {
+            if (!mShowMetrics) return;
+            final DataPathMetrics.Snapshot snapshot = mBinder != null
+                    ? mBinder.snapshotMetrics(mDeviceAddress) : null;
+            if (snapshot != null) {
+                mDebugOverlay.setText(snapshot.format(mShownMetrics, "\n"));
+                mShownMetrics = snapshot;
+            }
+            mOverlayHandler.postDelayed(this, OVERLAY_INTERVAL_MS);
+        }
+    };
 
+    private void setMetricsShown(boolean shown) {
+        mShowMetrics = shown;
+        mDebugOverlay.setVisibility(shown ? View.VISIBLE : View.GONE);
+        mOverlayHandler.removeCallbacks(mUpdateOverlay);
+        if (shown) {
+            mShownMetrics = null;
+            mUpdateOverlay.run();
+        }
+    }
+
+    // Drains every ECG sample that arrived since the last frame in one batch and redraws
+    // the plot if there was anything new.
+    private final RenderScheduler.Renderer mEcgRenderer = new RenderScheduler.Renderer() {
+        @Override
+        public int renderFrame(long frameTimeNanos) {
+            if (mEcgSamples == null) return 0;
+            int count;
+            int filtered = 0;
+            final DataPathMetrics metrics = mMetrics;
+            if (metrics != null) metrics.mOccupancy.record(mEcgSamples.size());
+            while ((count = mEcgSamples.drain(mSampleBatch, 0, mSampleBatch.length)) > 0) {
+                final long first = mEcgSamples.getReadSequence() - count;
+                if (first > mTraceSequence) {
+                    // Samples were lost: leave their time empty and start the filter over
+                    mEcgTrace.appendGap(first - mTraceSequence);
+                    mEcgFilter.reset();
+                }
+                mTraceSequence = first + count;
+                final long start = System.nanoTime();
+                mEcgFilter.process(mSampleBatch, 0, mFilteredBatch, 0, count);
+                if (metrics != null) metrics.mFilterTime.record(System.nanoTime() - start);
+                mEcgTrace.append(mFilteredBatch, 0, count);
+                mUndrawnSamples += count;
+                filtered = count;
+            }
+            if (filtered > 0) {
+                if (frameTimeNanos - mVoltageShownAt >= VOLTAGE_INTERVAL_NS) {
+                    mVoltageShownAt = frameTimeNanos;
+                    showVoltage(mFilteredBatch[filtered - 1]);
+                }
+                if (!mTimeToFirstSampleShown) showTimeToFirstSample();
+            }
+            if (mUndrawnSamples == 0) return 0;
+
+            // The plot renders on its own thread; if it is still busy with the last
+            // frame, try again on the next one
+            mEcgTrace.setColumns(mEcgPlot.getWidth());
+            if (!mEcgTrace.update()) return -1;
+            mEcgPlot.redraw();
+            final int drawn = mUndrawnSamples;
+            mUndrawnSamples = 0;
+            return drawn;
         }
     };
 
+    // Shows a voltage as "-0.123 V" without going through a Formatter.
+    private void showVoltage(float volts) {
+        final int millivolts = Math.round(volts * 1000);
+        final int magnitude = Math.abs(millivolts);
+        final int fraction = magnitude % 1000;
+        mVoltageText.setLength(0);
+        if (millivolts < 0) mVoltageText.append('-');
+        mVoltageText.append(magnitude / 1000).append('.');
+        if (fraction < 100) mVoltageText.append('0');
+        if (fraction < 10) mVoltageText.append('0');
+        mVoltageText.append(fraction).append(" V");
+        mDataField.setText(mVoltageText);
+    }
+
+    private void showTimeToFirstSample() {
+        if (mBluetoothLeService == null) return;
+        final long timeToFirstSample = mBluetoothLeService.getTimeToFirstSample(mDeviceAddress);
+        if (timeToFirstSample < 0) return;
+        mConnectionState.setText(getString(R.string.connected_first_sample, timeToFirstSample));
+        mTimeToFirstSampleShown = true;
+    }
+
     // Handles various events fired by the Service.
     // ACTION_GATT_CONNECTED: connected to a GATT server.
-    // ACTION_GATT_DISCONNECTED: disconnected from a GATT server.
+    // ACTION_GATT_DISCONNECTED: disconnected from a GATT server, and not reconnecting.
+    // ACTION_GATT_RECONNECTING: connection lost, the service is reconnecting on its own.
     // ACTION_GATT_SERVICES_DISCOVERED: discovered GATT services.
     // ACTION_DATA_AVAILABLE: received data from the device.  This can be a result of read
-    //                        or notification operations.
+    //                        or notification operations.  ECG samples are not broadcast,
+    //                        they are drained from the service's ring buffer instead.
     private final BroadcastReceiver mGattUpdateReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
             final String action = intent.getAction();
+            // Other devices may be acquired from at the same time
+            if (!mDeviceAddress.equals(intent.getStringExtra(BluetoothLeService.EXTRA_ADDRESS))) {
+                return;
+            }
             if (BluetoothLeService.ACTION_GATT_CONNECTED.equals(action)) {
+                attachEcgSamples();
                 mConnected = true;
                 updateConnectionState(R.string.connected);
                 invalidateOptionsMenu();
-
-                //grab current time stamp for data logging in ecg file
-                currentTime = System.currentTimeMillis();
-
-                //if the thread for data plotting and saving has not yet started
-                //or if it has been interrupted by something like a lost BLE connection
-                //restart the thread
-
-                //               if(mThread == null) {
-                //mThread = new Thread(new DataPlotAndSave());
-                //                   mThread.start();
-                //               } else if(!mThread.isAlive() || mThread.isInterrupted()){
-                //                   mThread.interrupt();
-                //                   mThread = null;
-                // mThread = new Thread(new DataPlotAndSave());
-//                    mThread.start();
-//                }
+                // The service subscribes to the ECG waveform itself once services are
+                // discovered; samples show up in the ring without anything to do here
+            } else if (BluetoothLeService.ACTION_GATT_RECONNECTING.equals(action)) {
+                // Keep the trace on screen; the service resumes the stream by itself
+                mConnected = false;
+                updateConnectionState(R.string.reconnecting);
+                invalidateOptionsMenu();
             } else if (BluetoothLeService.ACTION_GATT_DISCONNECTED.equals(action)) {
                 mConnected = false;
                 updateConnectionState(R.string.disconnected);
                 invalidateOptionsMenu();
                 clearUI();
 
-                //if the BLE connection has been lost and the user did not
-                //choose to disconnect, alert the user
+                //if the BLE connection has been lost, the service gave up
+                //reconnecting and the user did not choose to disconnect, alert the user
                 if(!disconnectButtonHasBeenPressed) {
                     disconnectButtonHasBeenPressed = false;
 
@@ -230,10 +361,17 @@ public class DeviceControlActivity extends Activity {
                     alertDialog.show();
                 }
             } else if (BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED.equals(action)) {
-                // Show all the supported services and characteristics on the user interface.
-                displayGattServices(mBluetoothLeService.getSupportedGattServices());
+                // Show all the supported services and characteristics, if asked for.
+                if (mShowServices) {
+                    displayGattServices(mBluetoothLeService.getSupportedGattServices(mDeviceAddress));
+                }
             } else if (BluetoothLeService.ACTION_DATA_AVAILABLE.equals(action)) {
-                displayData(intent.getStringExtra(BluetoothLeService.EXTRA_DATA));
+                final int heartRate = intent.getIntExtra(BluetoothLeService.EXTRA_HEART_RATE, -1);
+                if (heartRate >= 0) {
+                    mHeartRateField.setText(getString(R.string.heart_rate_value, heartRate));
+                } else {
+                    displayData(intent.getStringExtra(BluetoothLeService.EXTRA_DATA));
+                }
 
             }
         }
@@ -256,15 +394,15 @@ public class DeviceControlActivity extends Activity {
                             // If there is an active notification on a characteristic, clear
                             // it first so it doesn't update the data field on the user interface.
                             if (mNotifyCharacteristic != null) {
-                                mBluetoothLeService.setCharacteristicNotification(
+                                mBluetoothLeService.setCharacteristicNotification(mDeviceAddress,
                                         mNotifyCharacteristic, false);
                                 mNotifyCharacteristic = null;
                             }
-                            mBluetoothLeService.readCharacteristic(characteristic);
+                            mBluetoothLeService.readCharacteristic(mDeviceAddress, characteristic);
                         }
                         if ((charaProp | BluetoothGattCharacteristic.PROPERTY_NOTIFY) > 0) {
                             mNotifyCharacteristic = characteristic;
-                            mBluetoothLeService.setCharacteristicNotification(
+                            mBluetoothLeService.setCharacteristicNotification(mDeviceAddress,
                                     characteristic, true);
                         }
                         return true;
@@ -277,6 +415,7 @@ public class DeviceControlActivity extends Activity {
     private void clearUI() {
         mGattServicesList.setAdapter((SimpleExpandableListAdapter) null);
         mDataField.setText(R.string.no_data);
+        mHeartRateField.setText(R.string.no_data);
     }
 
     @Override
@@ -284,17 +423,8 @@ public class DeviceControlActivity extends Activity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.gatt_services_characteristics);
 
-        //create Android/data/com.ecgshirt folder, if it doesn't already exist
-        File myDir = this.getExternalFilesDir(null);
-
         mContext = this;
 
-        //ArrayList for data values straight from RFduino
-        ecgDataValues = new ArrayList<Float>();
-        angelDataValues = new ArrayList<String>();
-        //ArrayList for data values after digital filtering on app
-        ecgFilteredDataValues = new ArrayList<Double>();
-
         final Intent intent = getIntent();
         mDeviceName = intent.getStringExtra("EXTRAS_DEVICE_NAME");
         mDeviceAddress = intent.getStringExtra("EXTRAS_DEVICE_ADDRESS");
@@ -306,40 +436,68 @@ public class DeviceControlActivity extends Activity {
         mGattServicesList.setOnChildClickListener(servicesListClickListner);
         mConnectionState = (TextView) findViewById(R.id.connection_state);
         mDataField = (TextView) findViewById(R.id.data_value);
+        mHeartRateField = (TextView) findViewById(R.id.heart_rate_value);
+        mDebugOverlay = (TextView) findViewById(R.id.debug_overlay);
+        setUpEcgPlot();
+        mRenderScheduler = new RenderScheduler(mEcgRenderer,
+                getWindowManager().getDefaultDisplay().getRefreshRate());
 
-        mConnectionState = (TextView) findViewById(R.id.connection_state);
         getActionBar().setTitle(mDeviceName);
         getActionBar().setDisplayHomeAsUpEnabled(true);
-        gattServiceIntent = new Intent(this, BluetoothLeService.class);
         //connect to BLE device
-        bindService(gattServiceIntent, mServiceConnection, BIND_AUTO_CREATE);
-
+        bindService(new Intent(this, BluetoothLeService.class), mServiceConnection,
+                BIND_AUTO_CREATE);
 
-        //grab the instance of this class
-        mDeviceControlActivity = this;
+        //the service acquires in the foreground with its own wake lock,
+        //so the screen is free to turn off during long sessions
 
-        //Acquire partial wake lock so that app will continue to run
-        //and collect data even when screen is turned off
-        pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
-        wl = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK | PowerManager.ACQUIRE_CAUSES_WAKEUP |
-                PowerManager.ON_AFTER_RELEASE, "DeviceControlActivity Tag");
-        wl.acquire();
 
-        //keep screen on
-        getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+    }
 
 
+    private void setUpEcgPlot() {
+        mEcgPlot = (XYPlot) findViewById(R.id.ecg_plot);
+        mEcgTrace = new EcgTraceSeries(getString(R.string.label_ecg_trace),
+                EcgFilter.DEFAULT_SAMPLE_RATE, TRACE_WINDOWS[TRACE_WINDOWS.length - 1]);
+        mEcgPlot.addSeries(mEcgTrace, new LineAndPointFormatter(Color.GREEN, null, null, null));
+        mEcgPlot.addListener(mEcgTrace);
+        mEcgPlot.setRangeBoundaries(-1, 1, BoundaryMode.FIXED);
+        setTraceWindow(0);
+        mEcgPlot.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                setTraceWindow((mTraceWindow + 1) % TRACE_WINDOWS.length);
+            }
+        });
     }
 
+    private void setTraceWindow(int window) {
+        mTraceWindow = window;
+        mEcgTrace.setWindow(TRACE_WINDOWS[window]);
+        mEcgPlot.setDomainBoundaries(0, TRACE_WINDOWS[window], BoundaryMode.FIXED);
+        if (mEcgTrace.update()) {
+            mEcgPlot.redraw();
+        }
+    }
 
     @Override
     protected void onResume() {
         super.onResume();
         registerReceiver(mGattUpdateReceiver, makeGattUpdateIntentFilter());
         if (mBluetoothLeService != null) {
-            final boolean result = mBluetoothLeService.connect(mDeviceAddress);
-            Log.d(TAG, "Connect request result=" + result);
+            // Broadcasts were missed while paused
+            mConnected = mBluetoothLeService.isConnected(mDeviceAddress);
+            if (mConnected) {
+                updateConnectionState(R.string.connected);
+            } else if (mBluetoothLeService.isReconnecting(mDeviceAddress)) {
+                updateConnectionState(R.string.reconnecting);
+            } else {
+                updateConnectionState(R.string.disconnected);
+            }
+            invalidateOptionsMenu();
         }
+        mRenderScheduler.start();
+        if (mShowMetrics) mUpdateOverlay.run();
     }
 
 
@@ -347,6 +505,11 @@ public class DeviceControlActivity extends Activity {
     protected void onPause() {
         super.onPause();
         unregisterReceiver(mGattUpdateReceiver);
+        mRenderScheduler.stop();
+        mOverlayHandler.removeCallbacks(mUpdateOverlay);
+        Log.d(TAG, "Plot frames: " + mRenderScheduler.getRenderedFrames() + " drawn, "
+                + mRenderScheduler.getDroppedFrames() + " dropped, "
+                + mRenderScheduler.getSamplesPerFrame() + " samples per frame");
     }
 
     @Override
@@ -357,9 +520,13 @@ public class DeviceControlActivity extends Activity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        unbindService(mServiceConnection); //disconnect from BLE device when we leave this activity
+        //leaving the device screen ends the acquisition; rotating or being
+        //destroyed in the background only detaches from it
+        if (isFinishing() && mBluetoothLeService != null) {
+            mBluetoothLeService.stopAcquisition(mDeviceAddress);
+        }
+        unbindService(mServiceConnection);
         mBluetoothLeService = null;
-        if(wl != null) wl.release(); //release wake lock
     }
 
     @Override
@@ -373,6 +540,8 @@ public class DeviceControlActivity extends Activity {
             menu.findItem(R.id.menu_connect).setVisible(true);
             menu.findItem(R.id.menu_disconnect).setVisible(false);
         }
+        menu.findItem(R.id.menu_diagnostics).setChecked(mShowMetrics);
+        menu.findItem(R.id.menu_services).setVisible(Diagnostics.TRACE).setChecked(mShowServices);
         return true;
     }
 
@@ -381,18 +550,36 @@ public class DeviceControlActivity extends Activity {
         if (mBluetoothLeService != null) {
             switch (item.getItemId()) {
                 case R.id.menu_connect:
-                    mBluetoothLeService.connect(mDeviceAddress);
+                    // Losing the connection from now on is unexpected again
+                    disconnectButtonHasBeenPressed = false;
+                    mBluetoothLeService.startAcquisition(mDeviceName, mDeviceAddress);
+                    attachEcgSamples();
                     return true;
                 case R.id.menu_disconnect:
                     disconnectButtonHasBeenPressed = true;
-                    mBluetoothLeService.disconnect();
+                    mBluetoothLeService.stopAcquisition(mDeviceAddress);
                     return true;
                 case android.R.id.home:
                     onBackPressed();
                     return true;
+                case R.id.menu_diagnostics:
+                    setMetricsShown(!mShowMetrics);
+                    item.setChecked(mShowMetrics);
+                    return true;
+                case R.id.menu_services:
+                    mShowServices = !mShowServices;
+                    item.setChecked(mShowServices);
+                    mGattServicesList.setVisibility(mShowServices ? View.VISIBLE : View.GONE);
+                    if (mShowServices) {
+                        displayGattServices(
+                                mBluetoothLeService.getSupportedGattServices(mDeviceAddress));
+                    } else {
+                        mGattServicesList.setAdapter((SimpleExpandableListAdapter) null);
+                    }
+                    return true;
                 case R.id.menu_home:
                     //go back to home screen
-                    mBluetoothLeService.disconnect();
+                    mBluetoothLeService.stopAcquisition(mDeviceAddress);
                     Intent intent = new Intent(this, MainScreen.class);
                     startActivity(intent);
             }
@@ -417,7 +604,7 @@ public class DeviceControlActivity extends Activity {
 
     /** Demonstrates how to iterate through the supported GATT Services/Characteristics.
      * In this sample, we populate the data structure that is bound to the ExpandableListView
-     * on the UI.
+     * on the UI. Only used by the services browser of debug builds.
      * @param gattServices list of GATT services that the device offers
      */
     private void displayGattServices(List<BluetoothGattService> gattServices) {
@@ -480,120 +667,10 @@ public class DeviceControlActivity extends Activity {
         final IntentFilter intentFilter = new IntentFilter();
         intentFilter.addAction(BluetoothLeService.ACTION_GATT_CONNECTED);
         intentFilter.addAction(BluetoothLeService.ACTION_GATT_DISCONNECTED);
+        intentFilter.addAction(BluetoothLeService.ACTION_GATT_RECONNECTING);
         intentFilter.addAction(BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED);
         intentFilter.addAction(BluetoothLeService.ACTION_DATA_AVAILABLE);
         return intentFilter;
     }
 
-
-    /**
-     * Thread to plot and save filtered ECG data in real time
-     *
-     */
-    /*
-    public class DataPlotAndSave implements Runnable {
-
-        @Override
-        public void run() {
-
-            BluetoothGattCharacteristic characteristic;
-            int charaProp;
-            SimpleDateFormat sdfDate = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
-            sdfDate.setTimeZone(TimeZone.getDefault());
-
-            samples_collected = 0; //initialize data buffer counter to 0
-
-            //wait for list of device's GATT characteristics to be built
-            while(!mConnected || mGattCharacteristics == null || mGattCharacteristics.size() != 3){;}
-
-            //grab RFduino's 3rd service and 1st characteristic (BLE READ/NOTIFY)
-            if(mConnected && mGattCharacteristics != null && mGattCharacteristics.size() == 3){
-                characteristic = mGattCharacteristics.get(2).get(0);
-
-                //if notifications have not yet been enabled, turn them on
-                charaProp = characteristic.getProperties();
-                if ((charaProp | BluetoothGattCharacteristic.PROPERTY_NOTIFY) > 0) {
-                    mBluetoothLeService.setCharacteristicNotification(characteristic,true);
-                    Log.v(TAG, "Thread has enabled notifications");
-                }
-            }
-
-            //as long as the device is connected,
-            //filter, plot and save the values
-            while(mConnected) {
-
-                //once buffer is full, start filtering
-                //after filtering, plot and save
-                //then clear buffer
-                //if(angelDataValues.size() > 0){
-
-                /***********************************************************************
-                 *
-                 * Filter using ecgVoltageDataValues ArrayList
-                 * Return ecgFilteredDataValues with filtered data
-                 *
-                 **********************************************************************/
-//                	 filter();
-
-    /***********************************************************************
-     *
-     * Write filtered values and a time stamp to the file and then plot
-     *
-     **********************************************************************/
-    /*
-                try{
-                    //put ecg file in Android/data/com.ecgshirt
-                    File traceFile = new File(mContext.getExternalFilesDir(null), "ecg2.txt");
-                    //if the file does not already exist, create it
-                    if (!traceFile.exists()){
-                        traceFile.createNewFile();
-                    }
-
-                    Date now;
-                    String strDate;
-                    BufferedWriter ecgVoltageFileWriter = new BufferedWriter(new FileWriter(traceFile, true /*append*///));
-
-    //plot and save the filtered data
-    //for(int i = 0; i < HISTORY_SIZE; i++){
-
-    //for (int i = 0; i < angelDataValues.size(); i++){
-    //String f = angelDataValues.get(i);
-//
-
-    //time stamp has format: "yyyy-MM-dd HH:mm:ss.SSS"
- /*                   now = new Date(currentTime);
-                    strDate = sdfDate.format(now);
-                    if (!angelDataValues.equals(null)) {
-                        String f = angelDataValues.get(0);
-                        //write time stamp and filtered value to file
-                        ecgVoltageFileWriter.write(strDate + ", " + "f" + "\n");
-                    }
-
-
-                    currentTime += 1000; //increment time stamp by 1000 ms
-                    //}
-
-
-                    ecgVoltageFileWriter.close(); // close file writer
-
-                } catch (Exception e){
-                    Log.e(TAG, "ERROR with file manipulation or plotting!\n" + e.getMessage());
-                }
-
-                //clear ArrayLists
-                //note that we don't actually lose any data!
-//				    ecgFilteredDataValues.clear();
-                ecgDataValues.clear();
-                //mySimpleXYPlot.redraw(); //plot the new values
-                samples_collected = 0; //reset buffer counter
-
-                // }else if (angelDataValues.size() == 0){
-
-                //}
-            }
-
-        }
-    } */
-
 }
-
@@ -26,7 +26,6 @@ import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.ParcelUuid;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -38,6 +37,7 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
 /**
@@ -46,7 +46,7 @@ import java.util.UUID;
 public class DeviceScanActivity extends ListActivity {
     private LeDeviceListAdapter mLeDeviceListAdapter;
     private BluetoothAdapter mBluetoothAdapter;
-    private boolean mScanning;
+    private DeviceScanner mScanner;
     private Handler mHandler;
 
     private static final int REQUEST_ENABLE_BT = 1;
@@ -79,12 +79,14 @@ public class DeviceScanActivity extends ListActivity {
             finish();
             return;
         }
+        mScanner = new DeviceScanner(mBluetoothAdapter,
+                UUID.fromString(SampleGattAttributes.ECG_INFO_VOLTAGE_SERVICE), mScanListener);
     }
 
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.main, menu);
-        if (!mScanning) {
+        if (!mScanner.isScanning()) {
             menu.findItem(R.id.menu_stop).setVisible(false);
             menu.findItem(R.id.menu_scan).setVisible(true);
             menu.findItem(R.id.menu_refresh).setActionView(null);
@@ -101,7 +103,6 @@ public class DeviceScanActivity extends ListActivity {
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
             case R.id.menu_scan:
-                mLeDeviceListAdapter.clear();
                 scanLeDevice(true);
                 break;
             case R.id.menu_stop:
@@ -144,72 +145,63 @@ public class DeviceScanActivity extends ListActivity {
     protected void onPause() {
         super.onPause();
         scanLeDevice(false);
-        mLeDeviceListAdapter.clear();
+        mScanner.clear();
     }
 
     @Override
     protected void onListItemClick(ListView l, View v, int position, long id) {
-        final BluetoothDevice device = mLeDeviceListAdapter.getDevice(position);
-        if (device == null) return;
+        final DeviceScanner.ScannedDevice scanned = mLeDeviceListAdapter.getDevice(position);
+        if (scanned == null) return;
+        final BluetoothDevice device = scanned.getDevice();
         final Intent intent = new Intent(this, DeviceControlActivity.class);
         intent.putExtra("EXTRAS_DEVICE_NAME", device.getName());
         intent.putExtra("EXTRAS_DEVICE_ADDRESS", device.getAddress());
         //ParcelUuid[] parcels = device.getUuids(); // for some reason, this is null????
         //String uuids = device.getUuids().toString();
         //intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_UUID, device.getUuids()[0].getUuid().toString());
-        if (mScanning) {
-            mBluetoothAdapter.stopLeScan(mLeScanCallback);
-            mScanning = false;
-        }
+        scanLeDevice(false);
         startActivity(intent);
     }
 
+    // Stops scanning after a pre-defined scan period.
+    private final Runnable mStopScan = new Runnable() {
+        @Override
+        public void run() {
+            scanLeDevice(false);
+        }
+    };
+
     private void scanLeDevice(final boolean enable) {
+        mHandler.removeCallbacks(mStopScan);
         if (enable) {
-            // Stops scanning after a pre-defined scan period.
-            mHandler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    mScanning = false;
-                    mBluetoothAdapter.stopLeScan(mLeScanCallback);
-                    invalidateOptionsMenu();
-                }
-            }, SCAN_PERIOD);
-
-            mScanning = true;
-            mBluetoothAdapter.startLeScan(mLeScanCallback);
+            mHandler.postDelayed(mStopScan, SCAN_PERIOD);
+            mScanner.start();
         } else {
-            mScanning = false;
-            mBluetoothAdapter.stopLeScan(mLeScanCallback);
+            mScanner.stop();
         }
         invalidateOptionsMenu();
     }
 
     // Adapter for holding devices found through scanning.
     private class LeDeviceListAdapter extends BaseAdapter {
-        private ArrayList<BluetoothDevice> mLeDevices;
+        private List<DeviceScanner.ScannedDevice> mLeDevices;
         private LayoutInflater mInflator;
 
         public LeDeviceListAdapter() {
             super();
-            mLeDevices = new ArrayList<BluetoothDevice>();
+            mLeDevices = new ArrayList<DeviceScanner.ScannedDevice>();
             mInflator = DeviceScanActivity.this.getLayoutInflater();
         }
 
-        public void addDevice(BluetoothDevice device) {
-            if(!mLeDevices.contains(device)) {
-                mLeDevices.add(device);
-            }
+        public void setDevices(List<DeviceScanner.ScannedDevice> devices) {
+            mLeDevices = devices;
+            notifyDataSetChanged();
         }
 
-        public BluetoothDevice getDevice(int position) {
+        public DeviceScanner.ScannedDevice getDevice(int position) {
             return mLeDevices.get(position);
         }
 
-        public void clear() {
-            mLeDevices.clear();
-        }
-
         @Override
         public int getCount() {
             return mLeDevices.size();
@@ -234,42 +226,37 @@ public class DeviceScanActivity extends ListActivity {
                 viewHolder = new ViewHolder();
                 viewHolder.deviceAddress = (TextView) view.findViewById(R.id.device_address);
                 viewHolder.deviceName = (TextView) view.findViewById(R.id.device_name);
+                viewHolder.deviceRssi = (TextView) view.findViewById(R.id.device_rssi);
                 view.setTag(viewHolder);
             } else {
                 viewHolder = (ViewHolder) view.getTag();
             }
 
-            BluetoothDevice device = mLeDevices.get(i);
+            DeviceScanner.ScannedDevice device = mLeDevices.get(i);
             final String deviceName = device.getName();
             if (deviceName != null && deviceName.length() > 0)
                 viewHolder.deviceName.setText(deviceName);
             else
                 viewHolder.deviceName.setText(R.string.unknown_device);
-            viewHolder.deviceAddress.setText(device.getAddress());
+            viewHolder.deviceAddress.setText(device.getDevice().getAddress());
+            viewHolder.deviceRssi.setText(getString(R.string.rssi_format, device.getRssi()));
 
             return view;
         }
     }
 
-    // Device scan callback.
-    private BluetoothAdapter.LeScanCallback mLeScanCallback =
-            new BluetoothAdapter.LeScanCallback() {
-
-                @Override
-                public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
-                    runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            mLeDeviceListAdapter.addDevice(device);
-                            mLeDeviceListAdapter.notifyDataSetChanged();
-                        }
-                    });
-                }
-            };
+    // Device scan results, in batches on the main thread.
+    private final DeviceScanner.Listener mScanListener = new DeviceScanner.Listener() {
+        @Override
+        public void onDevicesChanged(List<DeviceScanner.ScannedDevice> devices) {
+            if (mLeDeviceListAdapter != null) mLeDeviceListAdapter.setDevices(devices);
+        }
+    };
 
     static class ViewHolder {
         TextView deviceName;
         TextView deviceAddress;
+        TextView deviceRssi;
     }
 
 
@@ -0,0 +1,212 @@
+package com.ecgshirt;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Scans for devices advertising a service and reports them to the main thread in
+ * batches, strongest signal first.
+ *
+ * Advertisements arrive on a binder thread, many times a second per device. Each
+ * device's scan record is parsed once, the first time it is seen, to find whether it
+ * advertises the service; after that an advertisement only costs a hash lookup and,
+ * for matching devices, an update of the smoothed RSSI. Other devices are remembered as
+ * not matching and otherwise ignored. The list is handed to the {@link Listener} at
+ * most once per {@link #UPDATE_INTERVAL_MS}, and only when something changed.
+ */
+final class DeviceScanner {
+
+    /** Minimum time between two updates of the list. */
+    static final long UPDATE_INTERVAL_MS = 500;
+
+    /* Weight of a new RSSI reading in the smoothed value */
+    private static final float RSSI_SMOOTHING = 0.25f;
+
+    interface Listener {
+        /**
+         * Called on the main thread with every matching device found since the scan
+         * started, strongest signal first.
+         */
+        void onDevicesChanged(List<ScannedDevice> devices);
+    }
+
+    /**
+     * A device found by the scan, as it was when the list was handed out.
+     */
+    static final class ScannedDevice {
+        private final BluetoothDevice mDevice;
+        private final String mName;
+        private final int mRssi;
+
+        private ScannedDevice(BluetoothDevice device, String name, int rssi) {
+            mDevice = device;
+            mName = name;
+            mRssi = rssi;
+        }
+
+        BluetoothDevice getDevice() {
+            return mDevice;
+        }
+
+        /**
+         * @return The advertised name, or the cached one if it advertises none; may be null.
+         */
+        String getName() {
+            return mName;
+        }
+
+        /**
+         * @return Smoothed signal strength, in dBm.
+         */
+        int getRssi() {
+            return mRssi;
+        }
+    }
+
+    // What is known of an address seen during the scan; guarded by mDevices.
+    private static final class Entry {
+        final BluetoothDevice mDevice;
+        final boolean mMatches;
+        final String mName;
+        float mRssi;
+
+        Entry(BluetoothDevice device, boolean matches, String name, int rssi) {
+            mDevice = device;
+            mMatches = matches;
+            mName = name;
+            mRssi = rssi;
+        }
+    }
+
+    private static final Comparator<ScannedDevice> BY_RSSI = new Comparator<ScannedDevice>() {
+        @Override
+        public int compare(ScannedDevice a, ScannedDevice b) {
+            return b.mRssi < a.mRssi ? -1 : (b.mRssi == a.mRssi ? 0 : 1);
+        }
+    };
+
+    private final BluetoothAdapter mAdapter;
+    private final UUID mService;
+    private final Listener mListener;
+    private final Handler mHandler = new Handler();
+
+    /* Every address seen since the scan started */
+    private final Map<String, Entry> mDevices = new HashMap<String, Entry>();
+
+    /* Whether the list changed since it was last handed out, and an update is posted;
+       guarded by mDevices */
+    private boolean mChanged;
+    private boolean mUpdatePosted;
+    private long mUpdatedAt;
+
+    private boolean mScanning;
+
+    private final BluetoothAdapter.LeScanCallback mScanCallback =
+            new BluetoothAdapter.LeScanCallback() {
+                @Override
+                public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+                    onAdvertisement(device, rssi, scanRecord);
+                }
+            };
+
+    private final Runnable mUpdate = new Runnable() {
+        @Override
+        public void run() {
+            final List<ScannedDevice> devices;
+            synchronized (mDevices) {
+                mUpdatePosted = false;
+                if (!mChanged) return;
+                mChanged = false;
+                mUpdatedAt = SystemClock.elapsedRealtime();
+                devices = new ArrayList<ScannedDevice>();
+                for (Entry entry : mDevices.values()) {
+                    if (!entry.mMatches) continue;
+                    devices.add(new ScannedDevice(entry.mDevice, entry.mName,
+                            Math.round(entry.mRssi)));
+                }
+            }
+            Collections.sort(devices, BY_RSSI);
+            mListener.onDevicesChanged(devices);
+        }
+    };
+
+    /**
+     * Must be created on the main thread, where the listener is called.
+     *
+     * @param service only devices advertising this service are reported.
+     */
+    DeviceScanner(BluetoothAdapter adapter, UUID service, Listener listener) {
+        mAdapter = adapter;
+        mService = service;
+        mListener = listener;
+    }
+
+    /**
+     * Starts scanning, forgetting the devices found by any earlier scan.
+     */
+    void start() {
+        if (mScanning) return;
+        clear();
+        mScanning = true;
+        mAdapter.startLeScan(mScanCallback);
+    }
+
+    void stop() {
+        if (!mScanning) return;
+        mScanning = false;
+        mAdapter.stopLeScan(mScanCallback);
+    }
+
+    boolean isScanning() {
+        return mScanning;
+    }
+
+    /**
+     * Forgets the devices found; the listener gets an empty list.
+     */
+    void clear() {
+        synchronized (mDevices) {
+            mDevices.clear();
+            mChanged = true;
+        }
+        mHandler.removeCallbacks(mUpdate);
+        mUpdate.run();
+    }
+
+    // Called on a binder thread for every advertisement received.
+    private void onAdvertisement(BluetoothDevice device, int rssi, byte[] scanRecord) {
+        final String address = device.getAddress();
+        synchronized (mDevices) {
+            final Entry entry = mDevices.get(address);
+            if (entry != null) {
+                if (!entry.mMatches) return;
+                final float smoothed = entry.mRssi + RSSI_SMOOTHING * (rssi - entry.mRssi);
+                // Only a change in the rounded value shows in the list
+                if (Math.round(smoothed) != Math.round(entry.mRssi)) mChanged = true;
+                entry.mRssi = smoothed;
+            } else {
+                final AdvertisementData data = AdvertisementData.parse(scanRecord);
+                final boolean matches = data.hasService(mService);
+                final String name = data.getLocalName() != null
+                        ? data.getLocalName() : (matches ? device.getName() : null);
+                mDevices.put(address, new Entry(device, matches, name, rssi));
+                if (!matches) return;
+                mChanged = true;
+            }
+            if (!mChanged || mUpdatePosted) return;
+            mUpdatePosted = true;
+            final long wait = mUpdatedAt + UPDATE_INTERVAL_MS - SystemClock.elapsedRealtime();
+            mHandler.postDelayed(mUpdate, Math.max(0, wait));
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.ecgshirt;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Diagnostic logging for the data path.
+ *
+ * Tracing is switched by {@link #TRACE}, a compile-time constant set per build type in
+ * build.gradle: guard every trace with {@code if (Diagnostics.TRACE)} and release builds
+ * do not contain the call, nor the string concatenation that builds its message.
+ *
+ * Events too frequent to log one by one, such as notifications, go through a
+ * {@link SampledLog}, which counts them and logs the count at most once per interval.
+ */
+final class Diagnostics {
+
+    /** Whether tracing is compiled in; false in release builds. */
+    static final boolean TRACE = BuildConfig.TRACE;
+
+    private Diagnostics() {
+    }
+
+    /**
+     * Logs a debug message, see {@link #TRACE}.
+     */
+    static void trace(String tag, String message) {
+        Log.d(tag, message);
+    }
+
+    /**
+     * Counts a recurring event and logs how often it happened, at most once per interval.
+     * Counting is a few arithmetic operations, nothing is formatted or logged in between.
+     * Each instance must only be used from one thread.
+     */
+    static final class SampledLog {
+        private final String mTag;
+        private final String mEvent;
+        private final long mIntervalMillis;
+
+        private long mCount;
+        private long mLoggedAt = SystemClock.elapsedRealtime();
+
+        /**
+         * @param event what is counted, in the plural, for example "notifications".
+         */
+        SampledLog(String tag, String event, long intervalMillis) {
+            mTag = tag;
+            mEvent = event;
+            mIntervalMillis = intervalMillis;
+        }
+
+        /**
+         * Counts one event, and logs the count if the interval has passed since the
+         * last log.
+         *
+         * @param detail appended to the logged line, for example the device address.
+         */
+        void event(String detail) {
+            mCount++;
+            final long now = SystemClock.elapsedRealtime();
+            final long elapsed = now - mLoggedAt;
+            if (elapsed < mIntervalMillis) return;
+            Log.d(mTag, mCount + " " + mEvent + " in " + elapsed + " ms " + detail);
+            mCount = 0;
+            mLoggedAt = now;
+        }
+    }
+}
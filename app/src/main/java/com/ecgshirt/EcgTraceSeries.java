@@ -0,0 +1,221 @@
+package com.ecgshirt;
+
+import android.graphics.Canvas;
+
+import com.androidplot.Plot;
+import com.androidplot.PlotListener;
+import com.androidplot.xy.XYSeries;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Scrolling ECG trace for an {@link com.androidplot.xy.XYPlot}.
+ *
+ * Samples are kept in a circular float history, and every {@link #update()} reduces
+ * the visible window to a min/max envelope with one entry per pixel column. The plot
+ * draws two points per column (the column's minimum and maximum), so the cost of a
+ * redraw depends on the width of the plot and not on how many seconds of trace are
+ * shown or on the sample rate.
+ *
+ * The series must be registered as a listener of the plot it is drawn by
+ * ({@link com.androidplot.Plot#addListener}): the envelope is locked while the plot
+ * renders it on its background thread, and an update that would have to wait for the
+ * render is skipped instead. {@link #append}, {@link #update()} and the setters must
+ * be called from one thread, normally the UI thread.
+ *
+ * X values are in seconds from the left edge of the window, Y values are whatever was
+ * appended (filtered volts). Gaps in the stream take their time in the window, with no
+ * points in their columns.
+ */
+public final class EcgTraceSeries implements XYSeries, PlotListener {
+
+    private final String mTitle;
+    private final double mSampleRate;
+
+    /* Circular history of appended samples */
+    private final float[] mHistory;
+
+    /* Number of samples appended so far */
+    private long mSampleCount;
+
+    /* Number of samples in the visible window */
+    private int mWindow;
+
+    /* Number of columns the window is reduced to */
+    private int mColumns;
+
+    /* Envelope drawn by the plot, guarded by mDrawLock: the minimum and maximum of
+       each column with data, interleaved, and the X value of every column */
+    private final ReentrantLock mDrawLock = new ReentrantLock();
+    private float[] mEnvelope = new float[0];
+    private Float[] mColumnX = new Float[0];
+    private int[] mPointColumn = new int[0];
+    private int mPointCount;
+
+    /* Window that the values in mColumnX were computed for */
+    private int mColumnXWindow;
+
+    /**
+     * @param title title shown in the plot's legend.
+     * @param sampleRate sample rate of the appended samples, in Hz.
+     * @param maxSeconds longest window that can be shown.
+     */
+    public EcgTraceSeries(String title, double sampleRate, double maxSeconds) {
+        mTitle = title;
+        mSampleRate = sampleRate;
+        mHistory = new float[(int) Math.ceil(sampleRate * maxSeconds)];
+        mWindow = mHistory.length;
+        setColumns(1);
+    }
+
+    @Override
+    public String getTitle() {
+        return mTitle;
+    }
+
+    /**
+     * Adds samples to the end of the trace. They are shown by the next {@link #update()}.
+     */
+    public void append(float[] values, int offset, int length) {
+        final int capacity = mHistory.length;
+        if (length > capacity) {
+            offset += length - capacity;
+            mSampleCount += length - capacity;
+            length = capacity;
+        }
+        int position = (int) (mSampleCount % capacity);
+        while (length > 0) {
+            final int n = Math.min(length, capacity - position);
+            System.arraycopy(values, offset, mHistory, position, n);
+            offset += n;
+            length -= n;
+            mSampleCount += n;
+            position = 0;
+        }
+    }
+
+    /**
+     * Adds a break in the trace for samples missing from the stream, so the samples after
+     * it are shown where they belong in time.
+     */
+    public void appendGap(long length) {
+        final int capacity = mHistory.length;
+        if (length > capacity) {
+            mSampleCount += length - capacity;
+            length = capacity;
+        }
+        int position = (int) (mSampleCount % capacity);
+        for (long i = 0; i < length; i++) {
+            mHistory[position] = Float.NaN;
+            if (++position == capacity) position = 0;
+        }
+        mSampleCount += length;
+    }
+
+    /**
+     * Sets how many seconds of trace are shown, at most the {@code maxSeconds} given to
+     * the constructor.
+     */
+    public void setWindow(double seconds) {
+        mWindow = Math.max(1, Math.min(mHistory.length, (int) Math.round(seconds * mSampleRate)));
+    }
+
+    /** Number of seconds of trace shown. */
+    public double getWindow() {
+        return mWindow / mSampleRate;
+    }
+
+    /**
+     * Sets how many columns the window is reduced to, normally the width of the plot's
+     * grid in pixels. Takes effect on the next {@link #update()}.
+     */
+    public void setColumns(int columns) {
+        mColumns = Math.max(1, columns);
+    }
+
+    /**
+     * Recomputes the envelope from the history.
+     *
+     * @return False if the plot was rendering and the envelope was left unchanged; the
+     *         next update will include the samples appended since.
+     */
+    public boolean update() {
+        if (!mDrawLock.tryLock()) {
+            return false;
+        }
+        try {
+            final int columns = mColumns;
+            if (mColumnX.length != columns) {
+                mEnvelope = new float[2 * columns];
+                mPointColumn = new int[2 * columns];
+                mColumnX = new Float[columns];
+                mColumnXWindow = 0;
+            }
+            if (mColumnXWindow != mWindow) {
+                // X values only change with the layout or the zoom, so they are boxed
+                // once here rather than on every getX()
+                for (int c = 0; c < columns; c++) {
+                    mColumnX[c] = (float) (c * (mWindow / mSampleRate) / columns);
+                }
+                mColumnXWindow = mWindow;
+            }
+
+            // The window ends with the newest sample; columns before the first sample
+            // still in the history, and those entirely in a gap, are left empty
+            final int capacity = mHistory.length;
+            final long end = mSampleCount;
+            final long start = end - mWindow;
+            final long oldest = Math.max(0, end - capacity);
+            int points = 0;
+            for (int c = 0; c < columns; c++) {
+                final long from = Math.max(oldest, start + (long) c * mWindow / columns);
+                final long to = start + (long) (c + 1) * mWindow / columns;
+                if (from >= to) continue;
+                int position = (int) (from % capacity);
+                // Gap samples are NaN, which no comparison lets in
+                float min = Float.POSITIVE_INFINITY;
+                float max = Float.NEGATIVE_INFINITY;
+                for (long i = from; i < to; i++) {
+                    final float value = mHistory[position];
+                    if (value < min) min = value;
+                    if (value > max) max = value;
+                    if (++position == capacity) position = 0;
+                }
+                if (min > max) continue;
+                mEnvelope[points] = min;
+                mPointColumn[points++] = c;
+                mEnvelope[points] = max;
+                mPointColumn[points++] = c;
+            }
+            mPointCount = points;
+            return true;
+        } finally {
+            mDrawLock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        return mPointCount;
+    }
+
+    @Override
+    public Number getX(int index) {
+        return mColumnX[mPointColumn[index]];
+    }
+
+    @Override
+    public Number getY(int index) {
+        return mEnvelope[index];
+    }
+
+    @Override
+    public void onBeforeDraw(Plot source, Canvas canvas) {
+        mDrawLock.lock();
+    }
+
+    @Override
+    public void onAfterDraw(Plot source, Canvas canvas) {
+        mDrawLock.unlock();
+    }
+}
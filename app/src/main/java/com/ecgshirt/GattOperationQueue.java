@@ -0,0 +1,301 @@
+package com.ecgshirt;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+
+/**
+ * Runs GATT operations one at a time.
+ *
+ * Android accepts a single outstanding GATT operation per connection and rejects (or
+ * silently loses) anything issued before the previous operation's callback, so
+ * subscribing to several characteristics back to back only subscribes to the first.
+ * Operations are queued here instead and started one after the other as the
+ * {@link android.bluetooth.BluetoothGattCallback} reports each one complete; the
+ * callback must forward those reports to {@link #onDescriptorWrite} and
+ * {@link #onCharacteristicRead}.
+ *
+ * An operation that fails, is refused, or gets no answer within {@link #TIMEOUT_MILLIS}
+ * is retried up to {@link #MAX_ATTEMPTS} times before it is given up on. A write to a
+ * descriptor that already has a write waiting replaces that write's value, and a read
+ * of a characteristic already waiting to be read is dropped, so repeated requests
+ * coalesce into one radio round trip.
+ *
+ * Latency (from enqueueing to completion) is logged per operation and summed in the
+ * counters. Safe to use from any thread; timeouts run on the main thread.
+ */
+public final class GattOperationQueue {
+    private final static String TAG = GattOperationQueue.class.getSimpleName();
+
+    /** Time an operation is given to complete before it is retried. */
+    public static final long TIMEOUT_MILLIS = 2000;
+
+    /** Number of times an operation is tried before it is given up on. */
+    public static final int MAX_ATTEMPTS = 3;
+
+    /* Delay before retrying an operation the stack refused, typically because it was
+       still busy with an operation of its own */
+    private static final long REFUSED_RETRY_MILLIS = 50;
+
+    /**
+     * One GATT request and the callback that completes it.
+     */
+    private static abstract class Operation {
+        final long mQueuedAt = System.nanoTime();
+        int mAttempts;
+
+        /** @return false if the stack refused the request. */
+        abstract boolean start(GattSource source);
+
+        /** @return Whether a pending operation makes this one redundant. */
+        abstract boolean mergeInto(Operation pending);
+    }
+
+    private static final class DescriptorWrite extends Operation {
+        final BluetoothGattDescriptor mDescriptor;
+        byte[] mValue;
+
+        DescriptorWrite(BluetoothGattDescriptor descriptor, byte[] value) {
+            mDescriptor = descriptor;
+            mValue = value;
+        }
+
+        @Override
+        boolean start(GattSource source) {
+            // Set when started, as the descriptor object is shared with later writes
+            mDescriptor.setValue(mValue);
+            return source.writeDescriptor(mDescriptor);
+        }
+
+        @Override
+        boolean mergeInto(Operation pending) {
+            if (!(pending instanceof DescriptorWrite)
+                    || ((DescriptorWrite) pending).mDescriptor != mDescriptor) return false;
+            ((DescriptorWrite) pending).mValue = mValue;
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return "write " + mDescriptor.getUuid();
+        }
+    }
+
+    private static final class CharacteristicRead extends Operation {
+        final BluetoothGattCharacteristic mCharacteristic;
+
+        CharacteristicRead(BluetoothGattCharacteristic characteristic) {
+            mCharacteristic = characteristic;
+        }
+
+        @Override
+        boolean start(GattSource source) {
+            return source.readCharacteristic(mCharacteristic);
+        }
+
+        @Override
+        boolean mergeInto(Operation pending) {
+            return pending instanceof CharacteristicRead
+                    && ((CharacteristicRead) pending).mCharacteristic == mCharacteristic;
+        }
+
+        @Override
+        public String toString() {
+            return "read " + mCharacteristic.getUuid();
+        }
+    }
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ArrayDeque<Operation> mPending = new ArrayDeque<Operation>();
+
+    private GattSource mSource;
+
+    /* Operation waiting for its callback, null if none */
+    private Operation mCurrent;
+
+    /* Statistics since the last resetCounters() */
+    private long mCompleted;
+    private long mFailed;
+    private long mRetries;
+    private long mTotalLatency;
+    private long mMaxLatency;
+
+    private final Runnable mTimeout = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (GattOperationQueue.this) {
+                if (mCurrent == null) return;
+                Log.w(TAG, mCurrent + " timed out");
+                retry(mCurrent, 0);
+            }
+        }
+    };
+
+    private final Runnable mRestart = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (GattOperationQueue.this) {
+                if (mCurrent != null) startCurrent();
+            }
+        }
+    };
+
+    /**
+     * Sets the connection operations run on, dropping whatever was queued for the
+     * previous one.
+     *
+     * @param source null when disconnected.
+     */
+    public synchronized void setSource(GattSource source) {
+        clear();
+        mSource = source;
+    }
+
+    /**
+     * Drops all queued operations, for example on disconnect, when none of them can
+     * complete any more.
+     */
+    public synchronized void clear() {
+        if (mCurrent != null || !mPending.isEmpty()) {
+            Log.d(TAG, "Dropping " + (mPending.size() + (mCurrent != null ? 1 : 0))
+                    + " operations");
+        }
+        mHandler.removeCallbacks(mTimeout);
+        mHandler.removeCallbacks(mRestart);
+        mCurrent = null;
+        mPending.clear();
+    }
+
+    /**
+     * Queues a write of the given value to a descriptor; completes in
+     * {@link android.bluetooth.BluetoothGattCallback#onDescriptorWrite}.
+     */
+    public void writeDescriptor(BluetoothGattDescriptor descriptor, byte[] value) {
+        enqueue(new DescriptorWrite(descriptor, value));
+    }
+
+    /**
+     * Queues a read of a characteristic; completes in
+     * {@link android.bluetooth.BluetoothGattCallback#onCharacteristicRead}.
+     */
+    public void readCharacteristic(BluetoothGattCharacteristic characteristic) {
+        enqueue(new CharacteristicRead(characteristic));
+    }
+
+    private synchronized void enqueue(Operation operation) {
+        if (mSource == null) {
+            Log.w(TAG, "Not connected, dropping " + operation);
+            return;
+        }
+        for (Operation pending : mPending) {
+            if (operation.mergeInto(pending)) return;
+        }
+        mPending.add(operation);
+        if (mCurrent == null) next();
+    }
+
+    /** Forwarded from {@link android.bluetooth.BluetoothGattCallback#onDescriptorWrite}. */
+    public synchronized void onDescriptorWrite(BluetoothGattDescriptor descriptor, int status) {
+        if (mCurrent instanceof DescriptorWrite
+                && ((DescriptorWrite) mCurrent).mDescriptor == descriptor) {
+            complete(status);
+        }
+    }
+
+    /** Forwarded from {@link android.bluetooth.BluetoothGattCallback#onCharacteristicRead}. */
+    public synchronized void onCharacteristicRead(BluetoothGattCharacteristic characteristic,
+                                                  int status) {
+        if (mCurrent instanceof CharacteristicRead
+                && ((CharacteristicRead) mCurrent).mCharacteristic == characteristic) {
+            complete(status);
+        }
+    }
+
+    private void next() {
+        mCurrent = mPending.poll();
+        if (mCurrent != null) startCurrent();
+    }
+
+    private void startCurrent() {
+        final Operation operation = mCurrent;
+        operation.mAttempts++;
+        if (!operation.start(mSource)) {
+            retry(operation, REFUSED_RETRY_MILLIS);
+            return;
+        }
+        mHandler.postDelayed(mTimeout, TIMEOUT_MILLIS);
+    }
+
+    private void retry(Operation operation, long delayMillis) {
+        mHandler.removeCallbacks(mTimeout);
+        if (operation.mAttempts >= MAX_ATTEMPTS) {
+            Log.e(TAG, "Giving up on " + operation + " after " + operation.mAttempts + " attempts");
+            mFailed++;
+            next();
+            return;
+        }
+        mRetries++;
+        if (delayMillis > 0) {
+            mHandler.postDelayed(mRestart, delayMillis);
+        } else {
+            startCurrent();
+        }
+    }
+
+    private void complete(int status) {
+        final Operation operation = mCurrent;
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            Log.w(TAG, operation + " failed with status " + status);
+            retry(operation, 0);
+            return;
+        }
+        mHandler.removeCallbacks(mTimeout);
+        final long latency = System.nanoTime() - operation.mQueuedAt;
+        mCompleted++;
+        mTotalLatency += latency;
+        if (latency > mMaxLatency) mMaxLatency = latency;
+        if (Diagnostics.TRACE) {
+            Diagnostics.trace(TAG, operation + " took " + latency / 1000000 + " ms, "
+                    + operation.mAttempts + " attempts");
+        }
+        next();
+    }
+
+    /** Number of operations that completed successfully. */
+    public synchronized long getCompleted() {
+        return mCompleted;
+    }
+
+    /** Number of operations given up on after {@link #MAX_ATTEMPTS} attempts. */
+    public synchronized long getFailed() {
+        return mFailed;
+    }
+
+    /** Number of attempts made beyond the first, over all operations. */
+    public synchronized long getRetries() {
+        return mRetries;
+    }
+
+    /** Mean time from enqueueing to completion of successful operations, in ns. */
+    public synchronized long getMeanLatencyNanos() {
+        return mCompleted > 0 ? mTotalLatency / mCompleted : 0;
+    }
+
+    /** Longest time from enqueueing to completion of a successful operation, in ns. */
+    public synchronized long getMaxLatencyNanos() {
+        return mMaxLatency;
+    }
+
+    public synchronized void resetCounters() {
+        mCompleted = 0;
+        mFailed = 0;
+        mRetries = 0;
+        mTotalLatency = 0;
+        mMaxLatency = 0;
+    }
+}
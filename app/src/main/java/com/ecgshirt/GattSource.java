@@ -0,0 +1,69 @@
+package com.ecgshirt;
+
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+
+import java.util.List;
+
+/**
+ * The GATT connection {@link BluetoothLeService} works with: either a real
+ * {@link android.bluetooth.BluetoothGatt} ({@link BluetoothGattSource}) or a simulated
+ * shirt ({@link ReplayGattSource}).
+ *
+ * Methods mirror the ones of BluetoothGatt, and results are reported to the
+ * {@link BluetoothGattCallback} the source was opened with. Simulated sources pass
+ * null as the callback's BluetoothGatt argument, so callbacks must not use it.
+ */
+public interface GattSource {
+
+    /**
+     * Opens connections.
+     */
+    interface Factory {
+        /**
+         * Starts connecting to a device.
+         *
+         * @return The connection, or null if there is no device with that address or
+         *         the connection could not be started.
+         */
+        GattSource connect(Context context, String address, BluetoothGattCallback callback);
+    }
+
+    /** Reconnects after a disconnect. */
+    boolean connect();
+
+    void disconnect();
+
+    /** Disconnects and releases the connection; it cannot be used afterwards. */
+    void close();
+
+    /**
+     * Asks for a larger ATT MTU, so notifications can carry more than 20 bytes. The
+     * result is reported to {@link BluetoothGattCallback#onMtuChanged}.
+     *
+     * @return false if the request was not made, e.g. before Android 5.0.
+     */
+    boolean requestMtu(int mtu);
+
+    /**
+     * Asks for a connection interval, one of the BluetoothGatt.CONNECTION_PRIORITY_*
+     * constants.
+     *
+     * @return false if the request was not made, e.g. before Android 5.0.
+     */
+    boolean requestConnectionPriority(int priority);
+
+    boolean discoverServices();
+
+    List<BluetoothGattService> getServices();
+
+    boolean readCharacteristic(BluetoothGattCharacteristic characteristic);
+
+    boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
+                                          boolean enable);
+
+    boolean writeDescriptor(BluetoothGattDescriptor descriptor);
+}
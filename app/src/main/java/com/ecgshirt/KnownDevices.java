@@ -0,0 +1,95 @@
+package com.ecgshirt;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Devices acquired from before, kept across launches: the last one, so the app can
+ * connect to it straight away instead of scanning, and the characteristics subscribed to
+ * on each, so they are subscribed to again as soon as services are discovered.
+ *
+ * Android does not expose attribute handles, and caches them itself for bonded devices;
+ * what is kept here is which characteristic of which service was subscribed to.
+ */
+final class KnownDevices {
+
+    private static final String PREFERENCES = "known_devices";
+    private static final String KEY_LAST_ADDRESS = "last_address";
+    private static final String KEY_NAME = "name_";
+    private static final String KEY_SUBSCRIPTIONS = "subscriptions_";
+
+    /* Separates the service and characteristic UUIDs of a stored subscription */
+    private static final char SEPARATOR = '/';
+
+    private final SharedPreferences mPreferences;
+
+    KnownDevices(Context context) {
+        mPreferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return Address of the device last acquired from, null if none.
+     */
+    String getLastAddress() {
+        return mPreferences.getString(KEY_LAST_ADDRESS, null);
+    }
+
+    /**
+     * @return Name the device had when last acquired from, may be null.
+     */
+    String getName(String address) {
+        return mPreferences.getString(KEY_NAME + address, null);
+    }
+
+    /**
+     * Makes the device the one to connect to on the next launch.
+     *
+     * @param name may be null.
+     */
+    void remember(String address, String name) {
+        final SharedPreferences.Editor editor = mPreferences.edit()
+                .putString(KEY_LAST_ADDRESS, address);
+        if (name != null) editor.putString(KEY_NAME + address, name);
+        editor.apply();
+    }
+
+    /**
+     * @return Characteristics subscribed to on the device, mapped to their service;
+     *         empty if none are known.
+     */
+    Map<UUID, UUID> getSubscriptions(String address) {
+        final Map<UUID, UUID> subscriptions = new LinkedHashMap<UUID, UUID>();
+        final Set<String> stored = mPreferences.getStringSet(KEY_SUBSCRIPTIONS + address, null);
+        if (stored == null) return subscriptions;
+        for (String subscription : stored) {
+            final int separator = subscription.indexOf(SEPARATOR);
+            if (separator < 0) continue;
+            try {
+                subscriptions.put(UUID.fromString(subscription.substring(separator + 1)),
+                        UUID.fromString(subscription.substring(0, separator)));
+            } catch (IllegalArgumentException e) {
+                // Written by a different version, leave it out
+            }
+        }
+        return subscriptions;
+    }
+
+    /**
+     * Replaces the characteristics subscribed to on the device.
+     *
+     * @param subscriptions characteristics mapped to their service.
+     */
+    void setSubscriptions(String address, Map<UUID, UUID> subscriptions) {
+        final Set<String> stored = new HashSet<String>();
+        for (Map.Entry<UUID, UUID> subscription : subscriptions.entrySet()) {
+            stored.add(subscription.getValue().toString() + SEPARATOR + subscription.getKey());
+        }
+        mPreferences.edit().putStringSet(KEY_SUBSCRIPTIONS + address, stored).apply();
+    }
+}
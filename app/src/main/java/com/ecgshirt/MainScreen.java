@@ -32,7 +32,18 @@ public class MainScreen extends Activity {
         setContentView(R.layout.activity_main_screen);
         addListenerOnButton();
 
-
+        // When launched, go straight to the shirt used last time; the service connects to
+        // it directly, and scans for it only if it does not answer
+        if (savedInstanceState == null && Intent.ACTION_MAIN.equals(getIntent().getAction())) {
+            final KnownDevices knownDevices = new KnownDevices(this);
+            final String address = knownDevices.getLastAddress();
+            if (address != null) {
+                Intent intent = new Intent(this, DeviceControlActivity.class);
+                intent.putExtra("EXTRAS_DEVICE_NAME", knownDevices.getName(address));
+                intent.putExtra("EXTRAS_DEVICE_ADDRESS", address);
+                startActivity(intent);
+            }
+        }
 
     }
 
@@ -0,0 +1,104 @@
+package com.ecgshirt;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Appends a snapshot of the {@link DataPathMetrics} of every device acquired from to a
+ * text file at a fixed interval, one line per device: the service clock time, the
+ * address, and the rates and distributions since the previous line.
+ *
+ * The file is written on a thread of its own, so the main thread does no file I/O.
+ */
+final class MetricsSnapshotWriter {
+    private final static String TAG = MetricsSnapshotWriter.class.getSimpleName();
+
+    /** Time between snapshots. */
+    static final long INTERVAL_MS = 10000;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final BluetoothLeService mService;
+    private final File mFile;
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+
+    /* Last snapshot written of each device, only used on the writer thread */
+    private final Map<String, DataPathMetrics.Snapshot> mPrevious =
+            new HashMap<String, DataPathMetrics.Snapshot>();
+
+    private final Runnable mWrite = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                write();
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to write metrics to " + mFile + ", stopping", e);
+                return;
+            }
+            mHandler.postDelayed(this, INTERVAL_MS);
+        }
+    };
+
+    MetricsSnapshotWriter(BluetoothLeService service, File file) {
+        mService = service;
+        mFile = file;
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Starts writing snapshots, the first one after {@link #INTERVAL_MS}.
+     */
+    synchronized void start() {
+        if (mThread != null) return;
+        mThread = new HandlerThread("MetricsSnapshots");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mHandler.postDelayed(mWrite, INTERVAL_MS);
+    }
+
+    /**
+     * Stops writing snapshots; the file keeps what was written.
+     */
+    synchronized void stop() {
+        if (mThread == null) return;
+        mHandler.removeCallbacks(mWrite);
+        mThread.quit();
+        mThread = null;
+    }
+
+    private void write() throws IOException {
+        final BufferedWriter writer = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(mFile, true), ASCII));
+        try {
+            final long time = mService.clockMillis();
+            for (DeviceConnection connection : mService.getConnections()) {
+                if (!connection.isAcquiring()) continue;
+                final DataPathMetrics.Snapshot snapshot = connection.snapshotMetrics();
+                writer.write(Long.toString(time));
+                writer.write(' ');
+                writer.write(connection.getAddress());
+                writer.write(' ');
+                writer.write(snapshot.format(mPrevious.get(connection.getAddress()), "; "));
+                writer.write('\n');
+                mPrevious.put(connection.getAddress(), snapshot);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.ecgshirt;
+
+import android.view.Choreographer;
+
+/**
+ * Paces UI updates to the display's frames instead of to incoming data.
+ *
+ * While started, the {@link Renderer} is called at most once per display frame and
+ * is expected to draw everything that arrived since the previous call, so however
+ * fast or bursty the data is, the UI thread does a bounded amount of work per frame
+ * and never works through a backlog. Frames are skipped when the UI thread falls
+ * behind: a frame whose callback arrives more than a frame late is dropped, and after
+ * a frame that took longer than the frame interval to render, the frames it overran
+ * are skipped too.
+ *
+ * Must be used from the UI thread.
+ */
+public final class RenderScheduler implements Choreographer.FrameCallback {
+
+    /**
+     * Draws one frame.
+     */
+    public interface Renderer {
+        /**
+         * @param frameTimeNanos time the frame started, in the {@link System#nanoTime()}
+         *                       time base.
+         * @return Number of new samples drawn, 0 if there was nothing new to draw, or -1
+         *         if the frame could not be drawn (for example because the view was
+         *         still busy with the previous one).
+         */
+        int renderFrame(long frameTimeNanos);
+    }
+
+    private final Choreographer mChoreographer = Choreographer.getInstance();
+    private final Renderer mRenderer;
+    private final long mFrameIntervalNanos;
+
+    private boolean mStarted;
+
+    /* Frame time of the previous callback, 0 before the first one */
+    private long mLastFrameTime;
+
+    /* Frames still to be skipped after a slow render */
+    private int mSkipFrames;
+
+    /* Statistics since the last resetCounters() */
+    private long mRenderedFrames;
+    private long mDroppedFrames;
+    private long mSamples;
+    private int mMaxSamplesPerFrame;
+
+    /**
+     * @param renderer called once per frame.
+     * @param refreshRate refresh rate of the display, in frames per second.
+     */
+    public RenderScheduler(Renderer renderer, float refreshRate) {
+        mRenderer = renderer;
+        mFrameIntervalNanos = (long) (1000000000 / refreshRate);
+    }
+
+    /**
+     * Starts calling the renderer on every frame.
+     */
+    public void start() {
+        if (mStarted) return;
+        mStarted = true;
+        mLastFrameTime = 0;
+        mSkipFrames = 0;
+        mChoreographer.postFrameCallback(this);
+    }
+
+    /**
+     * Stops calling the renderer. Samples arriving while stopped are drawn by the
+     * first frame after {@link #start()}.
+     */
+    public void stop() {
+        if (!mStarted) return;
+        mStarted = false;
+        mChoreographer.removeFrameCallback(this);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!mStarted) return;
+        // Exactly one callback is outstanding at any time, so missed frames are
+        // never made up for later
+        mChoreographer.postFrameCallback(this);
+
+        if (mLastFrameTime != 0) {
+            final long missed = (frameTimeNanos - mLastFrameTime) / mFrameIntervalNanos - 1;
+            if (missed > 0) mDroppedFrames += missed;
+        }
+        mLastFrameTime = frameTimeNanos;
+
+        final long start = System.nanoTime();
+        if (mSkipFrames > 0 || start - frameTimeNanos > mFrameIntervalNanos) {
+            if (mSkipFrames > 0) mSkipFrames--;
+            mDroppedFrames++;
+            return;
+        }
+
+        final int samples = mRenderer.renderFrame(frameTimeNanos);
+        if (samples <= 0) {
+            if (samples < 0) mDroppedFrames++;
+            return;
+        }
+        mRenderedFrames++;
+        mSamples += samples;
+        if (samples > mMaxSamplesPerFrame) mMaxSamplesPerFrame = samples;
+
+        final long elapsed = System.nanoTime() - start;
+        if (elapsed > mFrameIntervalNanos) {
+            mSkipFrames = (int) (elapsed / mFrameIntervalNanos);
+        }
+    }
+
+    /** Number of frames in which the renderer drew new samples. */
+    public long getRenderedFrames() {
+        return mRenderedFrames;
+    }
+
+    /** Number of frames that were missed or skipped because the UI thread was busy. */
+    public long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    /** Average number of new samples drawn per rendered frame. */
+    public float getSamplesPerFrame() {
+        return mRenderedFrames > 0 ? (float) mSamples / mRenderedFrames : 0;
+    }
+
+    /** Largest number of new samples drawn by a single frame. */
+    public int getMaxSamplesPerFrame() {
+        return mMaxSamplesPerFrame;
+    }
+
+    public void resetCounters() {
+        mRenderedFrames = 0;
+        mDroppedFrames = 0;
+        mSamples = 0;
+        mMaxSamplesPerFrame = 0;
+    }
+}
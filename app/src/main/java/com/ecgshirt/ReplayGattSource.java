@@ -0,0 +1,426 @@
+package com.ecgshirt;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link GattSource} simulating an ECG shirt, for load and regression testing the app
+ * without a radio.
+ *
+ * The simulated device has the shirt's ECG service and characteristic. Once
+ * notifications are enabled on it, packets from an {@link EcgPacketSource} (a recorded
+ * session or a synthetic signal) are notified at the times chosen by a
+ * {@link PacketPacer}: in real time, faster, with jitter or with packet loss. Packets
+ * are as long as the negotiated MTU allows, 20 samples until {@link #requestMtu(int)}
+ * is called. When the packet source ends, the device disconnects.
+ *
+ * All callbacks are made in order from one thread per connection, as Android makes
+ * them from its binder thread. Install with
+ * {@link BluetoothLeService#setGattSourceFactory(GattSource.Factory)}.
+ */
+public final class ReplayGattSource implements GattSource {
+    private final static String TAG = ReplayGattSource.class.getSimpleName();
+
+    /* Time from connect() to the connected callback, like a real connection takes */
+    private static final long CONNECT_LATENCY_NANOS = 100 * 1000000L;
+
+    /* Largest MTU the simulated device accepts, that of Bluetooth 4.2 with data length
+       extension */
+    private static final int MAX_MTU = 247;
+
+    /**
+     * Opens simulated connections, all fed from the same packet source and pacer, so a
+     * reconnect continues the stream where it left off. Only one connection may be open
+     * at a time: the source and pacer are not thread safe, and {@link #close()} of the
+     * old connection waits for its replay thread to end before the next one takes over.
+     */
+    public static final class Factory implements GattSource.Factory {
+        private final EcgPacketSource mPackets;
+        private final PacketPacer mPacer;
+
+        public Factory(EcgPacketSource packets, PacketPacer pacer) {
+            mPackets = packets;
+            mPacer = pacer;
+        }
+
+        @Override
+        public GattSource connect(Context context, String address, BluetoothGattCallback callback) {
+            return new ReplayGattSource(mPackets, mPacer, callback);
+        }
+
+        /** Closes the packet source, once no connection is using it any more. */
+        public void close() throws IOException {
+            mPackets.close();
+        }
+    }
+
+    /**
+     * Opens simulated connections to several devices at once, each by its address with
+     * its own factory, so every device streams from its own packet source and pacer.
+     * Connecting to an address not added fails, like connecting to a device out of range.
+     */
+    public static final class Devices implements GattSource.Factory {
+        private final Map<String, GattSource.Factory> mDevices =
+                new LinkedHashMap<String, GattSource.Factory>();
+
+        /** Adds a simulated device; returns this, to add several in a row. */
+        public synchronized Devices add(String address, GattSource.Factory device) {
+            mDevices.put(address, device);
+            return this;
+        }
+
+        /** Addresses of the simulated devices, in the order they were added. */
+        public synchronized List<String> getAddresses() {
+            return new ArrayList<String>(mDevices.keySet());
+        }
+
+        @Override
+        public GattSource connect(Context context, String address, BluetoothGattCallback callback) {
+            final GattSource.Factory device;
+            synchronized (this) {
+                device = mDevices.get(address);
+            }
+            if (device == null) {
+                Log.w(TAG, "No simulated device " + address);
+                return null;
+            }
+            return device.connect(context, address, callback);
+        }
+
+        /**
+         * Simulated shirts sending synthetic ECGs, at heart rates from 60 bpm up in steps
+         * of 10 so they can be told apart, with addresses 00:00:00:00:00:01 and up.
+         *
+         * @param speed 1 for real time, 0 for as fast as possible, see {@link PacketPacer}.
+         */
+        public static Devices synthetic(int count, double speed, double jitterMillis,
+                                        double lossRate, long seed) {
+            final double sampleRate = EcgFilter.DEFAULT_SAMPLE_RATE;
+            final Devices devices = new Devices();
+            for (int i = 0; i < count; i++) {
+                final String address = String.format(Locale.US, "00:00:00:00:%02X:%02X",
+                        (i + 1) >> 8, (i + 1) & 0xff);
+                devices.add(address, new Factory(new SyntheticPacketSource(
+                        new SyntheticEcg(sampleRate, 60 + 10 * i, seed + i), -1),
+                        new PacketPacer(sampleRate, speed, jitterMillis, lossRate, seed + i)));
+            }
+            return devices;
+        }
+    }
+
+    /**
+     * Simulated shirt sending a synthetic ECG at 72 bpm.
+     *
+     * @param speed 1 for real time, 0 for as fast as possible, see {@link PacketPacer}.
+     */
+    public static Factory synthetic(double speed, double jitterMillis, double lossRate, long seed) {
+        final double sampleRate = EcgFilter.DEFAULT_SAMPLE_RATE;
+        return new Factory(new SyntheticPacketSource(new SyntheticEcg(sampleRate, 72, seed), -1),
+                new PacketPacer(sampleRate, speed, jitterMillis, lossRate, seed));
+    }
+
+    /**
+     * Simulated shirt replaying a recorded session, over and over.
+     *
+     * @param speed 1 for real time, 0 for as fast as possible, see {@link PacketPacer}.
+     */
+    public static Factory session(File session, double speed, double jitterMillis,
+                                  double lossRate, long seed) throws IOException {
+        final EcgPacketSource packets = new SessionPacketSource(session, true);
+        return new Factory(packets, new PacketPacer(packets.getSampleRate(), speed,
+                jitterMillis, lossRate, seed));
+    }
+
+    private final EcgPacketSource mPackets;
+    private final PacketPacer mPacer;
+    private final BluetoothGattCallback mCallback;
+
+    private final BluetoothGattService mService;
+    private final BluetoothGattCharacteristic mEcgCharacteristic;
+
+    /* Events for the replay thread, run in order before the next packet is sent */
+    private final ConcurrentLinkedQueue<Runnable> mEvents = new ConcurrentLinkedQueue<Runnable>();
+    private final Thread mThread;
+    private volatile boolean mClosed;
+
+    /* State below is only used on the replay thread */
+    private boolean mConnected;
+
+    /* Time a pending connection completes, 0 if none is pending */
+    private long mConnectAt;
+    private boolean mNotifying;
+    private boolean mStreaming;
+    private byte[] mPacket = new byte[EcgPacketDecoder.SAMPLES_PER_PACKET];
+
+    /* Length of the packet read ahead from the source and waiting to be sent, or -1 */
+    private int mPacketLength = -1;
+
+    /* Time the stream started (moved forward when it is resumed) and the time the next
+       packet is due relative to that, in ns */
+    private long mStreamStart;
+    private long mNextDue;
+
+    private long mPacketsSent;
+
+    private ReplayGattSource(EcgPacketSource packets, PacketPacer pacer,
+                             BluetoothGattCallback callback) {
+        mPackets = packets;
+        mPacer = pacer;
+        mCallback = callback;
+
+        mService = new BluetoothGattService(BluetoothLeService.UUID_ECG_WAVEFORM_SERVICE,
+                BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        mEcgCharacteristic = new BluetoothGattCharacteristic(BluetoothLeService.UUID_ECG_WAVEFORM_CHAR,
+                BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+                BluetoothGattCharacteristic.PERMISSION_READ);
+        mEcgCharacteristic.addDescriptor(new BluetoothGattDescriptor(
+                UUID.fromString(SampleGattAttributes.ECG_CHARACTERTISTIC_CONFIG),
+                BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE));
+        mService.addCharacteristic(mEcgCharacteristic);
+
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                replay();
+            }
+        }, "GattReplay");
+        mThread.start();
+        connect();
+    }
+
+    private void post(Runnable event) {
+        mEvents.add(event);
+        LockSupport.unpark(mThread);
+    }
+
+    private void replay() {
+        while (!mClosed) {
+            Runnable event;
+            while ((event = mEvents.poll()) != null) {
+                event.run();
+            }
+            final long now = System.nanoTime();
+            long wait = Long.MAX_VALUE;
+            if (mConnectAt != 0) {
+                if (now - mConnectAt >= 0) {
+                    setConnected();
+                    continue;
+                }
+                wait = mConnectAt - now;
+            }
+            if (mStreaming) {
+                final long due = mStreamStart + mNextDue - now;
+                if (due <= 0) {
+                    sendPacket();
+                    continue;
+                }
+                wait = Math.min(wait, due);
+            }
+            if (wait == Long.MAX_VALUE) {
+                LockSupport.park(this);
+            } else {
+                LockSupport.parkNanos(this, wait);
+            }
+        }
+    }
+
+    // Reads the next packet from the source and works out when it is due.
+    private boolean readPacket() {
+        try {
+            mPacketLength = mPackets.nextPacket(mPacket);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read packet", e);
+            mPacketLength = -1;
+        }
+        if (mPacketLength < 0) {
+            Log.i(TAG, "End of replay after " + mPacketsSent + " packets");
+            return false;
+        }
+        mNextDue = mPacer.next(mPacketLength);
+        return true;
+    }
+
+    private void sendPacket() {
+        if (!mPacer.isLost()) {
+            mEcgCharacteristic.setValue(mPacketLength == mPacket.length
+                    ? mPacket : Arrays.copyOf(mPacket, mPacketLength));
+            mCallback.onCharacteristicChanged(null, mEcgCharacteristic);
+            mPacketsSent++;
+        }
+        if (!readPacket()) {
+            setDisconnected();
+        }
+    }
+
+    private void setStreaming(boolean streaming) {
+        if (streaming == mStreaming) return;
+        if (streaming && mPacketLength < 0 && !readPacket()) {
+            setDisconnected();
+            return;
+        }
+        mStreaming = streaming;
+        if (streaming) {
+            // Resume where the stream stopped rather than catching up on the pause
+            mStreamStart = System.nanoTime() - mNextDue;
+        }
+    }
+
+    private void setConnected() {
+        mConnectAt = 0;
+        mConnected = true;
+        mCallback.onConnectionStateChange(null, BluetoothGatt.GATT_SUCCESS,
+                BluetoothProfile.STATE_CONNECTED);
+    }
+
+    private void setDisconnected() {
+        mConnectAt = 0;
+        if (!mConnected) return;
+        mConnected = false;
+        setStreaming(false);
+        mCallback.onConnectionStateChange(null, BluetoothGatt.GATT_SUCCESS,
+                BluetoothProfile.STATE_DISCONNECTED);
+    }
+
+    @Override
+    public boolean connect() {
+        if (mClosed) return false;
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (mConnected || mConnectAt != 0) return;
+                mConnectAt = System.nanoTime() + CONNECT_LATENCY_NANOS;
+                if (mConnectAt == 0) mConnectAt = 1;
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public void disconnect() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                setDisconnected();
+            }
+        });
+    }
+
+    /**
+     * Stops the replay thread and, unless called from a callback, waits for it to end,
+     * so no callback is made and the packet source is not read after this returns.
+     */
+    @Override
+    public void close() {
+        mClosed = true;
+        LockSupport.unpark(mThread);
+        if (Thread.currentThread() == mThread) return;
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public boolean requestMtu(final int mtu) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                final int accepted = Math.max(EcgPacketDecoder.DEFAULT_MTU, Math.min(mtu, MAX_MTU));
+                // The packet already read ahead is sent with the length it was read with
+                mPacket = Arrays.copyOf(mPacket, Math.max(mPacketLength,
+                        EcgPacketDecoder.samplesPerPacket(accepted)));
+                mCallback.onMtuChanged(null, accepted,
+                        mConnected ? BluetoothGatt.GATT_SUCCESS : BluetoothGatt.GATT_FAILURE);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean requestConnectionPriority(int priority) {
+        return true;
+    }
+
+    @Override
+    public boolean discoverServices() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mCallback.onServicesDiscovered(null,
+                        mConnected ? BluetoothGatt.GATT_SUCCESS : BluetoothGatt.GATT_FAILURE);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public List<BluetoothGattService> getServices() {
+        final List<BluetoothGattService> services = new ArrayList<BluetoothGattService>();
+        services.add(mService);
+        return services;
+    }
+
+    @Override
+    public boolean readCharacteristic(final BluetoothGattCharacteristic characteristic) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mCallback.onCharacteristicRead(null, characteristic,
+                        mConnected ? BluetoothGatt.GATT_SUCCESS : BluetoothGatt.GATT_FAILURE);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean setCharacteristicNotification(final BluetoothGattCharacteristic characteristic,
+                                                 final boolean enable) {
+        if (characteristic != mEcgCharacteristic) return false;
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mNotifying = enable;
+                if (!enable) setStreaming(false);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean writeDescriptor(final BluetoothGattDescriptor descriptor) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mConnected) {
+                    mCallback.onDescriptorWrite(null, descriptor, BluetoothGatt.GATT_FAILURE);
+                    return;
+                }
+                mCallback.onDescriptorWrite(null, descriptor, BluetoothGatt.GATT_SUCCESS);
+                if (descriptor.getCharacteristic() == mEcgCharacteristic) {
+                    setStreaming(mNotifying && Arrays.equals(descriptor.getValue(),
+                            BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE));
+                }
+            }
+        });
+        return true;
+    }
+}
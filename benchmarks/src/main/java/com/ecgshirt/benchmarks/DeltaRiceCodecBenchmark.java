@@ -0,0 +1,108 @@
+package com.ecgshirt.benchmarks;
+
+import com.ecgshirt.DeltaRiceCodec;
+import com.ecgshirt.EcgSessionFormat;
+import com.ecgshirt.SyntheticEcg;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compression of recorded ECG with {@link DeltaRiceCodec}, a minute of samples per
+ * operation, so the score is minutes of ECG encoded or decoded per second. The
+ * compressedBytes and rawBytes counters give the compression ratio, block headers
+ * left out.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DeltaRiceCodecBenchmark {
+
+    private static final int BLOCK_LENGTH = EcgSessionFormat.SAMPLES_PER_BLOCK;
+
+    @Param({"200", "1000"})
+    public int sampleRate;
+
+    private final DeltaRiceCodec.Encoder mEncoder = new DeltaRiceCodec.Encoder();
+    private final byte[] mBlock = new byte[BLOCK_LENGTH];
+    private short[] mMinute;
+    private short[] mDecoded;
+
+    /* The minute encoded into blocks, and the number of samples in each */
+    private byte[][] mBlocks;
+    private int[] mBlockSamples;
+
+    @State(Scope.Thread)
+    @AuxCounters
+    public static class Counters {
+        public long compressedBytes;
+        public long rawBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            compressedBytes = 0;
+            rawBytes = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        mMinute = new short[60 * sampleRate];
+        new SyntheticEcg(sampleRate, 72, 1).next(mMinute, 0, mMinute.length);
+        mDecoded = new short[DeltaRiceCodec.maxSamples(BLOCK_LENGTH)];
+        // At least one sample per block
+        mBlocks = new byte[mMinute.length][];
+        mBlockSamples = new int[mMinute.length];
+        int blocks = 0;
+        for (int i = 0; i < mMinute.length; blocks++) {
+            mBlocks[blocks] = new byte[BLOCK_LENGTH];
+            mEncoder.start(mBlocks[blocks], 0, BLOCK_LENGTH);
+            while (i < mMinute.length && mEncoder.put(mMinute[i])) {
+                i++;
+            }
+            mEncoder.flushBits();
+            mBlockSamples[blocks] = mEncoder.getSampleCount();
+        }
+        mBlockSamples = Arrays.copyOf(mBlockSamples, blocks);
+    }
+
+    @Benchmark
+    public int encode(Counters counters) {
+        int blocks = 0;
+        for (int i = 0; i < mMinute.length; blocks++) {
+            mEncoder.start(mBlock, 0, BLOCK_LENGTH);
+            while (i < mMinute.length && mEncoder.put(mMinute[i])) {
+                i++;
+            }
+            mEncoder.flushBits();
+            counters.compressedBytes += mEncoder.getLength();
+        }
+        counters.rawBytes += mMinute.length;
+        return blocks;
+    }
+
+    @Benchmark
+    public short[] decode() {
+        for (int b = 0; b < mBlockSamples.length; b++) {
+            DeltaRiceCodec.decode(mBlocks[b], 0, BLOCK_LENGTH, mBlockSamples[b], mDecoded, 0);
+        }
+        return mDecoded;
+    }
+}
@@ -0,0 +1,68 @@
+package com.ecgshirt.benchmarks;
+
+import com.ecgshirt.EcgFilter;
+import com.ecgshirt.EcgPacketDecoder;
+import com.ecgshirt.SyntheticEcg;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the filter chain per sample, one sample at a time and in the batches the
+ * UI drains from the sample ring. Scores are samples per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EcgFilterBenchmark {
+
+    /* One second of samples at the highest rate */
+    private static final int BATCH = 1000;
+
+    @Param({"200", "1000"})
+    public int sampleRate;
+
+    private EcgFilter mFilter;
+    private final short[] mRaw = new short[BATCH];
+    private final float[] mVolts = new float[BATCH];
+    private final float[] mOut = new float[BATCH];
+    private int mNext;
+
+    @Setup
+    public void setUp() {
+        mFilter = new EcgFilter(sampleRate, EcgFilter.MAINS_60HZ);
+        new SyntheticEcg(sampleRate, 72, 1).next(mRaw, 0, BATCH);
+        for (int i = 0; i < BATCH; i++) {
+            mVolts[i] = EcgPacketDecoder.toVolts(mRaw[i]);
+        }
+    }
+
+    @Benchmark
+    public float perSample() {
+        final float volts = mVolts[mNext];
+        if (++mNext == BATCH) mNext = 0;
+        return mFilter.process(volts);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public float[] batch() {
+        mFilter.process(mRaw, 0, mOut, 0, BATCH);
+        return mOut;
+    }
+}
@@ -0,0 +1,78 @@
+package com.ecgshirt.benchmarks;
+
+import com.ecgshirt.EcgPacketDecoder;
+import com.ecgshirt.SyntheticEcg;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of one ECG notification, from the raw 20 byte value to samples.
+ *
+ * {@link #legacyString()} is the decoding BluetoothLeService.broadcastUpdate did before
+ * the samples were passed through a ring buffer: every packet was turned into a
+ * comma separated string for an Intent extra. It is kept here as the baseline.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PacketDecodeBenchmark {
+
+    /* Number of distinct packets cycled through, a power of two */
+    private static final int PACKETS = 256;
+
+    private final byte[][] mPackets = new byte[PACKETS][EcgPacketDecoder.SAMPLES_PER_PACKET];
+    private final short[] mSamples = new short[EcgPacketDecoder.SAMPLES_PER_PACKET];
+    private final float[] mVolts = new float[EcgPacketDecoder.SAMPLES_PER_PACKET];
+    private int mNext;
+
+    @Setup
+    public void setUp() {
+        final SyntheticEcg ecg = new SyntheticEcg(200, 72, 1);
+        for (byte[] packet : mPackets) {
+            ecg.nextPacket(packet, 0, packet.length);
+        }
+    }
+
+    private byte[] nextPacket() {
+        return mPackets[mNext++ & (PACKETS - 1)];
+    }
+
+    @Benchmark
+    public String legacyString() {
+        final byte[] ecg_bytes = nextPacket();
+        String ecg_floats = "";
+        int i;
+        for (int j = 0; j < 20; j++) {
+            i = (int) (ByteBuffer.wrap(ecg_bytes, j, 1).get() & 0x0ff);
+            ecg_floats += String.valueOf(i) + ",";
+        }
+        return ecg_floats;
+    }
+
+    @Benchmark
+    public short[] decode() {
+        EcgPacketDecoder.decode(nextPacket(), mSamples, 0);
+        return mSamples;
+    }
+
+    @Benchmark
+    public float[] decodeVolts() {
+        EcgPacketDecoder.decodeVolts(nextPacket(), mVolts, 0);
+        return mVolts;
+    }
+}
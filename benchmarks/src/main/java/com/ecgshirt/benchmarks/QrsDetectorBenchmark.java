@@ -0,0 +1,70 @@
+package com.ecgshirt.benchmarks;
+
+import com.ecgshirt.EcgPacketDecoder;
+import com.ecgshirt.QrsDetector;
+import com.ecgshirt.SyntheticEcg;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * QRS detection throughput over a 60 second synthetic recording at 72 bpm. The
+ * detector is past its learning phase before measurement starts. Scores are samples
+ * per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class QrsDetectorBenchmark {
+
+    private static final int SECONDS = 60;
+
+    /* Samples per invocation; the recording is replayed in chunks of this size */
+    private static final int CHUNK = 1000;
+
+    @Param({"200", "1000"})
+    public int sampleRate;
+
+    private QrsDetector mDetector;
+    private float[] mVolts;
+    private int mNext;
+
+    @Setup
+    public void setUp() {
+        final SyntheticEcg ecg = new SyntheticEcg(sampleRate, 72, 1);
+        mVolts = new float[SECONDS * sampleRate];
+        for (int i = 0; i < mVolts.length; i++) {
+            mVolts[i] = EcgPacketDecoder.toVolts(ecg.next());
+        }
+        mDetector = new QrsDetector(sampleRate);
+        for (float volts : mVolts) {
+            mDetector.process(volts);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CHUNK)
+    public void process(Blackhole beats) {
+        for (int i = 0; i < CHUNK; i++) {
+            beats.consume(mDetector.process(mVolts[mNext + i]));
+        }
+        mNext += CHUNK;
+        if (mNext + CHUNK > mVolts.length) mNext = 0;
+    }
+}
@@ -0,0 +1,97 @@
+package com.ecgshirt.benchmarks;
+
+import com.ecgshirt.EcgSessionFormat;
+import com.ecgshirt.EcgSessionWriter;
+import com.ecgshirt.SyntheticEcg;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recording throughput of {@link EcgSessionWriter}, doing what the recorder's
+ * background thread does once a second: append a second of samples and flush. The
+ * score is seconds of ECG recorded per second; the bytesWritten counter is the file
+ * growth per second.
+ *
+ * The session is started over in a new file whenever it passes {@link #MAX_LENGTH},
+ * so a run does not fill the disk.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SessionWriterBenchmark {
+
+    private static final long MAX_LENGTH = 64 * 1024 * 1024;
+
+    @Param({"200", "1000"})
+    public int sampleRate;
+
+    private File mFile;
+    private EcgSessionWriter mWriter;
+    private short[] mSecond;
+    private long mTime;
+
+    @State(Scope.Thread)
+    @AuxCounters
+    public static class Counters {
+        public long bytesWritten;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytesWritten = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        mSecond = new short[sampleRate];
+        new SyntheticEcg(sampleRate, 72, 1).next(mSecond, 0, sampleRate);
+        mFile = File.createTempFile("ecg-benchmark", ".ecg");
+        mFile.deleteOnExit();
+        startSession();
+    }
+
+    private void startSession() throws IOException {
+        mTime = System.currentTimeMillis();
+        mWriter = new EcgSessionWriter(mFile, new EcgSessionFormat.Header(
+                "00:00:00:00:00:00", sampleRate, mTime, EcgSessionFormat.CODEC_DELTA_RICE));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mWriter.close();
+        mFile.delete();
+    }
+
+    @Benchmark
+    public void appendAndFlush(Counters counters) throws IOException {
+        final long length = mWriter.getLength();
+        mWriter.append(mSecond, 0, mSecond.length, mTime);
+        mWriter.flush();
+        mTime += 1000;
+        counters.bytesWritten += mWriter.getLength() - length;
+        if (mWriter.getLength() > MAX_LENGTH) {
+            mWriter.close();
+            startSession();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.ecgshirt;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Fields of a Bluetooth LE advertisement, parsed from the raw scan record handed to
+ * {@code BluetoothAdapter.LeScanCallback#onLeScan}.
+ *
+ * The record is a sequence of length-type-value structures (Core Specification Vol 3,
+ * Part C, section 11); this reads the service UUID lists, the local name and the TX
+ * power level, and skips everything else. Malformed trailing structures are ignored,
+ * as some stacks pad the record with zeros or cut it short.
+ */
+public final class AdvertisementData {
+
+    private static final int TYPE_UUID16_INCOMPLETE = 0x02;
+    private static final int TYPE_UUID16 = 0x03;
+    private static final int TYPE_UUID32_INCOMPLETE = 0x04;
+    private static final int TYPE_UUID32 = 0x05;
+    private static final int TYPE_UUID128_INCOMPLETE = 0x06;
+    private static final int TYPE_UUID128 = 0x07;
+    private static final int TYPE_SHORT_NAME = 0x08;
+    private static final int TYPE_NAME = 0x09;
+    private static final int TYPE_TX_POWER = 0x0a;
+
+    /** {@link #getTxPower} when the advertisement does not include it. */
+    public static final int TX_POWER_UNKNOWN = Integer.MIN_VALUE;
+
+    /* Bluetooth base UUID, 16 and 32 bit UUIDs replace bits 96 to 127 of it */
+    private static final long BASE_UUID_MSB = 0x0000000000001000L;
+    private static final long BASE_UUID_LSB = 0x800000805f9b34fbL;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final AdvertisementData EMPTY =
+            new AdvertisementData(Collections.<UUID>emptyList(), null, TX_POWER_UNKNOWN);
+
+    private final List<UUID> mServiceUuids;
+    private final String mLocalName;
+    private final int mTxPower;
+
+    private AdvertisementData(List<UUID> serviceUuids, String localName, int txPower) {
+        mServiceUuids = serviceUuids;
+        mLocalName = localName;
+        mTxPower = txPower;
+    }
+
+    /**
+     * @param scanRecord advertisement and scan response, as received; may be null.
+     */
+    public static AdvertisementData parse(byte[] scanRecord) {
+        if (scanRecord == null) return EMPTY;
+        List<UUID> uuids = null;
+        String name = null;
+        int txPower = TX_POWER_UNKNOWN;
+        int offset = 0;
+        while (offset < scanRecord.length) {
+            final int length = scanRecord[offset] & 0xff;
+            // A zero length ends the significant part of the record
+            if (length == 0 || offset + 1 + length > scanRecord.length) break;
+            final int type = scanRecord[offset + 1] & 0xff;
+            final int start = offset + 2;
+            final int end = offset + 1 + length;
+            switch (type) {
+                case TYPE_UUID16_INCOMPLETE:
+                case TYPE_UUID16:
+                    if (uuids == null) uuids = new ArrayList<UUID>();
+                    for (int i = start; i + 2 <= end; i += 2) {
+                        uuids.add(fromShortUuid(GattFormat.getUint16(scanRecord, i)));
+                    }
+                    break;
+                case TYPE_UUID32_INCOMPLETE:
+                case TYPE_UUID32:
+                    if (uuids == null) uuids = new ArrayList<UUID>();
+                    for (int i = start; i + 4 <= end; i += 4) {
+                        uuids.add(fromShortUuid(getUint32(scanRecord, i)));
+                    }
+                    break;
+                case TYPE_UUID128_INCOMPLETE:
+                case TYPE_UUID128:
+                    if (uuids == null) uuids = new ArrayList<UUID>();
+                    for (int i = start; i + 16 <= end; i += 16) {
+                        // Little-endian: least significant half first
+                        uuids.add(new UUID(getInt64(scanRecord, i + 8), getInt64(scanRecord, i)));
+                    }
+                    break;
+                case TYPE_SHORT_NAME:
+                case TYPE_NAME:
+                    // Prefer the complete name over the shortened one
+                    if (name == null || type == TYPE_NAME) {
+                        name = new String(scanRecord, start, end - start, UTF8);
+                    }
+                    break;
+                case TYPE_TX_POWER:
+                    if (end > start) txPower = scanRecord[start];
+                    break;
+                default:
+                    break;
+            }
+            offset = end;
+        }
+        if (uuids == null && name == null && txPower == TX_POWER_UNKNOWN) return EMPTY;
+        return new AdvertisementData(
+                uuids != null ? uuids : Collections.<UUID>emptyList(), name, txPower);
+    }
+
+    /**
+     * @return Service UUIDs the device advertises, complete or not; empty if none.
+     */
+    public List<UUID> getServiceUuids() {
+        return mServiceUuids;
+    }
+
+    /**
+     * @return Whether the device advertises the given service.
+     */
+    public boolean hasService(UUID service) {
+        for (int i = 0; i < mServiceUuids.size(); i++) {
+            if (mServiceUuids.get(i).equals(service)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return The advertised local name, null if none.
+     */
+    public String getLocalName() {
+        return mLocalName;
+    }
+
+    /**
+     * @return Transmit power in dBm, or {@link #TX_POWER_UNKNOWN}.
+     */
+    public int getTxPower() {
+        return mTxPower;
+    }
+
+    private static UUID fromShortUuid(long shortUuid) {
+        return new UUID(BASE_UUID_MSB | (shortUuid << 32), BASE_UUID_LSB);
+    }
+
+    private static long getUint32(byte[] value, int offset) {
+        return GattFormat.getUint16(value, offset)
+                | ((long) GattFormat.getUint16(value, offset + 2) << 16);
+    }
+
+    private static long getInt64(byte[] value, int offset) {
+        return getUint32(value, offset) | (getUint32(value, offset + 4) << 32);
+    }
+}
@@ -0,0 +1,129 @@
+package com.ecgshirt;
+
+/**
+ * Second order IIR filter section in transposed direct form II.
+ *
+ * Coefficients are normalized so that a0 == 1. The designs follow the RBJ
+ * "Audio EQ Cookbook" formulas. The filter state lives in two fields, so a
+ * section can run sample by sample on the data path without allocating.
+ */
+public final class Biquad {
+
+    private final double b0, b1, b2, a1, a2;
+
+    /* Filter state */
+    private double z1, z2;
+
+    public Biquad(double b0, double b1, double b2, double a1, double a2) {
+        this.b0 = b0;
+        this.b1 = b1;
+        this.b2 = b2;
+        this.a1 = a1;
+        this.a2 = a2;
+    }
+
+    /**
+     * Second order Butterworth style high-pass.
+     *
+     * @param sampleRate sampling rate in Hz.
+     * @param cutoff -3dB frequency in Hz.
+     * @param q quality factor, 1/sqrt(2) for a maximally flat response.
+     */
+    public static Biquad highPass(double sampleRate, double cutoff, double q) {
+        final double w0 = omega(sampleRate, cutoff);
+        final double cos = Math.cos(w0);
+        final double alpha = Math.sin(w0) / (2 * q);
+        final double a0 = 1 + alpha;
+        return new Biquad((1 + cos) / 2 / a0, -(1 + cos) / a0, (1 + cos) / 2 / a0,
+                -2 * cos / a0, (1 - alpha) / a0);
+    }
+
+    /**
+     * Second order Butterworth style low-pass.
+     *
+     * @param sampleRate sampling rate in Hz.
+     * @param cutoff -3dB frequency in Hz.
+     * @param q quality factor, 1/sqrt(2) for a maximally flat response.
+     */
+    public static Biquad lowPass(double sampleRate, double cutoff, double q) {
+        final double w0 = omega(sampleRate, cutoff);
+        final double cos = Math.cos(w0);
+        final double alpha = Math.sin(w0) / (2 * q);
+        final double a0 = 1 + alpha;
+        return new Biquad((1 - cos) / 2 / a0, (1 - cos) / a0, (1 - cos) / 2 / a0,
+                -2 * cos / a0, (1 - alpha) / a0);
+    }
+
+    /**
+     * Band-stop with unity gain away from the notch.
+     *
+     * @param sampleRate sampling rate in Hz.
+     * @param center notch frequency in Hz.
+     * @param q quality factor, the -3dB bandwidth is {@code center / q}.
+     */
+    public static Biquad notch(double sampleRate, double center, double q) {
+        final double w0 = omega(sampleRate, center);
+        final double cos = Math.cos(w0);
+        final double alpha = Math.sin(w0) / (2 * q);
+        final double a0 = 1 + alpha;
+        return new Biquad(1 / a0, -2 * cos / a0, 1 / a0, -2 * cos / a0, (1 - alpha) / a0);
+    }
+
+    private static double omega(double sampleRate, double frequency) {
+        if (frequency <= 0 || frequency >= sampleRate / 2) {
+            throw new IllegalArgumentException("Frequency " + frequency
+                    + "Hz must lie between 0 and the Nyquist frequency of " + sampleRate + "Hz");
+        }
+        return 2 * Math.PI * frequency / sampleRate;
+    }
+
+    /**
+     * Filters one sample.
+     */
+    public double process(double x) {
+        final double y = b0 * x + z1;
+        z1 = b1 * x - a1 * y + z2;
+        z2 = b2 * x - a2 * y;
+        return y;
+    }
+
+    /**
+     * Filters a block of samples in place.
+     */
+    public void process(float[] samples, int offset, int length) {
+        double s1 = z1, s2 = z2;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            final double x = samples[i];
+            final double y = b0 * x + s1;
+            s1 = b1 * x - a1 * y + s2;
+            s2 = b2 * x - a2 * y;
+            samples[i] = (float) y;
+        }
+        z1 = s1;
+        z2 = s2;
+    }
+
+    /**
+     * Clears the filter state, as if the section had only seen zeros.
+     */
+    public void reset() {
+        z1 = 0;
+        z2 = 0;
+    }
+
+    /**
+     * Primes the state with the steady-state response to a constant input, so a
+     * signal that starts far from zero does not cause a long start-up transient.
+     */
+    public void reset(double x) {
+        final double y = x * (b0 + b1 + b2) / (1 + a1 + a2);
+        z2 = b2 * x - a2 * y;
+        z1 = b1 * x - a1 * y + z2;
+    }
+
+    public double getB0() { return b0; }
+    public double getB1() { return b1; }
+    public double getB2() { return b2; }
+    public double getA1() { return a1; }
+    public double getA2() { return a2; }
+}
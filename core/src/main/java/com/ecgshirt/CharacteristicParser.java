@@ -0,0 +1,17 @@
+package com.ecgshirt;
+
+/**
+ * Reads the value of one kind of GATT characteristic into a {@link GattMeasurement}.
+ *
+ * Parsers are looked up once per characteristic, see {@link CharacteristicParsers},
+ * and then called for every notification, so they must not allocate.
+ */
+public interface CharacteristicParser {
+
+    /**
+     * @param value raw value of the characteristic.
+     * @param out measurement receiving the fields; its type is TYPE_NONE on failure.
+     * @return false if the value is malformed.
+     */
+    boolean parse(byte[] value, GattMeasurement out);
+}
@@ -0,0 +1,118 @@
+package com.ecgshirt;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Parsers of the characteristics the app subscribes to, by characteristic UUID.
+ *
+ * A connection looks up the parser of a characteristic when it subscribes to or reads
+ * it, so each value that arrives afterwards takes one call to a parser instead of a
+ * UUID comparison per known characteristic.
+ */
+public final class CharacteristicParsers {
+
+    /**
+     * Heart Rate Measurement (0x2A37): 8 or 16-bit heart rate, sensor contact status,
+     * energy expended and RR intervals, as the flags in the first byte say.
+     */
+    public static final CharacteristicParser HEART_RATE_MEASUREMENT = new CharacteristicParser() {
+        @Override
+        public boolean parse(byte[] value, GattMeasurement out) {
+            out.clear();
+            if (value == null || value.length < 2) return false;
+            final int flags = value[0] & 0xff;
+            int offset = 1;
+            final int heartRate;
+            if ((flags & 0x01) != 0) {
+                heartRate = GattFormat.getUint16(value, offset);
+                offset += 2;
+            } else {
+                heartRate = value[offset] & 0xff;
+                offset += 1;
+            }
+            if (heartRate < 0) return false;
+            // Bit 2 is set when the sensor supports contact detection, bit 1 if it has contact
+            final int contact = (flags & 0x04) == 0 ? GattMeasurement.CONTACT_UNSUPPORTED
+                    : (flags & 0x02) != 0 ? GattMeasurement.CONTACT_DETECTED
+                    : GattMeasurement.CONTACT_NOT_DETECTED;
+            int energy = -1;
+            if ((flags & 0x08) != 0) {
+                energy = GattFormat.getUint16(value, offset);
+                if (energy < 0) return false;
+                offset += 2;
+            }
+            out.setHeartRate(heartRate, contact, energy);
+            if ((flags & 0x10) != 0) {
+                for (; offset + 2 <= value.length; offset += 2) {
+                    out.addRrInterval(GattFormat.getUint16(value, offset));
+                }
+            }
+            return true;
+        }
+    };
+
+    /**
+     * Temperature Measurement (0x2A1C) of the Health Thermometer service: an IEEE-11073
+     * FLOAT in Celsius or Fahrenheit, as bit 0 of the flags says, converted to Celsius.
+     * The optional time stamp and temperature type are ignored.
+     */
+    public static final CharacteristicParser TEMPERATURE_MEASUREMENT = new CharacteristicParser() {
+        @Override
+        public boolean parse(byte[] value, GattMeasurement out) {
+            out.clear();
+            if (value == null || value.length < 5) return false;
+            final float temperature = GattFormat.getFloat(value, 1);
+            if (Float.isNaN(temperature)) return false;
+            out.setTemperature((value[0] & 0x01) != 0
+                    ? (temperature - 32) * 5 / 9 : temperature);
+            return true;
+        }
+    };
+
+    /**
+     * Angel Sensor step count: steps since the sensor was reset, as an unsigned 24-bit
+     * integer.
+     */
+    public static final CharacteristicParser STEP_COUNT = new CharacteristicParser() {
+        @Override
+        public boolean parse(byte[] value, GattMeasurement out) {
+            out.clear();
+            final int steps = GattFormat.getUint24(value, 0);
+            if (steps < 0) return false;
+            out.setStepCount(steps);
+            return true;
+        }
+    };
+
+    private static final Map<UUID, CharacteristicParser> sParsers =
+            new ConcurrentHashMap<UUID, CharacteristicParser>();
+
+    static {
+        register(UUID.fromString(SampleGattAttributes.HEART_RATE_MEASUREMENT),
+                HEART_RATE_MEASUREMENT);
+        register(UUID.fromString(SampleGattAttributes.TEMPERATURE_MEASUREMENT),
+                TEMPERATURE_MEASUREMENT);
+        register(UUID.fromString(SampleGattAttributes.ANGEL_STEP_COUNT_MEASUREMENT),
+                STEP_COUNT);
+    }
+
+    private CharacteristicParsers() {
+    }
+
+    /**
+     * Adds or replaces the parser of a characteristic. Only characteristics subscribed
+     * to or read after this use it.
+     */
+    public static void register(UUID characteristic, CharacteristicParser parser) {
+        sParsers.put(characteristic, parser);
+    }
+
+    /**
+     * @return The parser of the given characteristic, or null if it has none.
+     */
+    public static CharacteristicParser get(UUID characteristic) {
+        return characteristic != null ? sParsers.get(characteristic) : null;
+    }
+}
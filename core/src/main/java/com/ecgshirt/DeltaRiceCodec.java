@@ -0,0 +1,238 @@
+package com.ecgshirt;
+
+/**
+ * Lossless compression of raw 8-bit ECG samples into fixed-size blocks, used by
+ * {@link EcgSessionFormat#CODEC_DELTA_RICE}.
+ *
+ * ECG changes little from one sample to the next, so each sample is stored as its
+ * difference from the previous one, modulo 256 so that any byte sequence round-trips.
+ * The differences are zigzag mapped to 0, -1, 1, -2, ... = 0, 1, 2, 3, ... and written as
+ * Rice codes: the value shifted right by k in unary, then its low k bits. The parameter
+ * k follows the running mean of the mapped differences, as in LOCO-I, so the flat parts
+ * of a beat take one or two bits a sample and the QRS complex takes more. A value whose
+ * unary part would reach {@link #ESCAPE_QUOTIENT} bits is written as that many ones
+ * followed by its 8 bits, which bounds a sample at 24 bits.
+ *
+ * A block starts with its first sample as 8 plain bits, and the coder starts over at
+ * every block, so each block decodes on its own. Bits are written most significant first.
+ * Encoding and decoding use a few words of state and never allocate.
+ *
+ * On an hour of {@link SyntheticEcg} at its default noise, appended 20 samples at a
+ * time, a session takes 4.3 bits a sample at 200 Hz, 2.05 times less than
+ * uncompressed, and 3.6 bits at 1000 Hz, 2.45 times less. The codes alone take 3.9
+ * bits at 200 Hz, against 3.76 bits of order-1 entropy in the differences; the rest
+ * is block headers. Gaps cost more, since every gap starts a new block: with a gap
+ * every minute the ratio at 200 Hz is 1.93, every 10 seconds 1.73. The bias of
+ * {@code parameter()} and {@code RESET_COUNT} are the best of a grid search on the
+ * same signal; no other values save more than 2% at both rates. They are part of the
+ * format, since the decoder must follow the same parameter.
+ *
+ * So the codec only just reaches half the size on a clean signal, and falls short of it
+ * on a noisy one. The test session, with muscle noise, hum, motion artifacts and two
+ * gaps, takes 4.4 bits a sample in the codes, 1.81 times less than uncompressed; its
+ * differences have 4.33 bits of order-0 entropy, so no coder of single differences can
+ * reach 2 there. Doing better would take a model of more than the last sample.
+ */
+public final class DeltaRiceCodec {
+
+    /** Length of the unary part that marks an escaped value. */
+    public static final int ESCAPE_QUOTIENT = 16;
+
+    /** Most bits a sample can take. */
+    public static final int MAX_SAMPLE_BITS = ESCAPE_QUOTIENT + 8;
+
+    /* Initial sum and count of the running mean, giving k = 1 */
+    private static final int INITIAL_SUM = 4;
+    private static final int INITIAL_COUNT = 1;
+
+    /* Count at which the running sum and count are halved, so the mean follows the signal
+       closely enough to widen the codes for the few samples of a QRS complex */
+    private static final int RESET_COUNT = 16;
+
+    private static final int MAX_K = 7;
+
+    private DeltaRiceCodec() {
+    }
+
+    /**
+     * Most samples a block of {@code length} bytes can hold, one bit for each after the
+     * first.
+     */
+    public static int maxSamples(int length) {
+        return length > 0 ? 8 * length - 7 : 0;
+    }
+
+    /**
+     * Writes samples into a block until it is full. Not thread safe; one encoder can be
+     * reused for any number of blocks.
+     */
+    public static final class Encoder {
+        private byte[] mBuffer;
+        private int mOffset;
+        private int mCapacity;
+
+        /* Bits written to mBuffer, and bits not yet making a whole byte */
+        private int mBitPosition;
+        private int mPending;
+        private int mPendingBits;
+
+        private int mCount;
+        private int mPrevious;
+        private int mSum;
+        private int mN;
+
+        /**
+         * Starts a new block in {@code buffer[offset]} to {@code buffer[offset + length - 1]}.
+         */
+        public void start(byte[] buffer, int offset, int length) {
+            mBuffer = buffer;
+            mOffset = offset;
+            mCapacity = 8 * length;
+            mBitPosition = 0;
+            mPending = 0;
+            mPendingBits = 0;
+            mCount = 0;
+            mSum = INITIAL_SUM;
+            mN = INITIAL_COUNT;
+        }
+
+        /**
+         * Adds a sample to the block.
+         *
+         * @param sample raw sample, only its low 8 bits are stored.
+         * @return False, leaving the block as it was, if the sample does not fit.
+         */
+        public boolean put(int sample) {
+            sample &= 0xff;
+            if (mCount == 0) {
+                if (mCapacity < 8) return false;
+                write(sample, 8);
+                mPrevious = sample;
+                mCount = 1;
+                return true;
+            }
+            final int delta = (byte) (sample - mPrevious);
+            final int value = (delta << 1) ^ (delta >> 31);
+            final int k = parameter(mSum, mN);
+            final int quotient = value >>> k;
+            final int length = quotient < ESCAPE_QUOTIENT ? quotient + 1 + k : MAX_SAMPLE_BITS;
+            if (mBitPosition + mPendingBits + length > mCapacity) return false;
+            if (quotient < ESCAPE_QUOTIENT) {
+                // quotient ones, a zero, then the low k bits
+                write((((1 << quotient) - 1) << 1 << k) | (value & ((1 << k) - 1)), length);
+            } else {
+                write((((1 << ESCAPE_QUOTIENT) - 1) << 8) | value, length);
+            }
+            mPrevious = sample;
+            mCount++;
+            mSum += value;
+            if (++mN == RESET_COUNT) {
+                mSum >>= 1;
+                mN >>= 1;
+            }
+            return true;
+        }
+
+        private void write(int bits, int length) {
+            mPending = (mPending << length) | bits;
+            mPendingBits += length;
+            while (mPendingBits >= 8) {
+                mPendingBits -= 8;
+                mBuffer[mOffset + (mBitPosition >> 3)] = (byte) (mPending >>> mPendingBits);
+                mBitPosition += 8;
+            }
+            mPending &= (1 << mPendingBits) - 1;
+        }
+
+        /**
+         * Writes the bits of the last, partially filled byte, padded with zeros. Samples
+         * can still be added afterwards; they overwrite the padding.
+         */
+        public void flushBits() {
+            if (mPendingBits > 0) {
+                mBuffer[mOffset + (mBitPosition >> 3)] = (byte) (mPending << (8 - mPendingBits));
+            }
+        }
+
+        /** Number of samples in the block. */
+        public int getSampleCount() {
+            return mCount;
+        }
+
+        /** Number of bytes of the block in use, counting a partially filled last one. */
+        public int getLength() {
+            return (mBitPosition + mPendingBits + 7) >> 3;
+        }
+    }
+
+    /**
+     * Decodes a block written by an {@link Encoder}. Bytes past the end of the block read
+     * as zeros, so a corrupt block yields wrong samples rather than an exception.
+     *
+     * @param src block, {@code length} bytes from {@code offset}.
+     * @param count number of samples in the block.
+     * @return Number of samples written to {@code dst}, {@code count}.
+     */
+    public static int decode(byte[] src, int offset, int length, int count,
+                             short[] dst, int dstOffset) {
+        if (count <= 0) return 0;
+        final int end = offset + length;
+        int position = offset;
+        // Unread bits, aligned to the most significant end
+        long bits = 0;
+        int available = 0;
+        int sum = INITIAL_SUM;
+        int n = INITIAL_COUNT;
+        int previous = 0;
+        for (int i = 0; i < count; i++) {
+            if (available < MAX_SAMPLE_BITS) {
+                while (available <= 56) {
+                    final long next = position < end ? src[position] & 0xff : 0;
+                    position++;
+                    bits |= next << (56 - available);
+                    available += 8;
+                }
+            }
+            if (i == 0) {
+                previous = (int) (bits >>> 56);
+                bits <<= 8;
+                available -= 8;
+                dst[dstOffset] = (short) previous;
+                continue;
+            }
+            final int value;
+            final int quotient = Math.min(Long.numberOfLeadingZeros(~bits), ESCAPE_QUOTIENT);
+            if (quotient < ESCAPE_QUOTIENT) {
+                final int k = parameter(sum, n);
+                bits <<= quotient + 1;
+                value = (quotient << k) | (k > 0 ? (int) (bits >>> (64 - k)) : 0);
+                bits <<= k;
+                available -= quotient + 1 + k;
+            } else {
+                bits <<= ESCAPE_QUOTIENT;
+                value = (int) (bits >>> 56);
+                bits <<= 8;
+                available -= MAX_SAMPLE_BITS;
+            }
+            previous = (previous + ((value >>> 1) ^ -(value & 1))) & 0xff;
+            dst[dstOffset + i] = (short) previous;
+            sum += value;
+            if (++n == RESET_COUNT) {
+                sum >>= 1;
+                n >>= 1;
+            }
+        }
+        return count;
+    }
+
+    // Smallest k, up to MAX_K, with 2 * n * 2^k >= sum: the Rice parameter for a mean of
+    // sum / n. One less than the usual n * 2^k >= sum, which suits the peaked distribution
+    // of ECG differences better.
+    private static int parameter(int sum, int n) {
+        int k = 0;
+        while (k < MAX_K && (n << (k + 1)) < sum) {
+            k++;
+        }
+        return k;
+    }
+}
@@ -0,0 +1,107 @@
+package com.ecgshirt;
+
+/**
+ * Streaming filter chain for the raw ECG signal.
+ *
+ * Samples pass through three biquad sections: a high-pass that removes baseline
+ * wander, a notch at the mains frequency and a low-pass that removes muscle and
+ * radio noise. All state is allocated up front, so samples can be fed one at a
+ * time or in blocks from the data path.
+ */
+public final class EcgFilter {
+
+    /* Sampling rate of the shirt */
+    public static final double DEFAULT_SAMPLE_RATE = 200.0;
+
+    /* Cut-off of the baseline wander high-pass */
+    public static final double BASELINE_CUTOFF = 0.5;
+
+    /* Cut-off of the low-pass, keeps the diagnostic band of the QRS complex */
+    public static final double LOW_PASS_CUTOFF = 40.0;
+
+    /* Mains frequency in North America and in most of the rest of the world, resp. */
+    public static final double MAINS_60HZ = 60.0;
+    public static final double MAINS_50HZ = 50.0;
+
+    /* Q of the Butterworth sections and of the mains notch (about 2Hz wide) */
+    private static final double BUTTERWORTH_Q = 0.7071067811865476;
+    private static final double NOTCH_Q = 30.0;
+
+    private final Biquad mHighPass;
+    private final Biquad mNotch;
+    private final Biquad mLowPass;
+
+    private boolean mPrimed;
+
+    public EcgFilter() {
+        this(DEFAULT_SAMPLE_RATE, MAINS_60HZ);
+    }
+
+    /**
+     * @param sampleRate sampling rate of the input in Hz.
+     * @param mainsFrequency power line frequency to notch out in Hz.
+     */
+    public EcgFilter(double sampleRate, double mainsFrequency) {
+        mHighPass = Biquad.highPass(sampleRate, BASELINE_CUTOFF, BUTTERWORTH_Q);
+        mNotch = Biquad.notch(sampleRate, mainsFrequency, NOTCH_Q);
+        mLowPass = Biquad.lowPass(sampleRate, Math.min(LOW_PASS_CUTOFF, 0.45 * sampleRate),
+                BUTTERWORTH_Q);
+    }
+
+    /**
+     * Filters one sample.
+     *
+     * @param volts input sample in volts.
+     *
+     * @return Filtered sample in volts.
+     */
+    public float process(float volts) {
+        prime(volts);
+        return (float) mLowPass.process(mNotch.process(mHighPass.process(volts)));
+    }
+
+    /**
+     * Filters a block of raw samples as decoded by {@link EcgPacketDecoder}.
+     *
+     * @param raw unsigned 8-bit samples.
+     * @param rawOffset index of the first sample in {@code raw}.
+     * @param out array receiving the filtered samples in volts.
+     * @param outOffset index in {@code out} of the first filtered sample.
+     * @param length number of samples to filter.
+     */
+    public void process(short[] raw, int rawOffset, float[] out, int outOffset, int length) {
+        if (length <= 0) return;
+        for (int i = 0; i < length; i++) {
+            out[outOffset + i] = EcgPacketDecoder.toVolts(raw[rawOffset + i]);
+        }
+        process(out, outOffset, length);
+    }
+
+    /**
+     * Filters a block of samples in volts in place.
+     */
+    public void process(float[] samples, int offset, int length) {
+        if (length <= 0) return;
+        prime(samples[offset]);
+        mHighPass.process(samples, offset, length);
+        mNotch.process(samples, offset, length);
+        mLowPass.process(samples, offset, length);
+    }
+
+    /**
+     * Forgets the filter history, for example after the stream was interrupted.
+     */
+    public void reset() {
+        mPrimed = false;
+    }
+
+    // Start the high-pass from the first sample's level instead of from zero, otherwise
+    // the DC offset of the raw signal takes several seconds to settle.
+    private void prime(float first) {
+        if (mPrimed) return;
+        mHighPass.reset(first);
+        mNotch.reset();
+        mLowPass.reset();
+        mPrimed = true;
+    }
+}
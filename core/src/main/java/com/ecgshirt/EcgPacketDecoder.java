@@ -0,0 +1,86 @@
+package com.ecgshirt;
+
+/**
+ * Decodes ECG notification packets sent by the shirt (RFduino on-board).
+ *
+ * Each byte of a packet is an unsigned 8-bit encoding of a voltage between
+ * -1V and +1V. A packet carries as many samples as its length: 20 with the default
+ * ATT MTU, up to {@link #MAX_SAMPLES_PER_PACKET} once a larger MTU is negotiated.
+ * The decoder writes samples straight into arrays owned by the caller, so nothing
+ * is allocated per packet and the same buffers can be reused for every notification.
+ */
+public final class EcgPacketDecoder {
+
+    /* Number of samples carried by one notification with the default ATT MTU */
+    public static final int SAMPLES_PER_PACKET = 20;
+
+    /* Largest number of samples in a notification: the maximum attribute value length */
+    public static final int MAX_SAMPLES_PER_PACKET = 512;
+
+    /* ATT MTU every connection starts with, and the bytes of it taken by the ATT header */
+    public static final int DEFAULT_MTU = 23;
+    public static final int ATT_HEADER_SIZE = 3;
+
+    /* Raw sample values run from 0 (-1V) to SAMPLE_MAX (+1V) */
+    public static final int SAMPLE_MAX = 0xff;
+
+    /* Voltage represented by one count of a raw sample */
+    public static final float VOLTS_PER_COUNT = 2.0f / SAMPLE_MAX;
+
+    private EcgPacketDecoder() {
+    }
+
+    /**
+     * Decodes the raw samples of a packet.
+     *
+     * @param packet value of the ECG characteristic.
+     * @param dst array receiving the unsigned samples, with room for
+     *            {@link #MAX_SAMPLES_PER_PACKET} samples or the packet's length.
+     * @param offset index in {@code dst} of the first decoded sample.
+     *
+     * @return Number of samples written to {@code dst}.
+     */
+    public static int decode(byte[] packet, short[] dst, int offset) {
+        final int count = sampleCount(packet);
+        for (int j = 0; j < count; j++) {
+            dst[offset + j] = (short) (packet[j] & 0xff);
+        }
+        return count;
+    }
+
+    /**
+     * Decodes a packet into voltages between -1V and +1V.
+     *
+     * @param packet value of the ECG characteristic.
+     * @param dst array receiving the voltages.
+     * @param offset index in {@code dst} of the first decoded sample.
+     *
+     * @return Number of samples written to {@code dst}.
+     */
+    public static int decodeVolts(byte[] packet, float[] dst, int offset) {
+        final int count = sampleCount(packet);
+        for (int j = 0; j < count; j++) {
+            dst[offset + j] = toVolts(packet[j] & 0xff);
+        }
+        return count;
+    }
+
+    /**
+     * Number of samples that fit in one notification with the given ATT MTU.
+     */
+    public static int samplesPerPacket(int mtu) {
+        return Math.max(0, Math.min(mtu - ATT_HEADER_SIZE, MAX_SAMPLES_PER_PACKET));
+    }
+
+    /**
+     * Converts a raw sample to the voltage it encodes.
+     */
+    public static float toVolts(int sample) {
+        return sample * VOLTS_PER_COUNT - 1.0f;
+    }
+
+    private static int sampleCount(byte[] packet) {
+        if (packet == null) return 0;
+        return Math.min(packet.length, MAX_SAMPLES_PER_PACKET);
+    }
+}
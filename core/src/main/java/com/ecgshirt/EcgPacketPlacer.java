@@ -0,0 +1,112 @@
+package com.ecgshirt;
+
+/**
+ * Passes ECG packets on in stream order once {@link SampleClock} has settled where they
+ * belong.
+ *
+ * A packet arriving late is first counted as following lost packets; if the packets
+ * after it come early, in a burst, the clock takes the loss back. Consumers such as
+ * the live trace and the recording cannot take back samples, so after a loss the
+ * packets are held until the clock settles it, or until {@link #MAX_HELD_PACKETS}
+ * arrived, and only then handed on: the samples actually lost, if any, as one
+ * {@link Listener#onLoss} and the held packets as one contiguous
+ * {@link Listener#onSamples}. Without a loss packets are passed on as they arrive.
+ *
+ * Only one thread may use a placer.
+ */
+public final class EcgPacketPlacer {
+
+    /** Most packets held while a loss is unsettled; the clock settles within a few. */
+    public static final int MAX_HELD_PACKETS = 8;
+
+    /** Receives the stream from a placer. */
+    public interface Listener {
+        /**
+         * Called when samples were lost right before the next samples passed on.
+         */
+        void onLoss(long lostSamples);
+
+        /**
+         * Called with samples that follow the previous ones, after any loss reported.
+         *
+         * @param firstSample sample number of {@code samples[offset]} on the clock, see
+         *                    {@link SampleClock#getSampleTimeNanos(long)}.
+         */
+        void onSamples(short[] samples, int offset, int count, long firstSample);
+    }
+
+    private final SampleClock mClock;
+    private final Listener mListener;
+
+    /* Samples of the packets held while a loss is unsettled */
+    private final short[] mHeld =
+            new short[MAX_HELD_PACKETS * EcgPacketDecoder.MAX_SAMPLES_PER_PACKET];
+    private int mHeldSamples;
+    private int mHeldPackets;
+
+    /* Sample number following the last sample passed on */
+    private long mPassedSample;
+
+    public EcgPacketPlacer(SampleClock clock, Listener listener) {
+        mClock = clock;
+        mListener = listener;
+    }
+
+    /**
+     * Places a packet on the clock, and passes it on with any packets held before it
+     * unless a loss right before them is still unsettled.
+     *
+     * @param arrivalNanos time the packet arrived, see {@link SampleClock#onPacket}.
+     * @return Number of samples the clock counted as lost right before the packet; they
+     *         may still be taken back.
+     */
+    public long onPacket(long arrivalNanos, short[] samples, int offset, int count) {
+        final long lost = mClock.onPacket(arrivalNanos, count, SampleClock.NO_SEQUENCE);
+        if (lost > 0 && mHeldSamples > 0) {
+            // A new loss settles the one before: what is held ends before both
+            pass(mClock.getNextSample() - count - lost);
+        }
+        System.arraycopy(samples, offset, mHeld, mHeldSamples, count);
+        mHeldSamples += count;
+        mHeldPackets++;
+        if (mClock.getUnsettledLoss() > 0 && mHeldPackets == MAX_HELD_PACKETS) {
+            mClock.settleLoss();
+        }
+        if (mClock.getUnsettledLoss() == 0) pass(mClock.getNextSample());
+        return lost;
+    }
+
+    /**
+     * Settles any loss and passes on the packets held, for example at the end of the
+     * stream.
+     */
+    public void flush() {
+        mClock.settleLoss();
+        if (mHeldSamples > 0) pass(mClock.getNextSample());
+    }
+
+    /**
+     * Flushes the packets held and resets the clock, for example when the connection was
+     * lost: the next packet starts the stream again at sample 0.
+     */
+    public void reset() {
+        flush();
+        mClock.reset();
+        mPassedSample = 0;
+    }
+
+    /** Number of samples held until a loss is settled. */
+    public int getHeldSamples() {
+        return mHeldSamples;
+    }
+
+    // Passes on the held samples as ending right before the given sample number.
+    private void pass(long end) {
+        final long first = end - mHeldSamples;
+        if (first > mPassedSample) mListener.onLoss(first - mPassedSample);
+        mListener.onSamples(mHeld, 0, mHeldSamples, first);
+        mPassedSample = end;
+        mHeldSamples = 0;
+        mHeldPackets = 0;
+    }
+}
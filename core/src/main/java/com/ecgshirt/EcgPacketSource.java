@@ -0,0 +1,28 @@
+package com.ecgshirt;
+
+import java.io.IOException;
+
+/**
+ * A stream of ECG notification payloads, in the format the shirt sends them, for
+ * driving the app without a shirt.
+ *
+ * @see SyntheticPacketSource
+ * @see SessionPacketSource
+ */
+public interface EcgPacketSource {
+
+    /**
+     * Fills in the next packet.
+     *
+     * @param packet buffer as long as the largest packet the connection can carry,
+     *               see {@link EcgPacketDecoder#samplesPerPacket(int)}.
+     * @return Length of the packet, or -1 at the end of the stream.
+     */
+    int nextPacket(byte[] packet) throws IOException;
+
+    /** Sample rate of the stream, in Hz. */
+    double getSampleRate();
+
+    /** Releases any resources held by the source. */
+    void close() throws IOException;
+}
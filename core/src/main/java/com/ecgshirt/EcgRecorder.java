@@ -0,0 +1,278 @@
+package com.ecgshirt;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records the raw ECG stream of a session to a binary session file
+ * (see {@link EcgSessionFormat}), compressed with {@link DeltaRiceCodec}.
+ *
+ * The GATT callback thread hands decoded samples to {@link #append} which only copies
+ * them into a ring buffer. A background thread drains the ring into an
+ * {@link EcgSessionWriter} that keeps the file open for the whole session and writes
+ * in large blocks. Everything is written out at least once a second, and the file is
+ * synced to storage every 30 seconds and on {@link #checkpoint()}.
+ *
+ * Sample times are derived from the sample clock, starting at the arrival time of the
+ * first sample. After {@link #markGap()} the clock restarts at the arrival time of the
+ * next sample, which begins a block flagged as following a gap. Samples dropped because
+ * the writer fell behind are treated the same way, as a gap of known length, so the
+ * samples after them keep their sample numbers.
+ */
+public final class EcgRecorder {
+
+    /* Samples buffered between the GATT callback thread and the writer thread */
+    private static final int RING_CAPACITY = 16384;
+
+    private static final long FLUSH_INTERVAL_MS = 1000;
+    private static final long SYNC_INTERVAL_MS = 30000;
+
+    /* How long the writer thread sleeps between passes */
+    private static final long POLL_INTERVAL_NS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final File mFile;
+    private final String mDeviceAddress;
+    private final double mSampleRate;
+    private final SampleRingBuffer mRing = new SampleRingBuffer(RING_CAPACITY);
+
+    private EcgSessionWriter mWriter;
+    private Thread mThread;
+    private volatile boolean mRunning;
+    private volatile boolean mCheckpointRequested;
+    private volatile IOException mError;
+
+    /* Wall clock time of the first sample, set by the producer */
+    private volatile long mStartTime = -1;
+
+    /* Set by markGap(), turned into an entry of mGaps by the next append() */
+    private volatile boolean mGapRequested;
+
+    /* Samples known to be lost in the requested gap, and samples the producer could not
+       queue since the last append that queued any */
+    private final AtomicLong mLostRequested = new AtomicLong();
+    private long mDropped;
+
+    /* Position in the queue and arrival time of the first sample after each gap, and the
+       number of samples lost in it, for the writer thread */
+    private final ConcurrentLinkedQueue<long[]> mGaps = new ConcurrentLinkedQueue<long[]>();
+
+    /* Samples queued by the producer, published after they are in the ring */
+    private volatile long mSamplesQueued;
+
+    /* Writer thread state */
+    private final short[] mBatch = new short[1024];
+    private long mSamplesWritten;
+    private volatile long mBytesWritten;
+
+    /* Sample number the sample clock was last restarted at, and its time */
+    private long mClockSample;
+    private long mClockTime = -1;
+
+    /**
+     * @param file file the session is written to, replacing any existing file.
+     * @param deviceAddress address of the shirt, stored in the file header.
+     * @param sampleRate sampling rate of the stream in Hz.
+     */
+    public EcgRecorder(File file, String deviceAddress, double sampleRate) {
+        mFile = file;
+        mDeviceAddress = deviceAddress;
+        mSampleRate = sampleRate;
+    }
+
+    /**
+     * Creates the file, stamped with the current time, and starts the writer thread.
+     */
+    public void start() throws IOException {
+        start(System.currentTimeMillis());
+    }
+
+    /**
+     * Creates the file and starts the writer thread.
+     *
+     * @param startTime time the session starts, in ms since the epoch on the clock the
+     *                  sample times passed to {@link #append} are on.
+     */
+    public synchronized void start(long startTime) throws IOException {
+        if (mRunning) return;
+        mWriter = new EcgSessionWriter(mFile, new EcgSessionFormat.Header(
+                mDeviceAddress, mSampleRate, startTime, EcgSessionFormat.CODEC_DELTA_RICE));
+        mRunning = true;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "EcgRecorder");
+        mThread.setPriority(Thread.NORM_PRIORITY - 1);
+        mThread.start();
+    }
+
+    /**
+     * Queues samples for writing, arrived now. Never blocks; must only be called from one
+     * thread.
+     *
+     * @return Number of samples queued, less than {@code length} if the writer fell behind.
+     */
+    public int append(short[] samples, int offset, int length) {
+        return append(samples, offset, length, System.currentTimeMillis());
+    }
+
+    /**
+     * Queues samples for writing, arrived at the given time. Recordings of several
+     * devices made at once share a time base when their samples are stamped from the same
+     * clock. Never blocks; must only be called from one thread.
+     *
+     * @param timeMillis arrival time of the samples, in ms since the epoch; only used to
+     *                   time the first sample and the first sample after a gap.
+     * @return Number of samples queued, less than {@code length} if the writer fell behind.
+     */
+    public int append(short[] samples, int offset, int length, long timeMillis) {
+        if (mStartTime < 0) {
+            mStartTime = timeMillis;
+            mGapRequested = false;
+            mLostRequested.set(0);
+        } else if (mGapRequested || mDropped > 0) {
+            mGapRequested = false;
+            mGaps.add(new long[] {mSamplesQueued, timeMillis,
+                    mLostRequested.getAndSet(0) + mDropped});
+            mDropped = 0;
+        }
+        final int written = mRing.write(samples, offset, length);
+        mSamplesQueued += written;
+        mDropped = written > 0 ? length - written : mDropped + length;
+        return written;
+    }
+
+    /**
+     * Marks a break in the stream, for example a lost connection, so the samples
+     * appended next are time stamped with their arrival time instead of continuing
+     * from the samples before. May be called from any thread.
+     */
+    public void markGap() {
+        mGapRequested = true;
+    }
+
+    /**
+     * Marks a break in the stream in which a known number of samples was lost, for
+     * example packets missed by the radio: like {@link #markGap()}, and the samples
+     * appended next are numbered after the lost ones. May be called from any thread.
+     */
+    public void markGap(long lostSamples) {
+        mLostRequested.addAndGet(Math.max(0, lostSamples));
+        mGapRequested = true;
+    }
+
+    /**
+     * Asks the writer thread to write out everything queued so far and sync the file,
+     * for example when the connection to the shirt was lost.
+     */
+    public void checkpoint() {
+        mCheckpointRequested = true;
+        LockSupport.unpark(mThread);
+    }
+
+    /**
+     * Writes out all queued samples and closes the file.
+     */
+    public synchronized void stop() {
+        if (!mRunning) return;
+        mRunning = false;
+        LockSupport.unpark(mThread);
+        boolean interrupted = false;
+        while (mThread.isAlive()) {
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        try {
+            mWriter.close();
+            mBytesWritten = mWriter.getLength();
+        } catch (IOException e) {
+            if (mError == null) mError = e;
+        }
+    }
+
+    private void writeLoop() {
+        long lastFlush = System.currentTimeMillis();
+        long lastSync = lastFlush;
+        while (true) {
+            final boolean running = mRunning;
+            if (mError == null) {
+                try {
+                    drain();
+                    final long now = System.currentTimeMillis();
+                    if (mCheckpointRequested || now - lastSync >= SYNC_INTERVAL_MS) {
+                        mCheckpointRequested = false;
+                        mWriter.sync();
+                        lastSync = now;
+                        lastFlush = now;
+                    } else if (now - lastFlush >= FLUSH_INTERVAL_MS) {
+                        mWriter.flush();
+                        lastFlush = now;
+                    }
+                    mBytesWritten = mWriter.getLength();
+                } catch (IOException e) {
+                    mError = e;
+                }
+            } else {
+                // Keep draining so the producer never sees a full ring, but stop writing
+                mRing.skipAll();
+            }
+            if (!running) return;
+            LockSupport.parkNanos(this, POLL_INTERVAL_NS);
+        }
+    }
+
+    private void drain() throws IOException {
+        // Every gap before the samples counted here is already in mGaps
+        final long queued = mSamplesQueued;
+        if (mClockTime < 0) mClockTime = mStartTime;
+        while (mSamplesWritten < queued) {
+            long end = queued;
+            final long[] gap = mGaps.peek();
+            if (gap != null) {
+                if (gap[0] <= mSamplesWritten) {
+                    mGaps.poll();
+                    mWriter.markGap(gap[2]);
+                    mClockSample = mWriter.getSampleCount();
+                    mClockTime = gap[1];
+                    continue;
+                }
+                end = Math.min(end, gap[0]);
+            }
+            final int count = mRing.drain(mBatch, 0,
+                    (int) Math.min(mBatch.length, end - mSamplesWritten));
+            if (count <= 0) break;
+            final long time = mClockTime
+                    + (long) ((mWriter.getSampleCount() - mClockSample) * 1000 / mSampleRate);
+            mWriter.append(mBatch, 0, count, time);
+            mSamplesWritten += count;
+        }
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /** Size of the recording written so far. */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /** Samples that could not be queued because the writer fell behind. */
+    public long getDroppedSamples() {
+        return mRing.getDroppedSamples();
+    }
+
+    /** The write error that stopped the recording, or null. */
+    public IOException getError() {
+        return mError;
+    }
+}
@@ -0,0 +1,214 @@
+package com.ecgshirt;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Converts between binary ECG sessions and the text format of the old "ecg.txt"
+ * recordings, where every line reads "yyyy-MM-dd HH:mm:ss.SSS, value", and between
+ * session codecs. Text is converted to uncompressed sessions; "compress" rewrites one
+ * with {@link EcgSessionFormat#CODEC_DELTA_RICE}, the codec {@link EcgRecorder} records
+ * with.
+ *
+ * Can be run from a desktop JVM:
+ * <pre>
+ * EcgSessionConverter to-binary ecg.txt session.ecg [sampleRate] [deviceAddress]
+ * EcgSessionConverter to-text session.ecg ecg.txt
+ * EcgSessionConverter compress session.ecg compressed.ecg
+ * EcgSessionConverter uncompress compressed.ecg session.ecg
+ * </pre>
+ */
+public final class EcgSessionConverter {
+
+    private static final String DATE_PATTERN = "yyyy-MM-dd HH:mm:ss.SSS";
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private EcgSessionConverter() {
+    }
+
+    /**
+     * Converts a text recording to a binary session. Every line becomes one sample;
+     * blank lines are skipped.
+     *
+     * @return Number of samples converted.
+     */
+    public static long textToSession(File text, File session, String deviceAddress,
+                                     double sampleRate) throws IOException {
+        final SimpleDateFormat format = new SimpleDateFormat(DATE_PATTERN, Locale.US);
+        final BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(text), ASCII), 64 * 1024);
+        EcgSessionWriter writer = null;
+        try {
+            final short[] sample = new short[1];
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().length() == 0) continue;
+                final int comma = line.indexOf(',');
+                if (comma < 0) {
+                    throw new IOException(text + ":" + lineNumber + ": missing ','");
+                }
+                final long time;
+                try {
+                    time = format.parse(line.substring(0, comma).trim()).getTime();
+                    sample[0] = (short) Math.round(Float.parseFloat(line.substring(comma + 1).trim()));
+                } catch (ParseException e) {
+                    throw new IOException(text + ":" + lineNumber + ": " + e.getMessage());
+                } catch (NumberFormatException e) {
+                    throw new IOException(text + ":" + lineNumber + ": " + e.getMessage());
+                }
+                if (writer == null) {
+                    writer = new EcgSessionWriter(session,
+                            new EcgSessionFormat.Header(deviceAddress, sampleRate, time));
+                }
+                writer.append(sample, 0, 1, time);
+            }
+            if (writer == null) {
+                writer = new EcgSessionWriter(session, new EcgSessionFormat.Header(
+                        deviceAddress, sampleRate, text.lastModified()));
+            }
+            return writer.getSampleCount();
+        } finally {
+            reader.close();
+            if (writer != null) writer.close();
+        }
+    }
+
+    /**
+     * Converts a binary session to the text format, one line per sample.
+     *
+     * @return Number of samples converted.
+     */
+    public static long sessionToText(File session, File text) throws IOException {
+        final SimpleDateFormat format = new SimpleDateFormat(DATE_PATTERN, Locale.US);
+        final EcgSessionReader reader = new EcgSessionReader(session);
+        final BufferedWriter writer = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(text), ASCII), 64 * 1024);
+        try {
+            final double period = 1000 / reader.getSampleRate();
+            final short[] samples = new short[EcgSessionFormat.MAX_SAMPLES_PER_BLOCK];
+            final Date date = new Date();
+            long converted = 0;
+            for (int block = 0; block < reader.getBlockCount(); block++) {
+                final long time = reader.getBlockTime(block);
+                final int count = reader.readBlock(block, samples, 0);
+                for (int i = 0; i < count; i++) {
+                    date.setTime(time + (long) (i * period));
+                    writer.write(format.format(date));
+                    writer.write(", ");
+                    writer.write(Integer.toString(samples[i]));
+                    writer.write('\n');
+                }
+                converted += count;
+            }
+            return converted;
+        } finally {
+            reader.close();
+            writer.close();
+        }
+    }
+
+    /**
+     * Rewrites a session with another codec, keeping its blocks' times and gaps, then
+     * reads both back to check the copy holds the same samples.
+     *
+     * @param codec {@link EcgSessionFormat#CODEC_NONE} or
+     *              {@link EcgSessionFormat#CODEC_DELTA_RICE}.
+     * @return Number of samples the session spans, see
+     *         {@link EcgSessionReader#getSampleCount()}.
+     * @throws IOException if the copy could not be written or differs from the original.
+     */
+    public static long recode(File in, File out, int codec) throws IOException {
+        final short[] samples = new short[EcgSessionFormat.MAX_SAMPLES_PER_BLOCK];
+        final EcgSessionReader reader = new EcgSessionReader(in);
+        try {
+            final EcgSessionWriter writer = new EcgSessionWriter(out,
+                    new EcgSessionFormat.Header(reader.getDeviceAddress(),
+                            reader.getSampleRate(), reader.getStartTime(), codec));
+            try {
+                for (int block = 0; block < reader.getBlockCount(); block++) {
+                    if ((reader.getBlockFlags(block) & EcgSessionFormat.BLOCK_FLAG_GAP) != 0) {
+                        writer.markGap(
+                                reader.getBlockFirstSample(block) - writer.getSampleCount());
+                    }
+                    final int count = reader.readBlock(block, samples, 0);
+                    writer.append(samples, 0, count, reader.getBlockTime(block));
+                }
+            } finally {
+                writer.close();
+            }
+            compare(reader, out);
+            return reader.getSampleCount();
+        } finally {
+            reader.close();
+        }
+    }
+
+    // Checks the session in copy holds the same samples as the one open in reader.
+    private static void compare(EcgSessionReader reader, File copy) throws IOException {
+        final EcgSessionReader copyReader = new EcgSessionReader(copy);
+        try {
+            final short[] expected = new short[EcgSessionFormat.MAX_SAMPLES_PER_BLOCK];
+            final short[] actual = new short[EcgSessionFormat.MAX_SAMPLES_PER_BLOCK];
+            final long sampleCount = reader.getSampleCount();
+            if (copyReader.getSampleCount() != sampleCount) {
+                throw new IOException(copy + ": " + copyReader.getSampleCount()
+                        + " samples written, " + sampleCount + " expected");
+            }
+            for (int block = 0; block < reader.getBlockCount(); block++) {
+                final long sample = reader.getBlockFirstSample(block);
+                final int count = reader.readBlock(block, expected, 0);
+                if (copyReader.read(sample, actual, 0, count) != count) {
+                    throw new IOException(copy + ": samples missing after " + sample);
+                }
+                for (int i = 0; i < count; i++) {
+                    if (actual[i] != expected[i]) {
+                        throw new IOException(copy + ": sample " + (sample + i) + " is "
+                                + actual[i] + ", expected " + expected[i]);
+                    }
+                }
+            }
+        } finally {
+            copyReader.close();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length >= 3 && "to-binary".equals(args[0])) {
+            final double sampleRate = args.length > 3
+                    ? Double.parseDouble(args[3]) : EcgFilter.DEFAULT_SAMPLE_RATE;
+            final String address = args.length > 4 ? args[4] : null;
+            final long count = textToSession(new File(args[1]), new File(args[2]), address, sampleRate);
+            System.out.println("Converted " + count + " samples");
+        } else if (args.length == 3 && "to-text".equals(args[0])) {
+            final long count = sessionToText(new File(args[1]), new File(args[2]));
+            System.out.println("Converted " + count + " samples");
+        } else if (args.length == 3
+                && ("compress".equals(args[0]) || "uncompress".equals(args[0]))) {
+            final File in = new File(args[1]);
+            final File out = new File(args[2]);
+            final long count = recode(in, out, "compress".equals(args[0])
+                    ? EcgSessionFormat.CODEC_DELTA_RICE : EcgSessionFormat.CODEC_NONE);
+            System.out.println("Converted " + count + " samples, " + in.length() + " to "
+                    + out.length() + " bytes");
+        } else {
+            System.err.println("Usage: EcgSessionConverter to-binary <text> <session> [sampleRate] [address]");
+            System.err.println("       EcgSessionConverter to-text <session> <text>");
+            System.err.println("       EcgSessionConverter compress <session> <compressed>");
+            System.err.println("       EcgSessionConverter uncompress <compressed> <session>");
+            System.exit(2);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package com.ecgshirt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+/**
+ * Layout of a binary ECG session file.
+ *
+ * <pre>
+ * header   64 bytes   magic "ECGS", format version, block size, sample format,
+ *                     codec, sample rate, start time and device address
+ * block 0  BLOCK_SIZE bytes
+ * block 1  ...
+ * index    optional, written when the session is closed
+ * </pre>
+ *
+ * Every block has the same size, so block {@code i} starts at
+ * {@code HEADER_SIZE + i * BLOCK_SIZE}. A block starts with a 28 byte header holding
+ * the sequence number of its first sample, the wall clock time of that sample, the
+ * number of samples in the block, flags and a CRC32 of the rest of the block, followed
+ * by the samples in the session's codec: {@link #CODEC_NONE} stores one byte per
+ * sample, {@link #CODEC_DELTA_RICE} compresses them with {@link DeltaRiceCodec}, so a
+ * block holds as many samples as fit, up to {@link #MAX_SAMPLES_PER_BLOCK}. Each block
+ * decodes on its own, so seeking still reads a single block. Only the last block of a
+ * session and blocks followed by a gap may be partially filled.
+ *
+ * A block flagged {@link #BLOCK_FLAG_GAP} starts after a break in the stream, for
+ * example a lost connection: its time stamp is the arrival time of its first sample
+ * rather than continuing from the previous block at the sample rate. Sample numbers
+ * skip the samples known to be lost in the gap, so they keep counting the samples the
+ * shirt took; where the number lost is not known they carry on across the gap.
+ *
+ * The index lists the time and first sample of every block, followed by a 16 byte
+ * footer pointing back at it. Files that were not closed properly have no index;
+ * since blocks have a fixed size, readers can then still binary search the block
+ * headers directly.
+ *
+ * Version 1 files predate the codec field and are always {@link #CODEC_NONE}.
+ *
+ * All values are little-endian.
+ */
+public final class EcgSessionFormat {
+
+    public static final int MAGIC = 0x53474345;           // "ECGS"
+    public static final int INDEX_MAGIC = 0x49474345;     // "ECGI"
+    public static final int FOOTER_MAGIC = 0x58474345;    // "ECGX"
+    public static final int VERSION = 2;
+
+    public static final int HEADER_SIZE = 64;
+    public static final int BLOCK_SIZE = 512;
+    public static final int BLOCK_HEADER_SIZE = 28;
+    /** Bytes of samples in a block, and so the number of samples in a full uncompressed one. */
+    public static final int SAMPLES_PER_BLOCK = BLOCK_SIZE - BLOCK_HEADER_SIZE;
+    /** Most samples any block can hold; size buffers passed to block reads by this. */
+    public static final int MAX_SAMPLES_PER_BLOCK = DeltaRiceCodec.maxSamples(SAMPLES_PER_BLOCK);
+    public static final int INDEX_ENTRY_SIZE = 16;
+    public static final int FOOTER_SIZE = 16;
+
+    /* Unsigned 8-bit samples, as sent by the shirt */
+    public static final int SAMPLE_FORMAT_UINT8 = 1;
+
+    /** Codec: one byte per sample. */
+    public static final int CODEC_NONE = 0;
+    /** Codec: delta and adaptive Rice coding, see {@link DeltaRiceCodec}. */
+    public static final int CODEC_DELTA_RICE = 1;
+
+    /** Block flag: the stream was interrupted before the block's first sample. */
+    public static final int BLOCK_FLAG_GAP = 1;
+
+    /* Offsets in the file header */
+    private static final int CODEC_OFFSET = 13;
+    private static final int ADDRESS_OFFSET = 32;
+    private static final int ADDRESS_LENGTH = 24;
+
+    /* Offsets in a block header */
+    static final int BLOCK_FIRST_SAMPLE = 0;
+    static final int BLOCK_TIMESTAMP = 8;
+    static final int BLOCK_SAMPLE_COUNT = 16;
+    static final int BLOCK_FLAGS = 18;
+    static final int BLOCK_CRC = 20;
+    static final int BLOCK_RESERVED = 24;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private EcgSessionFormat() {
+    }
+
+    /**
+     * Description of a session, stored in the file header.
+     */
+    public static final class Header {
+        public final String deviceAddress;
+        public final double sampleRate;
+        public final long startTime;
+        public final int codec;
+
+        /**
+         * Describes an uncompressed session, stored with {@link #CODEC_NONE} so it can
+         * be read straight from a mapping; compression is opted into with
+         * {@link #Header(String, double, long, int)}.
+         *
+         * @param deviceAddress Bluetooth address of the shirt, may be null.
+         * @param sampleRate sampling rate in Hz.
+         * @param startTime wall clock time the session started, in ms since the epoch.
+         */
+        public Header(String deviceAddress, double sampleRate, long startTime) {
+            this(deviceAddress, sampleRate, startTime, CODEC_NONE);
+        }
+
+        /**
+         * @param codec {@link #CODEC_NONE} or {@link #CODEC_DELTA_RICE}.
+         */
+        public Header(String deviceAddress, double sampleRate, long startTime, int codec) {
+            this.deviceAddress = deviceAddress;
+            this.sampleRate = sampleRate;
+            this.startTime = startTime;
+            this.codec = codec;
+        }
+    }
+
+    static ByteBuffer encodeHeader(Header header) {
+        final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.putShort((short) VERSION);
+        buffer.putShort((short) HEADER_SIZE);
+        buffer.putInt(BLOCK_SIZE);
+        buffer.put((byte) SAMPLE_FORMAT_UINT8);
+        buffer.put((byte) header.codec);
+        buffer.putShort((short) 0);
+        buffer.putDouble(header.sampleRate);
+        buffer.putLong(header.startTime);
+        if (header.deviceAddress != null) {
+            final byte[] address = header.deviceAddress.getBytes(ASCII);
+            buffer.put(address, 0, Math.min(address.length, ADDRESS_LENGTH - 1));
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    static Header decodeHeader(ByteBuffer buffer) throws IOException {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not an ECG session file");
+        }
+        final int version = buffer.getShort(4);
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported ECG session version " + version);
+        }
+        final int codec = version > 1 ? buffer.get(CODEC_OFFSET) : CODEC_NONE;
+        if (buffer.getShort(6) != HEADER_SIZE || buffer.getInt(8) != BLOCK_SIZE
+                || buffer.get(12) != SAMPLE_FORMAT_UINT8
+                || (codec != CODEC_NONE && codec != CODEC_DELTA_RICE)) {
+            throw new IOException("Unsupported ECG session layout");
+        }
+        final byte[] address = new byte[ADDRESS_LENGTH];
+        int length = 0;
+        while (length < ADDRESS_LENGTH && buffer.get(ADDRESS_OFFSET + length) != 0) {
+            address[length] = buffer.get(ADDRESS_OFFSET + length);
+            length++;
+        }
+        return new Header(length > 0 ? new String(address, 0, length, ASCII) : null,
+                buffer.getDouble(16), buffer.getLong(24), codec);
+    }
+
+    /**
+     * Offset in the file of a block.
+     */
+    public static long blockOffset(long block) {
+        return HEADER_SIZE + block * BLOCK_SIZE;
+    }
+
+    /**
+     * Number of bytes after the block header a block's CRC covers: the samples in use
+     * if uncompressed, all of them otherwise.
+     */
+    static int payloadLength(int codec, int sampleCount) {
+        return codec == CODEC_NONE ? sampleCount : SAMPLES_PER_BLOCK;
+    }
+
+    /**
+     * Computes the CRC of a block held in {@code block}, covering the block header up
+     * to the CRC field and {@code payloadLength} bytes after the header.
+     */
+    static int blockCrc(CRC32 crc, byte[] block, int payloadLength) {
+        crc.reset();
+        crc.update(block, 0, BLOCK_CRC);
+        crc.update(block, BLOCK_HEADER_SIZE, payloadLength);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Decodes the samples of a block held in {@code block}.
+     *
+     * @return Number of samples written to {@code dst}, {@code sampleCount}.
+     */
+    static int decodeBlock(int codec, byte[] block, int sampleCount, short[] dst, int offset) {
+        if (codec == CODEC_NONE) {
+            for (int i = 0; i < sampleCount; i++) {
+                dst[offset + i] = (short) (block[BLOCK_HEADER_SIZE + i] & 0xff);
+            }
+            return sampleCount;
+        }
+        return DeltaRiceCodec.decode(block, BLOCK_HEADER_SIZE, SAMPLES_PER_BLOCK,
+                sampleCount, dst, offset);
+    }
+
+    /**
+     * Most samples a block of a session in the given codec can hold.
+     */
+    static int maxSamplesPerBlock(int codec) {
+        return codec == CODEC_NONE ? SAMPLES_PER_BLOCK : MAX_SAMPLES_PER_BLOCK;
+    }
+}
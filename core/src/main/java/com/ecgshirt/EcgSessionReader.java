@@ -0,0 +1,259 @@
+package com.ecgshirt;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Random access reader for sessions written by {@link EcgSessionWriter}.
+ *
+ * Blocks are located by binary search over the block index when the file has one,
+ * or over the block headers themselves when it was not closed properly, so seeking
+ * to any time or sample never scans the file. The samples of the block last read are
+ * kept decoded, so consecutive reads decode each block once. Readers are not thread safe.
+ */
+public final class EcgSessionReader implements Closeable {
+
+    private final FileChannel mChannel;
+    private final EcgSessionFormat.Header mHeader;
+    private final int mBlockCount;
+
+    /* Time and first sample of every block, or null if the file has no index */
+    private final long[] mIndex;
+
+    private final byte[] mBlock = new byte[EcgSessionFormat.BLOCK_SIZE];
+    private final ByteBuffer mBlockBuffer = ByteBuffer.wrap(mBlock).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer mBlockHeader =
+            ByteBuffer.allocate(EcgSessionFormat.BLOCK_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final CRC32 mCrc = new CRC32();
+
+    /* Samples of the block currently held in mBlock */
+    private final short[] mSamples = new short[EcgSessionFormat.MAX_SAMPLES_PER_BLOCK];
+    private int mSampleCount;
+
+    /* Block currently held in mBlock */
+    private int mLoadedBlock = -1;
+
+    public EcgSessionReader(File file) throws IOException {
+        mChannel = new FileInputStream(file).getChannel();
+        try {
+            final ByteBuffer header = ByteBuffer.allocate(EcgSessionFormat.HEADER_SIZE);
+            readFully(header, 0);
+            header.flip();
+            mHeader = EcgSessionFormat.decodeHeader(header);
+
+            final long length = mChannel.size();
+            long[] index = null;
+            long blocksEnd = length;
+            if (length >= EcgSessionFormat.HEADER_SIZE + EcgSessionFormat.FOOTER_SIZE) {
+                final ByteBuffer footer = ByteBuffer.allocate(EcgSessionFormat.FOOTER_SIZE)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                readFully(footer, length - EcgSessionFormat.FOOTER_SIZE);
+                if (footer.getInt(12) == EcgSessionFormat.FOOTER_MAGIC) {
+                    blocksEnd = footer.getLong(0);
+                    index = readIndex(blocksEnd, footer.getInt(8));
+                }
+            }
+            mIndex = index;
+            mBlockCount = (int) ((blocksEnd - EcgSessionFormat.HEADER_SIZE)
+                    / EcgSessionFormat.BLOCK_SIZE);
+        } catch (IOException e) {
+            mChannel.close();
+            throw e;
+        }
+    }
+
+    private long[] readIndex(long offset, int count) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(8 + count * EcgSessionFormat.INDEX_ENTRY_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        readFully(buffer, offset);
+        buffer.flip();
+        if (buffer.getInt() != EcgSessionFormat.INDEX_MAGIC || buffer.getInt() != count) {
+            throw new IOException("Corrupt block index");
+        }
+        final long[] index = new long[2 * count];
+        for (int i = 0; i < index.length; i++) {
+            index[i] = buffer.getLong();
+        }
+        return index;
+    }
+
+    public String getDeviceAddress() {
+        return mHeader.deviceAddress;
+    }
+
+    public double getSampleRate() {
+        return mHeader.sampleRate;
+    }
+
+    /** How samples are stored, see {@link EcgSessionFormat#CODEC_DELTA_RICE}. */
+    public int getCodec() {
+        return mHeader.codec;
+    }
+
+    /** Wall clock time the session started, in ms since the epoch. */
+    public long getStartTime() {
+        return mHeader.startTime;
+    }
+
+    public int getBlockCount() {
+        return mBlockCount;
+    }
+
+    /** True if the session was closed properly and has a block index. */
+    public boolean hasIndex() {
+        return mIndex != null;
+    }
+
+    /** Wall clock time of the first sample of a block. */
+    public long getBlockTime(int block) throws IOException {
+        if (mIndex != null) return mIndex[2 * block];
+        return readBlockHeader(block).getLong(EcgSessionFormat.BLOCK_TIMESTAMP);
+    }
+
+    /** Sequence number of the first sample of a block. */
+    public long getBlockFirstSample(int block) throws IOException {
+        if (mIndex != null) return mIndex[2 * block + 1];
+        return readBlockHeader(block).getLong(EcgSessionFormat.BLOCK_FIRST_SAMPLE);
+    }
+
+    /** Flags of a block, see {@link EcgSessionFormat#BLOCK_FLAG_GAP}. */
+    public int getBlockFlags(int block) throws IOException {
+        return readBlockHeader(block).getShort(EcgSessionFormat.BLOCK_FLAGS) & 0xffff;
+    }
+
+    /**
+     * Number of samples the session spans: one more than the number of its last sample,
+     * so samples lost in gaps are counted.
+     */
+    public long getSampleCount() throws IOException {
+        if (mBlockCount == 0) return 0;
+        final ByteBuffer header = readBlockHeader(mBlockCount - 1);
+        return header.getLong(EcgSessionFormat.BLOCK_FIRST_SAMPLE)
+                + (header.getShort(EcgSessionFormat.BLOCK_SAMPLE_COUNT) & 0xffff);
+    }
+
+    /**
+     * Finds the block holding the sample recorded at a given time.
+     *
+     * @return Index of the last block starting at or before {@code time}, 0 if the time
+     *         lies before the session, or -1 if the session is empty.
+     */
+    public int findBlockByTime(long time) throws IOException {
+        int low = 0, high = mBlockCount - 1, found = mBlockCount > 0 ? 0 : -1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (getBlockTime(mid) <= time) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Finds the block holding a sample.
+     *
+     * @return Index of the last block starting at or before {@code sample}, or -1 if the
+     *         session is empty.
+     */
+    public int findBlockBySample(long sample) throws IOException {
+        int low = 0, high = mBlockCount - 1, found = mBlockCount > 0 ? 0 : -1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (getBlockFirstSample(mid) <= sample) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Reads the samples of one block.
+     *
+     * @return Number of samples copied to {@code dst}, at most
+     *         {@link EcgSessionFormat#MAX_SAMPLES_PER_BLOCK}.
+     * @throws IOException if the block fails its CRC check.
+     */
+    public int readBlock(int block, short[] dst, int offset) throws IOException {
+        loadBlock(block);
+        System.arraycopy(mSamples, 0, dst, offset, mSampleCount);
+        return mSampleCount;
+    }
+
+    /**
+     * Reads consecutive samples starting at a given sequence number.
+     *
+     * @return Number of samples copied, less than {@code count} at the end of the session
+     *         or at samples lost in a gap; 0 if {@code firstSample} itself was lost.
+     */
+    public int read(long firstSample, short[] dst, int offset, int count) throws IOException {
+        int copied = 0;
+        int block = findBlockBySample(firstSample);
+        if (block < 0) return 0;
+        long sample = firstSample;
+        while (copied < count && block < mBlockCount) {
+            loadBlock(block);
+            final long blockStart = mBlockBuffer.getLong(EcgSessionFormat.BLOCK_FIRST_SAMPLE);
+            final int start = (int) (sample - blockStart);
+            // Samples lost before the block
+            if (start < 0) break;
+            final int n = Math.min(count - copied, mSampleCount - start);
+            if (n > 0) {
+                System.arraycopy(mSamples, start, dst, offset + copied, n);
+                copied += n;
+                sample += n;
+            }
+            block++;
+        }
+        return copied;
+    }
+
+    private void loadBlock(int block) throws IOException {
+        if (block == mLoadedBlock) return;
+        if (block < 0 || block >= mBlockCount) {
+            throw new IndexOutOfBoundsException("Block " + block + " of " + mBlockCount);
+        }
+        mLoadedBlock = -1;
+        mBlockBuffer.clear();
+        readFully(mBlockBuffer, EcgSessionFormat.blockOffset(block));
+        final int codec = mHeader.codec;
+        final int count = mBlockBuffer.getShort(EcgSessionFormat.BLOCK_SAMPLE_COUNT) & 0xffff;
+        if (count > EcgSessionFormat.maxSamplesPerBlock(codec)
+                || mBlockBuffer.getInt(EcgSessionFormat.BLOCK_CRC) != EcgSessionFormat.blockCrc(
+                        mCrc, mBlock, EcgSessionFormat.payloadLength(codec, count))) {
+            throw new IOException("Corrupt block " + block);
+        }
+        mSampleCount = EcgSessionFormat.decodeBlock(codec, mBlock, count, mSamples, 0);
+        mLoadedBlock = block;
+    }
+
+    private ByteBuffer readBlockHeader(int block) throws IOException {
+        mBlockHeader.clear();
+        readFully(mBlockHeader, EcgSessionFormat.blockOffset(block));
+        return mBlockHeader;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            final int read = mChannel.read(buffer, position);
+            if (read < 0) throw new IOException("Unexpected end of session file");
+            position += read;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+    }
+}
@@ -0,0 +1,273 @@
+package com.ecgshirt;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Writes an ECG session in the binary format described by {@link EcgSessionFormat}.
+ *
+ * Completed blocks are collected in a direct buffer and written to the file in large
+ * chunks by {@link #flush()}. The block being filled is also written by each flush, so
+ * nothing appended before a flush is lost if the app dies; the next flush rewrites it
+ * in place with the samples added since. Writers are not thread safe.
+ *
+ * With {@link EcgSessionFormat#CODEC_DELTA_RICE} samples are compressed as they are
+ * appended, and a block is completed when the next sample no longer fits.
+ */
+public final class EcgSessionWriter implements Closeable {
+
+    /* Number of completed blocks buffered before they are written out */
+    private static final int BUFFERED_BLOCKS = 64;
+
+    private final FileChannel mChannel;
+    private final double mSampleRate;
+    private final int mCodec;
+    private final DeltaRiceCodec.Encoder mEncoder = new DeltaRiceCodec.Encoder();
+
+    private final ByteBuffer mOut =
+            ByteBuffer.allocateDirect(BUFFERED_BLOCKS * EcgSessionFormat.BLOCK_SIZE);
+    private final byte[] mBlock = new byte[EcgSessionFormat.BLOCK_SIZE];
+    private final ByteBuffer mBlockHeader = ByteBuffer.wrap(mBlock).order(ByteOrder.LITTLE_ENDIAN);
+    private final CRC32 mCrc = new CRC32();
+
+    /* Number of blocks completed, and the file offset the buffered blocks go to */
+    private long mBlockCount;
+    private long mWriteOffset = EcgSessionFormat.HEADER_SIZE;
+
+    /* Samples in the block being filled */
+    private int mFill;
+
+    /* Sequence number of the next sample, counting samples lost in gaps */
+    private long mSampleCount;
+
+    /* Whether the next block starts after a gap */
+    private boolean mGap;
+
+    /* Index entries of completed blocks */
+    private long[] mIndex = new long[2 * 1024];
+
+    private boolean mClosed;
+
+    /**
+     * Creates the file, replacing any existing one, and writes its header.
+     */
+    public EcgSessionWriter(File file, EcgSessionFormat.Header header) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        mChannel = raf.getChannel();
+        mSampleRate = header.sampleRate;
+        mCodec = header.codec;
+        writeFully(EcgSessionFormat.encodeHeader(header), 0);
+    }
+
+    /**
+     * Appends samples.
+     *
+     * @param samples raw 8-bit samples.
+     * @param offset index of the first sample in {@code samples}.
+     * @param length number of samples.
+     * @param time wall clock time of the first sample in ms since the epoch. Later
+     *             samples are assumed to follow at the session's sample rate.
+     */
+    public void append(short[] samples, int offset, int length, long time) throws IOException {
+        if (mCodec != EcgSessionFormat.CODEC_NONE) {
+            appendEncoded(samples, offset, length, time);
+            return;
+        }
+        for (int i = 0; i < length; ) {
+            if (mFill == 0) {
+                startBlock(time + (long) (i * 1000 / mSampleRate));
+            }
+            final int count = Math.min(length - i, EcgSessionFormat.SAMPLES_PER_BLOCK - mFill);
+            for (int j = 0; j < count; j++) {
+                mBlock[EcgSessionFormat.BLOCK_HEADER_SIZE + mFill + j] = (byte) samples[offset + i + j];
+            }
+            mFill += count;
+            mSampleCount += count;
+            i += count;
+            if (mFill == EcgSessionFormat.SAMPLES_PER_BLOCK) {
+                finishBlock();
+            }
+        }
+    }
+
+    private void appendEncoded(short[] samples, int offset, int length, long time)
+            throws IOException {
+        for (int i = 0; i < length; ) {
+            if (mFill == 0) {
+                startBlock(time + (long) (i * 1000 / mSampleRate));
+                mEncoder.start(mBlock, EcgSessionFormat.BLOCK_HEADER_SIZE,
+                        EcgSessionFormat.SAMPLES_PER_BLOCK);
+            }
+            if (mEncoder.put(samples[offset + i])) {
+                mFill++;
+                mSampleCount++;
+                i++;
+            } else {
+                // Full: the sample starts the next block
+                finishBlock();
+            }
+        }
+    }
+
+    /**
+     * Marks a break in the stream: the block being filled is ended, and the samples
+     * appended next start a new block flagged {@link EcgSessionFormat#BLOCK_FLAG_GAP},
+     * time stamped with the time passed to {@link #append}.
+     */
+    public void markGap() throws IOException {
+        markGap(0);
+    }
+
+    /**
+     * Marks a break in the stream in which a known number of samples was lost: like
+     * {@link #markGap()}, and the samples appended next are numbered after the lost ones.
+     */
+    public void markGap(long lostSamples) throws IOException {
+        if (mSampleCount == 0) return;
+        if (mFill > 0) {
+            finishBlock();
+        }
+        mGap = true;
+        mSampleCount += Math.max(0, lostSamples);
+    }
+
+    private void startBlock(long time) {
+        mBlockHeader.putLong(EcgSessionFormat.BLOCK_FIRST_SAMPLE, mSampleCount);
+        mBlockHeader.putLong(EcgSessionFormat.BLOCK_TIMESTAMP, time);
+        mBlockHeader.putShort(EcgSessionFormat.BLOCK_FLAGS,
+                (short) (mGap ? EcgSessionFormat.BLOCK_FLAG_GAP : 0));
+        mGap = false;
+        mBlockHeader.putInt(EcgSessionFormat.BLOCK_RESERVED, 0);
+    }
+
+    // Seals the block being filled and queues it for writing.
+    private void finishBlock() throws IOException {
+        sealBlock();
+        if (mOut.remaining() < EcgSessionFormat.BLOCK_SIZE) {
+            writeBuffered();
+        }
+        mOut.put(mBlock);
+        addIndexEntry(mBlockHeader.getLong(EcgSessionFormat.BLOCK_TIMESTAMP),
+                mBlockHeader.getLong(EcgSessionFormat.BLOCK_FIRST_SAMPLE));
+        mBlockCount++;
+        mFill = 0;
+    }
+
+    private void sealBlock() {
+        int used = mFill;
+        if (mCodec != EcgSessionFormat.CODEC_NONE) {
+            mEncoder.flushBits();
+            used = mEncoder.getLength();
+        }
+        // Unused sample bytes are zeroed so partially filled blocks are reproducible
+        for (int i = EcgSessionFormat.BLOCK_HEADER_SIZE + used; i < mBlock.length; i++) {
+            mBlock[i] = 0;
+        }
+        mBlockHeader.putShort(EcgSessionFormat.BLOCK_SAMPLE_COUNT, (short) mFill);
+        mBlockHeader.putInt(EcgSessionFormat.BLOCK_CRC, EcgSessionFormat.blockCrc(mCrc, mBlock,
+                EcgSessionFormat.payloadLength(mCodec, mFill)));
+    }
+
+    private void addIndexEntry(long time, long firstSample) {
+        final int entry = (int) (2 * mBlockCount);
+        if (entry + 2 > mIndex.length) {
+            final long[] index = new long[2 * mIndex.length];
+            System.arraycopy(mIndex, 0, index, 0, mIndex.length);
+            mIndex = index;
+        }
+        mIndex[entry] = time;
+        mIndex[entry + 1] = firstSample;
+    }
+
+    /**
+     * Writes all completed blocks and the block being filled to the file.
+     */
+    public void flush() throws IOException {
+        writeBuffered();
+        if (mFill > 0) {
+            sealBlock();
+            writeFully(ByteBuffer.wrap(mBlock), mWriteOffset);
+        }
+    }
+
+    /**
+     * Flushes and forces the file's content to storage.
+     */
+    public void sync() throws IOException {
+        flush();
+        mChannel.force(false);
+    }
+
+    private void writeBuffered() throws IOException {
+        mOut.flip();
+        final int length = mOut.remaining();
+        writeFully(mOut, mWriteOffset);
+        mWriteOffset += length;
+        mOut.clear();
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += mChannel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Sample number the next appended sample gets: the number of samples appended so
+     * far, plus those lost in gaps.
+     */
+    public long getSampleCount() {
+        return mSampleCount;
+    }
+
+    /** Size of the file once everything appended so far has been flushed. */
+    public long getLength() {
+        return EcgSessionFormat.blockOffset(mBlockCount + (mFill > 0 ? 1 : 0));
+    }
+
+    /**
+     * Completes the last block, writes the block index and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) return;
+        mClosed = true;
+        try {
+            if (mFill > 0) {
+                finishBlock();
+            }
+            writeBuffered();
+
+            final long indexOffset = mWriteOffset;
+            final ByteBuffer index = ByteBuffer.allocate(8 + (int) mBlockCount
+                    * EcgSessionFormat.INDEX_ENTRY_SIZE + EcgSessionFormat.FOOTER_SIZE)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            index.putInt(EcgSessionFormat.INDEX_MAGIC);
+            index.putInt((int) mBlockCount);
+            for (int i = 0; i < 2 * mBlockCount; i++) {
+                index.putLong(mIndex[i]);
+            }
+            index.putLong(indexOffset);
+            index.putInt((int) mBlockCount);
+            index.putInt(EcgSessionFormat.FOOTER_MAGIC);
+            index.flip();
+            writeFully(index, indexOffset);
+            mChannel.truncate(indexOffset + index.limit());
+            mChannel.force(false);
+        } finally {
+            mChannel.close();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.ecgshirt;
+
+/**
+ * Reads fields out of raw GATT characteristic values, for {@link CharacteristicParsers}.
+ *
+ * Works on the value's bytes rather than {@code BluetoothGattCharacteristic}, so it can
+ * run (and be measured) off the device, and returns primitives rather than boxed values.
+ * All fields are little-endian, as in the Bluetooth specifications.
+ */
+public final class GattFormat {
+
+    private GattFormat() {
+    }
+
+    /**
+     * Reads an unsigned 16-bit field, without boxing.
+     *
+     * @return The value, or -1 if the field does not fit in {@code value}.
+     */
+    public static int getUint16(byte[] value, int offset) {
+        if (value == null || offset < 0 || offset + 2 > value.length) {
+            return -1;
+        }
+        return uint16(value, offset);
+    }
+
+    /**
+     * Reads an IEEE-11073 32-bit FLOAT field, without boxing.
+     *
+     * @return The value, NaN if the field does not fit in {@code value} or holds one of
+     *         the special values NaN, NRes or reserved, and infinity for +/-INFINITY.
+     */
+    public static float getFloat(byte[] value, int offset) {
+        if (value == null || offset < 0 || offset + 4 > value.length) {
+            return Float.NaN;
+        }
+        // 24-bit mantissa, 8-bit exponent
+        final int raw = uint32(value, offset);
+        final int mantissa = (raw << 8) >> 8;
+        final int exponent = raw >> 24;
+        switch (mantissa) {
+            case 0x7ffffe:
+                return Float.POSITIVE_INFINITY;
+            case -0x7ffffe:
+                return Float.NEGATIVE_INFINITY;
+            case 0x7fffff:
+            case -0x800000:
+            case -0x7fffff:
+                return Float.NaN;
+            default:
+                return (float) (mantissa * Math.pow(10, exponent));
+        }
+    }
+
+    /**
+     * Reads an unsigned 24-bit field, a size Android has no format constant for.
+     *
+     * @return The value, or -1 if the field does not fit in {@code value}.
+     */
+    public static int getUint24(byte[] value, int offset) {
+        if (value == null || offset < 0 || offset + 3 > value.length) {
+            return -1;
+        }
+        return (value[offset] & 0xff) | (value[offset + 1] & 0xff) << 8
+                | (value[offset + 2] & 0xff) << 16;
+    }
+
+    private static int uint16(byte[] value, int offset) {
+        return (value[offset] & 0xff) | (value[offset + 1] & 0xff) << 8;
+    }
+
+    private static int uint32(byte[] value, int offset) {
+        return (value[offset] & 0xff) | (value[offset + 1] & 0xff) << 8
+                | (value[offset + 2] & 0xff) << 16 | (value[offset + 3] & 0xff) << 24;
+    }
+}
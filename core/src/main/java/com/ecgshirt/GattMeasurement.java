@@ -0,0 +1,113 @@
+package com.ecgshirt;
+
+/**
+ * Fields of one characteristic value, as read by a {@link CharacteristicParser}.
+ *
+ * One instance is reused for every value of a connection, so parsing allocates
+ * nothing; only the fields of the measurement's {@link #getType() type} are valid after
+ * a parse.
+ */
+public final class GattMeasurement {
+
+    public static final int TYPE_NONE = 0;
+    public static final int TYPE_HEART_RATE = 1;
+    public static final int TYPE_TEMPERATURE = 2;
+    public static final int TYPE_STEP_COUNT = 3;
+
+    /* Most RR intervals a Heart Rate Measurement can carry in a 512 byte value */
+    public static final int MAX_RR_INTERVALS = 255;
+
+    /* RR intervals are sent in units of 1/1024 s */
+    public static final int RR_UNITS_PER_SECOND = 1024;
+
+    /** Sensor contact feature not supported by the sensor. */
+    public static final int CONTACT_UNSUPPORTED = -1;
+    public static final int CONTACT_NOT_DETECTED = 0;
+    public static final int CONTACT_DETECTED = 1;
+
+    private int mType = TYPE_NONE;
+
+    /* Heart Rate Measurement */
+    private int mHeartRate;
+    private int mSensorContact = CONTACT_UNSUPPORTED;
+    private int mEnergyExpended = -1;
+    private final int[] mRrIntervals = new int[MAX_RR_INTERVALS];
+    private int mRrCount;
+
+    /* Temperature Measurement, always in degrees Celsius */
+    private float mTemperature;
+
+    /* Step count */
+    private int mStepCount;
+
+    /** One of the TYPE_* constants, TYPE_NONE if the last parse failed. */
+    public int getType() {
+        return mType;
+    }
+
+    /** Heart rate in beats per minute. */
+    public int getHeartRate() {
+        return mHeartRate;
+    }
+
+    /** One of the CONTACT_* constants. */
+    public int getSensorContact() {
+        return mSensorContact;
+    }
+
+    /** Energy expended in kJ since the last reset, -1 if not sent. */
+    public int getEnergyExpended() {
+        return mEnergyExpended;
+    }
+
+    /** Number of RR intervals sent with the heart rate, 0 if none. */
+    public int getRrIntervalCount() {
+        return mRrCount;
+    }
+
+    /** RR interval {@code i}, oldest first, in units of 1/{@link #RR_UNITS_PER_SECOND} s. */
+    public int getRrInterval(int i) {
+        return mRrIntervals[i];
+    }
+
+    /** RR interval {@code i}, oldest first, in ms. */
+    public int getRrIntervalMillis(int i) {
+        return (int) ((mRrIntervals[i] * 1000L + RR_UNITS_PER_SECOND / 2) / RR_UNITS_PER_SECOND);
+    }
+
+    /** Temperature in degrees Celsius. */
+    public float getTemperature() {
+        return mTemperature;
+    }
+
+    /** Steps counted. */
+    public int getStepCount() {
+        return mStepCount;
+    }
+
+    void clear() {
+        mType = TYPE_NONE;
+    }
+
+    void setHeartRate(int heartRate, int sensorContact, int energyExpended) {
+        mType = TYPE_HEART_RATE;
+        mHeartRate = heartRate;
+        mSensorContact = sensorContact;
+        mEnergyExpended = energyExpended;
+        mRrCount = 0;
+    }
+
+    void addRrInterval(int interval) {
+        if (mRrCount < mRrIntervals.length) mRrIntervals[mRrCount++] = interval;
+    }
+
+    void setTemperature(float celsius) {
+        mType = TYPE_TEMPERATURE;
+        mTemperature = celsius;
+    }
+
+    void setStepCount(int steps) {
+        mType = TYPE_STEP_COUNT;
+        mStepCount = steps;
+    }
+}
@@ -0,0 +1,120 @@
+package com.ecgshirt;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative values, such as latencies in ns, in power of two
+ * buckets.
+ *
+ * Bucket {@code b} counts the values from 2^(b-1) to 2^b - 1 (bucket 0 counts 0), so
+ * percentiles are known to within a factor of two, which is enough to tell a 50us
+ * decode from a 5ms one. Recording is a handful of atomic operations and never
+ * allocates; any number of threads may record and read at once.
+ */
+public final class Histogram {
+
+    public static final int BUCKETS = 64;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * Records a value; negative values are recorded as 0.
+     */
+    public void record(long value) {
+        if (value < 0) value = 0;
+        mBuckets.incrementAndGet(bucket(value));
+        mSum.addAndGet(value);
+        long max;
+        while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) {
+            // Raced with another thread raising the maximum, try again
+        }
+    }
+
+    private static int bucket(long value) {
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+    }
+
+    /**
+     * @return The counts so far. Values recorded while the snapshot is taken may or may
+     *         not be in it.
+     */
+    public Snapshot snapshot() {
+        final long[] buckets = new long[BUCKETS];
+        long count = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            buckets[b] = mBuckets.get(b);
+            count += buckets[b];
+        }
+        return new Snapshot(buckets, count, mSum.get(), mMax.get());
+    }
+
+    /**
+     * Counts of a {@link Histogram} at one point in time, or between two points.
+     */
+    public static final class Snapshot {
+        private final long[] mBuckets;
+        private final long mCount;
+        private final long mSum;
+        private final long mMax;
+
+        private Snapshot(long[] buckets, long count, long sum, long max) {
+            mBuckets = buckets;
+            mCount = count;
+            mSum = sum;
+            mMax = max;
+        }
+
+        /**
+         * @return The values recorded after {@code earlier} was taken. Its maximum is the
+         *         upper bound of the highest bucket used in that time.
+         */
+        public Snapshot since(Snapshot earlier) {
+            if (earlier == null) return this;
+            final long[] buckets = new long[BUCKETS];
+            long count = 0;
+            long max = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                buckets[b] = mBuckets[b] - earlier.mBuckets[b];
+                count += buckets[b];
+                if (buckets[b] > 0) max = Math.min(mMax, upperBound(b));
+            }
+            return new Snapshot(buckets, count, mSum - earlier.mSum, max);
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        /** Mean of the values, 0 if there are none. */
+        public long getMean() {
+            return mCount > 0 ? mSum / mCount : 0;
+        }
+
+        public long getMax() {
+            return mMax;
+        }
+
+        /**
+         * @param quantile between 0 and 1, for example 0.99.
+         * @return Upper bound of the bucket holding the given quantile, 0 if there are no
+         *         values.
+         */
+        public long getPercentile(double quantile) {
+            if (mCount == 0) return 0;
+            final long rank = (long) Math.ceil(quantile * mCount);
+            long seen = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                seen += mBuckets[b];
+                if (seen >= rank && seen > 0) return Math.min(mMax, upperBound(b));
+            }
+            return mMax;
+        }
+
+        private static long upperBound(int bucket) {
+            return bucket >= 63 ? Long.MAX_VALUE : (1L << bucket) - 1;
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package com.ecgshirt;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Memory-mapped view of a recorded ECG session (see {@link EcgSessionFormat}).
+ *
+ * The whole file is mapped read-only, so samples are read straight from the page
+ * cache and a session of several hundred MB can be scrolled and analyzed without
+ * holding it on the heap. Lookups by time or sample number binary search the block
+ * index (or the block headers of a session that was not closed properly).
+ *
+ * Samples of an uncompressed session are read straight from the mapping. Those of a
+ * compressed one are decoded a block at a time into a per-thread cache holding the block
+ * that thread read last, so scrolling decodes each block once and readers on different
+ * threads never wait for each other.
+ *
+ * For speed, reads do not check block CRCs; call {@link #verify()} once to check a
+ * file of unknown origin. Instances are safe to read from several threads.
+ */
+public final class MappedEcgSession implements Closeable {
+
+    private final FileChannel mChannel;
+    private final MappedByteBuffer mMap;
+    private final EcgSessionFormat.Header mHeader;
+    private final int mBlockCount;
+
+    /* Offset of the first index entry, or -1 if the file has no index */
+    private final int mIndexOffset;
+
+    /* Each thread's last block decoded from a compressed session */
+    private final ThreadLocal<DecodedBlock> mDecoded = new ThreadLocal<DecodedBlock>() {
+        @Override
+        protected DecodedBlock initialValue() {
+            return new DecodedBlock(mMap.duplicate());
+        }
+    };
+
+    public MappedEcgSession(File file) throws IOException {
+        mChannel = new FileInputStream(file).getChannel();
+        try {
+            final long size = mChannel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Session too large to map: " + size + " bytes");
+            }
+            mMap = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            mMap.order(ByteOrder.LITTLE_ENDIAN);
+            mHeader = EcgSessionFormat.decodeHeader(mMap.duplicate());
+
+            long blocksEnd = size;
+            int indexOffset = -1;
+            if (size >= EcgSessionFormat.HEADER_SIZE + EcgSessionFormat.FOOTER_SIZE
+                    && mMap.getInt((int) size - 4) == EcgSessionFormat.FOOTER_MAGIC) {
+                blocksEnd = mMap.getLong((int) size - EcgSessionFormat.FOOTER_SIZE);
+                if (mMap.getInt((int) blocksEnd) != EcgSessionFormat.INDEX_MAGIC) {
+                    throw new IOException("Corrupt block index");
+                }
+                indexOffset = (int) blocksEnd + 8;
+            }
+            mIndexOffset = indexOffset;
+            mBlockCount = (int) ((blocksEnd - EcgSessionFormat.HEADER_SIZE)
+                    / EcgSessionFormat.BLOCK_SIZE);
+        } catch (IOException e) {
+            mChannel.close();
+            throw e;
+        }
+    }
+
+    public String getDeviceAddress() {
+        return mHeader.deviceAddress;
+    }
+
+    public double getSampleRate() {
+        return mHeader.sampleRate;
+    }
+
+    /** How samples are stored, see {@link EcgSessionFormat#CODEC_DELTA_RICE}. */
+    public int getCodec() {
+        return mHeader.codec;
+    }
+
+    /** Wall clock time the session started, in ms since the epoch. */
+    public long getStartTime() {
+        return mHeader.startTime;
+    }
+
+    public int getBlockCount() {
+        return mBlockCount;
+    }
+
+    /** Flags of a block, see {@link EcgSessionFormat#BLOCK_FLAG_GAP}. */
+    public int getBlockFlags(int block) {
+        return mMap.getShort(blockPosition(block) + EcgSessionFormat.BLOCK_FLAGS) & 0xffff;
+    }
+
+    /**
+     * Number of samples the session spans: one more than the number of its last sample,
+     * so samples lost in gaps are counted.
+     */
+    public long getSampleCount() {
+        if (mBlockCount == 0) return 0;
+        return blockFirstSample(mBlockCount - 1) + blockSampleCount(mBlockCount - 1);
+    }
+
+    /** Wall clock time of the last sample, or the start time of an empty session. */
+    public long getEndTime() {
+        if (mBlockCount == 0) return mHeader.startTime;
+        final int last = mBlockCount - 1;
+        return blockTime(last) + (long) ((blockSampleCount(last) - 1) * 1000 / mHeader.sampleRate);
+    }
+
+    /**
+     * Reads one sample.
+     *
+     * @return The raw sample, or -1 if no sample with that number was recorded.
+     */
+    public int getSample(long sample) {
+        final int block = findBlockBySample(sample);
+        if (block < 0) return -1;
+        final long index = sample - blockFirstSample(block);
+        if (index < 0 || index >= blockSampleCount(block)) return -1;
+        if (mHeader.codec == EcgSessionFormat.CODEC_NONE) {
+            return mMap.get(samplePosition(block, (int) index)) & 0xff;
+        }
+        return decode(block).samples[(int) index];
+    }
+
+    /**
+     * Number of the sample recorded closest to, but not after, the given time.
+     */
+    public long getSampleAtTime(long time) {
+        final int block = findBlockByTime(time);
+        if (block < 0) return 0;
+        final long offset = (long) ((time - blockTime(block)) * mHeader.sampleRate / 1000);
+        return blockFirstSample(block)
+                + Math.max(0, Math.min(offset, blockSampleCount(block) - 1));
+    }
+
+    /**
+     * Copies consecutive samples.
+     *
+     * @return Number of samples copied, less than {@code count} at the end of the session
+     *         or at samples lost in a gap; 0 if {@code firstSample} itself was lost.
+     */
+    public int read(long firstSample, short[] dst, int offset, int count) {
+        int copied = 0;
+        long sample = firstSample;
+        for (int block = Math.max(0, findBlockBySample(firstSample));
+             copied < count && block < mBlockCount; block++) {
+            final int start = (int) (sample - blockFirstSample(block));
+            final int n = Math.min(count - copied, blockSampleCount(block) - start);
+            // Samples lost before the block
+            if (start < 0) break;
+            if (n <= 0) continue;
+            if (mHeader.codec == EcgSessionFormat.CODEC_NONE) {
+                int position = samplePosition(block, start);
+                for (int i = 0; i < n; i++) {
+                    dst[offset + copied + i] = (short) (mMap.get(position++) & 0xff);
+                }
+            } else {
+                System.arraycopy(decode(block).samples, start, dst, offset + copied, n);
+            }
+            copied += n;
+            sample += n;
+        }
+        return copied;
+    }
+
+    /**
+     * Reduces the samples between two times to a min/max envelope, for example one
+     * entry per pixel column of a plot.
+     *
+     * @see #getEnvelope(long, long, int, short[], short[])
+     */
+    public void getEnvelopeByTime(long fromTime, long toTime, int columns,
+                                  short[] min, short[] max) {
+        getEnvelope(getSampleAtTime(fromTime), getSampleAtTime(toTime) + 1, columns, min, max);
+    }
+
+    /**
+     * Reduces samples {@code fromSample} (inclusive) to {@code toSample} (exclusive) to
+     * a min/max envelope of {@code columns} entries. Columns without samples are set to
+     * -1 in both arrays.
+     */
+    public void getEnvelope(long fromSample, long toSample, int columns,
+                            short[] min, short[] max) {
+        for (int c = 0; c < columns; c++) {
+            min[c] = -1;
+            max[c] = -1;
+        }
+        final long span = toSample - fromSample;
+        if (span <= 0 || columns <= 0) return;
+
+        for (int block = Math.max(0, findBlockBySample(fromSample)); block < mBlockCount; block++) {
+            final long first = blockFirstSample(block);
+            if (first >= toSample) break;
+            final int start = (int) Math.max(0, fromSample - first);
+            final int end = (int) Math.min(blockSampleCount(block), toSample - first);
+            if (mHeader.codec == EcgSessionFormat.CODEC_NONE) {
+                int position = samplePosition(block, start);
+                for (int i = start; i < end; i++) {
+                    final int column = (int) ((first + i - fromSample) * columns / span);
+                    final short value = (short) (mMap.get(position++) & 0xff);
+                    if (min[column] < 0 || value < min[column]) min[column] = value;
+                    if (value > max[column]) max[column] = value;
+                }
+            } else {
+                final short[] decoded = decode(block).samples;
+                for (int i = start; i < end; i++) {
+                    final int column = (int) ((first + i - fromSample) * columns / span);
+                    final short value = decoded[i];
+                    if (min[column] < 0 || value < min[column]) min[column] = value;
+                    if (value > max[column]) max[column] = value;
+                }
+            }
+        }
+    }
+
+    // Decodes a block of a compressed session into the calling thread's cache, unless it
+    // is there already.
+    private DecodedBlock decode(int block) {
+        final DecodedBlock decoded = mDecoded.get();
+        if (block == decoded.block) return decoded;
+        decoded.view.position(blockPosition(block));
+        decoded.view.get(decoded.encoded);
+        final int count = Math.min(blockSampleCount(block), EcgSessionFormat.MAX_SAMPLES_PER_BLOCK);
+        EcgSessionFormat.decodeBlock(mHeader.codec, decoded.encoded, count, decoded.samples, 0);
+        decoded.block = block;
+        return decoded;
+    }
+
+    /**
+     * Finds the block holding the sample recorded at a given time.
+     *
+     * @return Index of the last block starting at or before {@code time}, 0 if the time
+     *         lies before the session, or -1 if the session is empty.
+     */
+    public int findBlockByTime(long time) {
+        int low = 0, high = mBlockCount - 1, found = mBlockCount > 0 ? 0 : -1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (blockTime(mid) <= time) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Finds the block holding a sample.
+     *
+     * @return Index of the last block starting at or before {@code sample}, or -1 if the
+     *         session is empty.
+     */
+    public int findBlockBySample(long sample) {
+        int low = 0, high = mBlockCount - 1, found = mBlockCount > 0 ? 0 : -1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (blockFirstSample(mid) <= sample) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Checks the CRC of every block.
+     *
+     * @return Index of the first corrupt block, or -1 if all blocks are intact.
+     */
+    public int verify() {
+        final CRC32 crc = new CRC32();
+        final byte[] block = new byte[EcgSessionFormat.BLOCK_SIZE];
+        final ByteBuffer view = mMap.duplicate();
+        for (int i = 0; i < mBlockCount; i++) {
+            final int count = blockSampleCount(i);
+            view.position(blockPosition(i));
+            view.get(block);
+            if (count > EcgSessionFormat.maxSamplesPerBlock(mHeader.codec)
+                    || mMap.getInt(blockPosition(i) + EcgSessionFormat.BLOCK_CRC)
+                            != EcgSessionFormat.blockCrc(crc, block,
+                                    EcgSessionFormat.payloadLength(mHeader.codec, count))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private long blockTime(int block) {
+        if (mIndexOffset >= 0) {
+            return mMap.getLong(mIndexOffset + block * EcgSessionFormat.INDEX_ENTRY_SIZE);
+        }
+        return mMap.getLong(blockPosition(block) + EcgSessionFormat.BLOCK_TIMESTAMP);
+    }
+
+    private long blockFirstSample(int block) {
+        if (mIndexOffset >= 0) {
+            return mMap.getLong(mIndexOffset + block * EcgSessionFormat.INDEX_ENTRY_SIZE + 8);
+        }
+        return mMap.getLong(blockPosition(block) + EcgSessionFormat.BLOCK_FIRST_SAMPLE);
+    }
+
+    private int blockSampleCount(int block) {
+        return mMap.getShort(blockPosition(block) + EcgSessionFormat.BLOCK_SAMPLE_COUNT) & 0xffff;
+    }
+
+    private static int blockPosition(int block) {
+        return (int) EcgSessionFormat.blockOffset(block);
+    }
+
+    private static int samplePosition(int block, int index) {
+        return blockPosition(block) + EcgSessionFormat.BLOCK_HEADER_SIZE + index;
+    }
+
+    private static final class DecodedBlock {
+        final ByteBuffer view;
+        final byte[] encoded = new byte[EcgSessionFormat.BLOCK_SIZE];
+        final short[] samples = new short[EcgSessionFormat.MAX_SAMPLES_PER_BLOCK];
+        int block = -1;
+
+        DecodedBlock(ByteBuffer view) {
+            this.view = view;
+        }
+    }
+
+    /**
+     * Closes the file. The mapping itself is released when it is garbage collected.
+     */
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+    }
+}
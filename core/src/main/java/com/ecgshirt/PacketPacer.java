@@ -0,0 +1,83 @@
+package com.ecgshirt;
+
+import java.util.Random;
+
+/**
+ * Decides when each packet of a replayed stream is delivered, and which are lost.
+ *
+ * A packet is nominally due once its last sample has been taken, at the stream's
+ * sample rate multiplied by a speed factor, so longer packets come less often. Each
+ * may be delayed by a random amount up to the jitter, but never before the previous
+ * packet, so late packets arrive in bursts as they do over the air. Loss is
+ * independent per packet. All randomness comes from the seed, so a replay with the
+ * same parameters delivers the same packets at the same times.
+ */
+public final class PacketPacer {
+
+    private final double mNanosPerSample;
+    private final long mJitterNanos;
+    private final double mLossRate;
+    private final Random mRandom;
+
+    private long mSampleCount;
+    private long mPacketCount;
+    private long mLostCount;
+    private long mLastDue;
+    private boolean mLost;
+
+    /**
+     * @param sampleRate sample rate of the stream at normal speed, in Hz.
+     * @param speed 1 for real time, 2 for twice as fast and so on; 0 to deliver packets
+     *              as fast as they can be handled.
+     * @param jitterMillis largest random delay of a packet, in ms.
+     * @param lossRate probability of a packet being lost, from 0 to 1.
+     * @param seed seed of the jitter and loss.
+     */
+    public PacketPacer(double sampleRate, double speed, double jitterMillis,
+                       double lossRate, long seed) {
+        mNanosPerSample = speed > 0 ? 1e9 / (sampleRate * speed) : 0;
+        mJitterNanos = (long) (jitterMillis * 1000000);
+        mLossRate = lossRate;
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * Pacer delivering packets evenly at their real rate, without loss.
+     */
+    public static PacketPacer realTime(double sampleRate) {
+        return new PacketPacer(sampleRate, 1, 0, 0, 0);
+    }
+
+    /**
+     * Advances to the next packet.
+     *
+     * @param samples number of samples in the packet.
+     * @return Time the packet is due, in ns since the start of the stream.
+     */
+    public long next(int samples) {
+        mSampleCount += samples;
+        mPacketCount++;
+        long due = (long) (mSampleCount * mNanosPerSample);
+        if (mJitterNanos > 0) {
+            due += (long) (mRandom.nextDouble() * mJitterNanos);
+        }
+        mLastDue = Math.max(mLastDue, due);
+        mLost = mLossRate > 0 && mRandom.nextDouble() < mLossRate;
+        if (mLost) mLostCount++;
+        return mLastDue;
+    }
+
+    /** True if the packet returned by the last {@link #next(int)} is lost. */
+    public boolean isLost() {
+        return mLost;
+    }
+
+    /** Number of packets paced so far, including lost ones. */
+    public long getPacketCount() {
+        return mPacketCount;
+    }
+
+    public long getLostCount() {
+        return mLostCount;
+    }
+}
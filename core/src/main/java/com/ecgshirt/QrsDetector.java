@@ -0,0 +1,301 @@
+package com.ecgshirt;
+
+import java.util.Arrays;
+
+/**
+ * Incremental Pan-Tompkins QRS detector.
+ *
+ * Samples are fed one at a time. They are band-passed to 5-15Hz, differentiated,
+ * squared and integrated over a 150ms window; peaks of the integrated signal are
+ * classified as QRS complexes or noise against adaptive thresholds, with a 200ms
+ * refractory period and a search-back when a beat appears to have been missed.
+ * The R-peak is then located in the input over the integration window ahead of the
+ * detected peak.
+ *
+ * Memory use is constant. A beat is normally reported one integration window after
+ * its R-peak; beats recovered by the search-back are reported late, at most 166% of
+ * the average RR interval after the previous beat.
+ *
+ * Sample positions are counted from the first sample fed to the detector, so
+ * {@link #getLastRPeak()} can be mapped back to the sequence numbers of a
+ * {@link SampleRingBuffer} fed from the same stream. Breaks in the stream are passed
+ * on with {@link #markGap(long)}, so no RR interval is measured across them.
+ */
+public final class QrsDetector {
+
+    /* Length of the moving window integrator */
+    private static final double INTEGRATION_WINDOW_S = 0.150;
+
+    /* No second QRS complex can follow a beat within this time */
+    private static final double REFRACTORY_S = 0.200;
+
+    /* Thresholds are learned from this much signal before any beat is reported */
+    private static final double LEARNING_S = 2.0;
+
+    /* Number of RR intervals in the running average */
+    private static final int RR_HISTORY = 8;
+
+    /* Input kept to locate R-peaks, long enough for the search-back */
+    private static final double HISTORY_S = 2.5;
+
+    private final double mSampleRate;
+    private final int mRefractory;
+    private final int mLearning;
+
+    /* 5-15Hz band-pass */
+    private final Biquad mHighPass;
+    private final Biquad mLowPass;
+
+    /* Last four band-passed samples for the five point derivative */
+    private double mX1, mX2, mX3, mX4;
+
+    /* Moving window integrator */
+    private final double[] mWindow;
+    private double mWindowSum;
+
+    /* Recent input samples, to locate the R-peak */
+    private final float[] mHistory;
+
+    /* Previous two integrator outputs, for local maximum detection */
+    private double mPrev1, mPrev2;
+
+    /* Running estimates of signal and noise peak levels, and the derived threshold */
+    private double mSignalLevel, mNoiseLevel, mThreshold;
+
+    /* Statistics of the integrated signal collected while learning the initial thresholds,
+       and the number of samples they were collected from */
+    private double mLearnMax, mLearnSum;
+    private int mLearned;
+
+    /* Best noise peak since the last beat, used by the search-back */
+    private double mSearchBackPeak;
+    private long mSearchBackIndex = -1;
+
+    private final int[] mRrHistory = new int[RR_HISTORY];
+    private int mRrCount;
+    private long mRrSum;
+
+    /* Number of samples processed so far, counting those lost in gaps */
+    private long mIndex;
+
+    /* Position of the first sample after the last gap, where the filters restart */
+    private long mSegmentStart;
+
+    /* Position of the last QRS peak in the integrated signal, and of its R-peak */
+    private long mLastQrs = -1;
+    private long mLastRPeak = -1;
+    private int mLastRrInterval;
+
+    /**
+     * @param sampleRate sampling rate of the input in Hz.
+     */
+    public QrsDetector(double sampleRate) {
+        mSampleRate = sampleRate;
+        mRefractory = (int) Math.round(REFRACTORY_S * sampleRate);
+        mLearning = (int) Math.round(LEARNING_S * sampleRate);
+        final int window = Math.max(1, (int) Math.round(INTEGRATION_WINDOW_S * sampleRate));
+        mWindow = new double[window];
+        mHistory = new float[Math.max(window, (int) Math.round(HISTORY_S * sampleRate))];
+        mHighPass = Biquad.highPass(sampleRate, 5.0, 0.7071067811865476);
+        mLowPass = Biquad.lowPass(sampleRate, 15.0, 0.7071067811865476);
+    }
+
+    /**
+     * Feeds one sample to the detector.
+     *
+     * @param x ECG sample, in any unit.
+     *
+     * @return True if a beat was detected with this sample, its details are then
+     *         available from {@link #getLastRPeak()} and {@link #getLastRrInterval()}.
+     */
+    public boolean process(float x) {
+        if (mIndex == mSegmentStart) {
+            mHighPass.reset(x);
+        }
+        final double band = mLowPass.process(mHighPass.process(x));
+        final double derivative = (2 * band + mX1 - mX3 - 2 * mX4) / 8;
+        mX4 = mX3;
+        mX3 = mX2;
+        mX2 = mX1;
+        mX1 = band;
+
+        final int slot = (int) (mIndex % mWindow.length);
+        final double squared = derivative * derivative;
+        mWindowSum += squared - mWindow[slot];
+        mWindow[slot] = squared;
+        mHistory[(int) (mIndex % mHistory.length)] = x;
+        final double integrated = Math.max(0, mWindowSum) / mWindow.length;
+
+        boolean beat = false;
+        if (mLearned < mLearning) {
+            mLearnMax = Math.max(mLearnMax, integrated);
+            mLearnSum += integrated;
+            if (++mLearned == mLearning) {
+                mSignalLevel = mLearnMax / 3;
+                mNoiseLevel = mLearnSum / mLearning / 2;
+                updateThreshold();
+            }
+        } else {
+            // The previous integrator output is a local maximum
+            if (mPrev1 > mPrev2 && mPrev1 >= integrated) {
+                beat = onPeak(mPrev1, mIndex - 1);
+            }
+            if (!beat && mSearchBackIndex >= 0 && mRrCount > 0
+                    && mIndex - mLastQrs > 166 * mRrSum / Math.min(mRrCount, RR_HISTORY) / 100) {
+                beat = searchBack();
+            }
+        }
+        mPrev2 = mPrev1;
+        mPrev1 = integrated;
+        mIndex++;
+        return beat;
+    }
+
+    private boolean onPeak(double peak, long index) {
+        if (mLastQrs >= 0 && index - mLastQrs < mRefractory) {
+            return false;
+        }
+        if (peak > mThreshold) {
+            mSignalLevel = 0.125 * peak + 0.875 * mSignalLevel;
+            updateThreshold();
+            onQrs(index);
+            return true;
+        }
+        mNoiseLevel = 0.125 * peak + 0.875 * mNoiseLevel;
+        updateThreshold();
+        if (peak > mThreshold / 2 && peak > mSearchBackPeak) {
+            mSearchBackPeak = peak;
+            mSearchBackIndex = index;
+        }
+        return false;
+    }
+
+    // No beat within 166% of the average RR interval: take the best noise peak above
+    // the lower threshold as the missed beat.
+    private boolean searchBack() {
+        final long index = mSearchBackIndex;
+        final double peak = mSearchBackPeak;
+        mSearchBackIndex = -1;
+        mSearchBackPeak = 0;
+        // The window ahead of an old peak is no longer in the history
+        if (mIndex - index + mWindow.length > mHistory.length) {
+            return false;
+        }
+        mSignalLevel = 0.25 * peak + 0.75 * mSignalLevel;
+        updateThreshold();
+        onQrs(index);
+        return true;
+    }
+
+    private void onQrs(long index) {
+        final long rPeak = locateRPeak(index);
+        if (mLastRPeak >= 0) {
+            mLastRrInterval = (int) (rPeak - mLastRPeak);
+            final int slot = mRrCount % RR_HISTORY;
+            if (mRrCount >= RR_HISTORY) {
+                mRrSum -= mRrHistory[slot];
+            }
+            mRrHistory[slot] = mLastRrInterval;
+            mRrSum += mLastRrInterval;
+            mRrCount++;
+        }
+        mLastQrs = index;
+        mLastRPeak = rPeak;
+        mSearchBackIndex = -1;
+        mSearchBackPeak = 0;
+    }
+
+    /**
+     * Marks a break in the stream before the next sample, such as a lost connection.
+     * The filters restart on the next sample and the next beat reports no RR interval,
+     * as the one before the gap may be missing; the learned thresholds and the average
+     * heart rate are kept.
+     *
+     * @param lostSamples number of samples known to be lost in the gap, skipped in the
+     *                    sample positions; 0 if not known.
+     */
+    public void markGap(long lostSamples) {
+        mIndex += Math.max(0, lostSamples);
+        mSegmentStart = mIndex;
+        mLowPass.reset();
+        mX1 = mX2 = mX3 = mX4 = 0;
+        Arrays.fill(mWindow, 0);
+        mWindowSum = 0;
+        mPrev1 = mPrev2 = 0;
+        mSearchBackPeak = 0;
+        mSearchBackIndex = -1;
+        mLastQrs = -1;
+        mLastRPeak = -1;
+        mLastRrInterval = 0;
+    }
+
+    // The R-peak is the input sample that deviates most from the start of the integration
+    // window that ends at the integrated peak.
+    private long locateRPeak(long index) {
+        final int length = mHistory.length;
+        final long start = Math.max(0, Math.max(index - mWindow.length + 1, mIndex - length + 1));
+        final float base = mHistory[(int) (start % length)];
+        long best = index;
+        float max = -1;
+        for (long i = start; i <= index; i++) {
+            final float value = Math.abs(mHistory[(int) (i % length)] - base);
+            if (value > max) {
+                max = value;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    private void updateThreshold() {
+        mThreshold = mNoiseLevel + 0.25 * (mSignalLevel - mNoiseLevel);
+    }
+
+    /**
+     * Position of the most recent R-peak, counted in samples from the first sample
+     * fed to the detector, or -1 if no beat was detected yet.
+     */
+    public long getLastRPeak() {
+        return mLastRPeak;
+    }
+
+    /**
+     * Interval in samples between the two most recent R-peaks, or 0 after the first beat.
+     */
+    public int getLastRrInterval() {
+        return mLastRrInterval;
+    }
+
+    /**
+     * Interval between the two most recent R-peaks in milliseconds, or 0 after the first beat.
+     */
+    public int getLastRrIntervalMillis() {
+        return (int) Math.round(mLastRrInterval * 1000.0 / mSampleRate);
+    }
+
+    /**
+     * Heart rate in beats per minute derived from the most recent RR interval, or 0 if
+     * fewer than two beats were detected.
+     */
+    public int getInstantHeartRate() {
+        if (mLastRrInterval <= 0) return 0;
+        return (int) Math.round(60.0 * mSampleRate / mLastRrInterval);
+    }
+
+    /**
+     * Heart rate in beats per minute averaged over the last eight RR intervals, or 0 if
+     * fewer than two beats were detected.
+     */
+    public int getAverageHeartRate() {
+        final int count = Math.min(mRrCount, RR_HISTORY);
+        if (count == 0 || mRrSum <= 0) return 0;
+        return (int) Math.round(60.0 * mSampleRate * count / mRrSum);
+    }
+
+    /**
+     * Number of samples processed so far.
+     */
+    public long getSampleCount() {
+        return mIndex;
+    }
+}
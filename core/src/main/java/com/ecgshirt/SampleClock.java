@@ -0,0 +1,300 @@
+package com.ecgshirt;
+
+/**
+ * Reconstructs the shirt's sample clock from the arrival times of its packets, and
+ * detects the packets lost on the way.
+ *
+ * ECG packets carry no sequence number or time stamp, so each one is placed in the
+ * stream by when it arrived. A packet cannot arrive before its last sample was taken;
+ * the earliest arrivals therefore trace the sample clock, shifted by the smallest
+ * delivery latency, and later ones are that clock plus some latency. The clock is
+ * modelled as a line through that lower envelope: an early packet moves it down at
+ * once, it moves up to the earliest of the last few packets if they all came late,
+ * and every {@link #DRIFT_WINDOW_SECONDS} the slope is refitted through the envelope
+ * minima since the start, which corrects for the shirt's oscillator running faster or
+ * slower than the nominal rate.
+ *
+ * A packet arriving later than the usual latency by more than half a packet, the gap
+ * threshold and four times the usual deviation from that latency comes after a gap:
+ * the excess is rounded to whole packets and counted as lost samples, and the packet
+ * is placed after them. Smaller delays are taken as latency. If any of the next few
+ * packets then arrive early, in a burst, they were held up rather than lost, and the
+ * loss is taken back from the counts and the clock. Until then the loss is unsettled,
+ * see {@link #getUnsettledLoss()}: the samples already placed stay where they are, so
+ * consumers that cannot move samples wait for the loss to settle
+ * ({@link EcgPacketPlacer}). If the firmware numbers its packets, the sequence byte
+ * gives the number lost exactly instead.
+ *
+ * Times are in ns on any monotonic clock, such as {@code System.nanoTime()}. Only one
+ * thread may call {@link #onPacket}.
+ */
+public final class SampleClock {
+
+    /** Length of the windows whose envelope minima the drift is fitted through. */
+    public static final int DRIFT_WINDOW_SECONDS = 30;
+
+    /** Sequence number passed to {@link #onPacket} for packets without one. */
+    public static final int NO_SEQUENCE = -1;
+
+    /* Largest drift from the nominal rate believed, as a fraction; oscillators are
+       within a few hundred ppm */
+    private static final double MAX_DRIFT = 0.005;
+
+    /* Weight of a new value in the smoothed latency and its deviation */
+    private static final double LATENCY_SMOOTHING = 1.0 / 64;
+
+    /* Number of packets after a loss that may show it to have been a delay */
+    private static final int SETTLE_PACKETS = 4;
+
+    /* Number of packets the clock is raised to the earliest of, if they were all late */
+    private static final int ENVELOPE_PACKETS = 32;
+
+    private final double mNominalPeriod;
+    private final long mGapThreshold;
+    private final long mDriftWindow;
+
+    /* Arrival time of the first packet, which all other times are relative to */
+    private long mOrigin;
+    private boolean mStarted;
+
+    /* Sample number of the next sample, counting the lost ones */
+    private long mNextSample;
+
+    /* Clock model: the earliest packet ending at sample n arrives at mBase + n * mPeriod */
+    private double mBase;
+    private double mPeriod;
+
+    /* Smoothed latency of packets above the model, and its mean deviation */
+    private double mLatency;
+    private double mDeviation;
+
+    /* Lowest latency of the last few packets, see ENVELOPE_PACKETS */
+    private double mRecentMin;
+    private int mRecentPackets;
+
+    /* Minimum of arrival - n * nominal period in the current drift window, and in the
+       first one, with the sample numbers they were at */
+    private long mWindowEnd;
+    private double mWindowMin;
+    private long mWindowMinSample;
+    private double mFirstMin;
+    private long mFirstMinSample = -1;
+
+    /* Sequence number of the last numbered packet, and its sample count */
+    private int mLastSequence = NO_SEQUENCE;
+    private int mLastCount;
+
+    /* Samples counted as lost before the last packet, taken back if the packets after it
+       turn out to have been held up with it rather than lost, and the number of packets
+       left that may still show that */
+    private long mLastGap;
+    private int mUnsettledPackets;
+
+    private long mReceivedSamples;
+    private long mLostSamples;
+    private long mGapCount;
+
+    /**
+     * @param sampleRate nominal sample rate in Hz.
+     * @param gapThresholdNanos smallest delay beyond the usual latency taken for lost
+     *                          packets rather than a late delivery, for example the
+     *                          longest connection interval.
+     */
+    public SampleClock(double sampleRate, long gapThresholdNanos) {
+        mNominalPeriod = 1e9 / sampleRate;
+        mGapThreshold = gapThresholdNanos;
+        mDriftWindow = Math.round(sampleRate * DRIFT_WINDOW_SECONDS);
+        reset();
+    }
+
+    /**
+     * Forgets the stream, for example when the connection was lost: the next packet
+     * starts the clock again. The counts of lost and received samples are kept.
+     */
+    public void reset() {
+        mStarted = false;
+        mNextSample = 0;
+        mPeriod = mNominalPeriod;
+        mLatency = 0;
+        mDeviation = 0;
+        mRecentMin = Double.MAX_VALUE;
+        mRecentPackets = 0;
+        mFirstMinSample = -1;
+        mLastSequence = NO_SEQUENCE;
+        mLastGap = 0;
+    }
+
+    /**
+     * Places a packet in the stream.
+     *
+     * @param arrivalNanos time the packet arrived.
+     * @param count number of samples in the packet.
+     * @param sequence sequence number of the packet from 0 to 255, wrapping around, or
+     *                 {@link #NO_SEQUENCE}.
+     * @return Number of samples lost right before the packet, 0 if none.
+     */
+    public long onPacket(long arrivalNanos, int count, int sequence) {
+        if (!mStarted) {
+            mStarted = true;
+            mOrigin = arrivalNanos;
+            mBase = -count * mPeriod;
+            mNextSample = count;
+            mWindowEnd = mDriftWindow;
+            mWindowMin = Double.MAX_VALUE;
+            mReceivedSamples += count;
+            rememberSequence(sequence, count);
+            return 0;
+        }
+        final double time = arrivalNanos - mOrigin;
+        long lost = 0;
+        if (sequence != NO_SEQUENCE && mLastSequence != NO_SEQUENCE) {
+            lost = (long) ((sequence - mLastSequence - 1) & 0xff) * mLastCount;
+        }
+        double lateness = time - (mBase + (mNextSample + lost + count) * mPeriod);
+        final double packet = count * mPeriod;
+        if (sequence == NO_SEQUENCE && lateness - mLatency
+                > Math.max(Math.max(mGapThreshold, packet / 2), 4 * mDeviation)) {
+            lost = Math.round((lateness - mLatency) / packet) * count;
+            lateness -= lost * mPeriod;
+        }
+        if (lost > 0) {
+            mLostSamples += lost;
+            mGapCount++;
+            mNextSample += lost;
+        } else if (mLastGap > 0) {
+            // Packets coming in a burst, a packet early, after the "gap" were delayed
+            // with the packet before them, not lost
+            final long early = Math.min(mLastGap,
+                    Math.round((mLatency - lateness) / packet) * count);
+            if (early > 0) {
+                mLostSamples -= early;
+                mNextSample -= early;
+                lateness += early * mPeriod;
+                mLastGap -= early;
+                if (mLastGap == 0) mGapCount--;
+            } else if (--mUnsettledPackets == 0) {
+                mLastGap = 0;
+            }
+        }
+        if (sequence == NO_SEQUENCE && lost > 0) {
+            mLastGap = lost;
+            mUnsettledPackets = SETTLE_PACKETS;
+        }
+        if (lateness < 0) {
+            // Earlier than the clock allows: the clock is earlier than thought. Not while
+            // a loss is unsettled though, the packet may only seem early because a delay
+            // was rounded up to a loss, and moving the clock would hide the burst that
+            // shows the loss was a delay
+            if (mLastGap == 0) mBase += lateness;
+            lateness = 0;
+        }
+        if (lost == 0) {
+            // Limited to half a packet, so a missed loss does not hide the next ones
+            final double deviation = Math.min(Math.abs(lateness - mLatency), packet / 2);
+            mDeviation += LATENCY_SMOOTHING * (deviation - mDeviation);
+            mLatency += LATENCY_SMOOTHING * (lateness - mLatency);
+        }
+        // If no packet of a while came near the clock, it is later than thought: a loss
+        // too small to tell from latency, or drift not fitted yet
+        mRecentMin = Math.min(mRecentMin, lateness);
+        if (++mRecentPackets == ENVELOPE_PACKETS) {
+            mBase += mRecentMin;
+            mLatency -= mRecentMin;
+            mRecentMin = Double.MAX_VALUE;
+            mRecentPackets = 0;
+        }
+        mNextSample += count;
+        mReceivedSamples += count;
+        rememberSequence(sequence, count);
+        fitDrift(time);
+        return lost;
+    }
+
+    private void rememberSequence(int sequence, int count) {
+        mLastSequence = sequence;
+        mLastCount = count;
+    }
+
+    // Tracks the envelope minimum of each drift window, and refits the clock's rate
+    // through the first window's minimum and the latest one.
+    private void fitDrift(double time) {
+        final double offset = time - mNextSample * mNominalPeriod;
+        if (offset < mWindowMin) {
+            mWindowMin = offset;
+            mWindowMinSample = mNextSample;
+        }
+        if (mNextSample < mWindowEnd) return;
+        mWindowEnd = mNextSample + mDriftWindow;
+        if (mFirstMinSample < 0) {
+            mFirstMin = mWindowMin;
+            mFirstMinSample = mWindowMinSample;
+        } else if (mWindowMinSample > mFirstMinSample) {
+            final double slope = (mWindowMin - mFirstMin) / (mWindowMinSample - mFirstMinSample);
+            final double drift = Math.max(-MAX_DRIFT, Math.min(MAX_DRIFT, slope / mNominalPeriod));
+            mPeriod = mNominalPeriod * (1 + drift);
+            // Keep the clock through the latest minimum
+            mBase = mWindowMin + mWindowMinSample * (mNominalPeriod - mPeriod);
+        }
+        mWindowMin = Double.MAX_VALUE;
+    }
+
+    /**
+     * @return Sample number of the next sample, counting lost samples, so the number of
+     *         samples the shirt has taken since the clock started.
+     */
+    public long getNextSample() {
+        return mNextSample;
+    }
+
+    /**
+     * @return Earliest time the given sample could have arrived, on the clock passed to
+     *         {@link #onPacket}: the shirt's sample clock, up to the smallest latency.
+     */
+    public long getSampleTimeNanos(long sample) {
+        return mOrigin + Math.round(mBase + (sample + 1) * mPeriod);
+    }
+
+    /**
+     * @return Samples counted as lost in the last gap that the next packets may still
+     *         show to have been held up rather than lost, 0 once the loss is settled.
+     */
+    public long getUnsettledLoss() {
+        return mLastGap;
+    }
+
+    /**
+     * Settles the last loss: however early the next packets come, it is not taken back.
+     */
+    public void settleLoss() {
+        mLastGap = 0;
+    }
+
+    /** Estimated actual sample rate of the shirt, in Hz. */
+    public double getSampleRate() {
+        return 1e9 / mPeriod;
+    }
+
+    /** Usual delay between a packet's last sample and its arrival, beyond the smallest. */
+    public long getLatencyNanos() {
+        return Math.round(mLatency);
+    }
+
+    public long getReceivedSamples() {
+        return mReceivedSamples;
+    }
+
+    public long getLostSamples() {
+        return mLostSamples;
+    }
+
+    /** Number of times samples were lost. */
+    public long getGapCount() {
+        return mGapCount;
+    }
+
+    /** Fraction of the samples taken that were lost, from 0 to 1. */
+    public double getLossRate() {
+        final long total = mReceivedSamples + mLostSamples;
+        return total > 0 ? (double) mLostSamples / total : 0;
+    }
+}
@@ -0,0 +1,180 @@
+package com.ecgshirt;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free single-producer/single-consumer ring of raw ECG samples.
+ *
+ * The GATT callback thread writes decoded samples and one consumer (for example the
+ * plotting code in {@code DeviceControlActivity}) drains them in batches. Every sample
+ * gets a sequence number: the first sample ever written is 0 and the numbers keep
+ * counting up across wrap-arounds, so a consumer always knows where a batch belongs
+ * in the stream.
+ *
+ * Samples the producer knows to be missing from the stream, such as those lost by the
+ * radio, are passed to {@link #skip(long)}: they get sequence numbers but take no room,
+ * and {@link #drain} never copies across them, so the consumer sees the jump in
+ * sequence numbers between two batches.
+ *
+ * The producer never blocks. If the consumer falls behind and the ring is full, the
+ * samples that do not fit are dropped and counted in {@link #getOverflowCount()} and
+ * {@link #getDroppedSamples()}; they are skipped like missing samples.
+ */
+public final class SampleRingBuffer {
+
+    private final short[] mSamples;
+    private final int mMask;
+
+    /* Number of samples ever written, only set by the producer */
+    private final AtomicLong mWritePosition = new AtomicLong();
+
+    /* Number of samples ever drained or skipped by the consumer, only set by the consumer */
+    private final AtomicLong mReadPosition = new AtomicLong();
+
+    /* Samples skipped since the last write, and before it, only set by the producer */
+    private volatile long mPendingSkip;
+    private volatile long mWriteSkipped;
+
+    /* Write position and number of samples skipped right before it, of each skip the
+       consumer has not passed yet; added before the samples after it are published */
+    private final ConcurrentLinkedQueue<long[]> mGaps = new ConcurrentLinkedQueue<long[]>();
+
+    /* Samples skipped before the read position, only set by the consumer */
+    private volatile long mReadSkipped;
+
+    /* Number of writes that did not entirely fit, and the samples lost by them */
+    private final AtomicLong mOverflowCount = new AtomicLong();
+    private final AtomicLong mDroppedSamples = new AtomicLong();
+
+    /**
+     * @param capacity number of samples the ring can hold, must be a power of two.
+     */
+    public SampleRingBuffer(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        mSamples = new short[capacity];
+        mMask = capacity - 1;
+    }
+
+    /**
+     * Appends samples to the ring. Must only be called from the producer thread.
+     *
+     * @return Number of samples stored, less than {@code length} if the ring overflowed.
+     */
+    public int write(short[] src, int offset, int length) {
+        final long write = mWritePosition.get();
+        final int free = mSamples.length - (int) (write - mReadPosition.get());
+        final int count = Math.min(free, length);
+        if (count < length) {
+            mOverflowCount.incrementAndGet();
+            mDroppedSamples.addAndGet(length - count);
+        }
+        if (count <= 0) {
+            if (length > 0) mPendingSkip += length;
+            return 0;
+        }
+        if (mPendingSkip > 0) {
+            mGaps.add(new long[] {write, mPendingSkip});
+            mWriteSkipped += mPendingSkip;
+            mPendingSkip = 0;
+        }
+
+        final int start = (int) write & mMask;
+        final int first = Math.min(count, mSamples.length - start);
+        System.arraycopy(src, offset, mSamples, start, first);
+        System.arraycopy(src, offset + first, mSamples, 0, count - first);
+        // Publish the samples only after they have been copied in
+        mWritePosition.lazySet(write + count);
+        mPendingSkip += length - count;
+        return count;
+    }
+
+    /**
+     * Skips samples missing from the stream: the next sample written gets a sequence
+     * number {@code count} higher than it would have. Must only be called from the
+     * producer thread.
+     */
+    public void skip(long count) {
+        if (count > 0) mPendingSkip += count;
+    }
+
+    /**
+     * Moves up to {@code max} of the oldest samples into {@code dst}. Must only be called
+     * from the consumer thread. The samples copied have consecutive sequence numbers: a
+     * drain stops at skipped samples, and the next one starts after them. The last sample
+     * copied has the sequence number {@link #getReadSequence()} - 1 right after this call.
+     *
+     * @return Number of samples copied.
+     */
+    public int drain(short[] dst, int offset, int max) {
+        final long read = mReadPosition.get();
+        // Read before the gaps: a gap added after this is not before any of these samples
+        long end = mWritePosition.get();
+        long[] gap;
+        while ((gap = mGaps.peek()) != null && gap[0] <= read) {
+            mGaps.poll();
+            mReadSkipped += gap[1];
+        }
+        if (gap != null) end = Math.min(end, gap[0]);
+        final int count = (int) Math.min(end - read, max);
+        if (count <= 0) return 0;
+
+        final int start = (int) read & mMask;
+        final int first = Math.min(count, mSamples.length - start);
+        System.arraycopy(mSamples, start, dst, offset, first);
+        System.arraycopy(mSamples, 0, dst, offset + first, count - first);
+        // Hand the slots back to the producer only after they have been copied out
+        mReadPosition.lazySet(read + count);
+        return count;
+    }
+
+    /**
+     * Discards everything waiting in the ring. Must only be called from the consumer thread.
+     *
+     * @return Number of samples skipped.
+     */
+    public int skipAll() {
+        final long read = mReadPosition.get();
+        final long write = mWritePosition.get();
+        long[] gap;
+        while ((gap = mGaps.peek()) != null && gap[0] <= write) {
+            mGaps.poll();
+            mReadSkipped += gap[1];
+        }
+        mReadPosition.lazySet(write);
+        return (int) (write - read);
+    }
+
+    /**
+     * Sequence number following the last sample drained or skipped by the consumer; the
+     * next sample drained has this number unless samples were skipped before it.
+     */
+    public long getReadSequence() {
+        return mReadPosition.get() + mReadSkipped;
+    }
+
+    /** Sequence number the next written sample will get. */
+    public long getWriteSequence() {
+        return mWritePosition.get() + mWriteSkipped + mPendingSkip;
+    }
+
+    /** Number of samples waiting to be drained. */
+    public int size() {
+        final long read = mReadPosition.get();
+        return (int) (mWritePosition.get() - read);
+    }
+
+    public int capacity() {
+        return mSamples.length;
+    }
+
+    public long getOverflowCount() {
+        return mOverflowCount.get();
+    }
+
+    public long getDroppedSamples() {
+        return mDroppedSamples.get();
+    }
+}
@@ -0,0 +1,64 @@
+package com.ecgshirt;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Replays a recorded session as a stream of packets, each as long as the connection
+ * allows. Samples lost in gaps of the recording are skipped.
+ */
+public final class SessionPacketSource implements EcgPacketSource {
+
+    private final EcgSessionReader mReader;
+    private final boolean mLoop;
+    private final long mSampleCount;
+    private final short[] mSamples = new short[EcgPacketDecoder.MAX_SAMPLES_PER_PACKET];
+    private long mNextSample;
+
+    /**
+     * @param session session file, see {@link EcgSessionFormat}.
+     * @param loop whether to start over at the end of the session instead of ending the
+     *             stream.
+     */
+    public SessionPacketSource(File session, boolean loop) throws IOException {
+        mReader = new EcgSessionReader(session);
+        mLoop = loop;
+        mSampleCount = mReader.getSampleCount();
+    }
+
+    @Override
+    public int nextPacket(byte[] packet) throws IOException {
+        if (mNextSample >= mSampleCount) {
+            if (!mLoop || mSampleCount == 0) return -1;
+            mNextSample = 0;
+        }
+        int count = mReader.read(mNextSample, mSamples, 0,
+                Math.min(packet.length, mSamples.length));
+        if (count == 0) {
+            // Lost in a gap: carry on with the block after it
+            final int block = mReader.findBlockBySample(mNextSample) + 1;
+            if (block >= mReader.getBlockCount()) {
+                mNextSample = mSampleCount;
+                return nextPacket(packet);
+            }
+            mNextSample = mReader.getBlockFirstSample(block);
+            count = mReader.read(mNextSample, mSamples, 0,
+                    Math.min(packet.length, mSamples.length));
+        }
+        for (int i = 0; i < count; i++) {
+            packet[i] = (byte) mSamples[i];
+        }
+        mNextSample += count;
+        return count;
+    }
+
+    @Override
+    public double getSampleRate() {
+        return mReader.getSampleRate();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mReader.close();
+    }
+}
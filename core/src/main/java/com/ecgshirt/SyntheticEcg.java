@@ -0,0 +1,111 @@
+package com.ecgshirt;
+
+import java.util.Random;
+
+/**
+ * Generates an ECG-like signal in the shirt's raw 8-bit sample format, for running
+ * the decoding, filtering and storage code without a shirt.
+ *
+ * Each beat is a sum of Gaussian P, Q, R, S and T waves, with a few percent of beat to
+ * beat variation in the RR interval, slow baseline wander and white noise. The output
+ * depends only on the parameters and the seed.
+ */
+public final class SyntheticEcg {
+
+    /* Amplitude (V), offset from the R-peak (s) and width (s) of the P, Q, R, S and T waves */
+    private static final double[] WAVE_AMPLITUDE = {0.1, -0.12, 0.9, -0.2, 0.25};
+    private static final double[] WAVE_OFFSET = {-0.2, -0.03, 0, 0.03, 0.25};
+    private static final double[] WAVE_WIDTH = {0.025, 0.01, 0.012, 0.01, 0.04};
+
+    private static final double RR_VARIATION = 0.05;
+    private static final double WANDER_AMPLITUDE = 0.05;
+    private static final double WANDER_FREQUENCY = 0.3;
+    private static final double NOISE_AMPLITUDE = 0.01;
+
+    private final double mSampleRate;
+    private final double mRrInterval;
+    private final Random mRandom;
+
+    /* Number of samples generated so far */
+    private long mSampleCount;
+
+    /* Times of the R-peaks before and after the current sample, in seconds */
+    private double mLastBeat;
+    private double mNextBeat;
+    private long mBeatCount;
+
+    /**
+     * @param sampleRate sample rate in Hz.
+     * @param heartRate average heart rate in beats per minute.
+     * @param seed seed of the random variation and noise.
+     */
+    public SyntheticEcg(double sampleRate, double heartRate, long seed) {
+        mSampleRate = sampleRate;
+        mRrInterval = 60 / heartRate;
+        mRandom = new Random(seed);
+        mLastBeat = -mRrInterval;
+        mNextBeat = mRrInterval / 2;
+    }
+
+    public double getSampleRate() {
+        return mSampleRate;
+    }
+
+    /** Number of R-peaks generated so far. */
+    public long getBeatCount() {
+        return mBeatCount;
+    }
+
+    /**
+     * Generates the next sample, in volts.
+     */
+    public float nextVolts() {
+        final double t = mSampleCount++ / mSampleRate;
+        if (t >= mNextBeat) {
+            mLastBeat = mNextBeat;
+            mNextBeat += mRrInterval * (1 + RR_VARIATION * (2 * mRandom.nextDouble() - 1));
+            mBeatCount++;
+        }
+        double volts = wave(t - mLastBeat) + wave(t - mNextBeat)
+                + WANDER_AMPLITUDE * Math.sin(2 * Math.PI * WANDER_FREQUENCY * t)
+                + NOISE_AMPLITUDE * mRandom.nextGaussian();
+        return (float) volts;
+    }
+
+    /**
+     * Generates the next sample as the shirt would send it.
+     */
+    public short next() {
+        final int sample = Math.round((nextVolts() + 1) / EcgPacketDecoder.VOLTS_PER_COUNT);
+        return (short) Math.max(0, Math.min(EcgPacketDecoder.SAMPLE_MAX, sample));
+    }
+
+    /**
+     * Generates {@code length} raw samples.
+     */
+    public void next(short[] dst, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            dst[offset + i] = next();
+        }
+    }
+
+    /**
+     * Generates the payload of a notification carrying {@code length} samples.
+     */
+    public void nextPacket(byte[] packet, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            packet[offset + i] = (byte) next();
+        }
+    }
+
+    private static double wave(double t) {
+        double volts = 0;
+        for (int i = 0; i < WAVE_AMPLITUDE.length; i++) {
+            final double x = (t - WAVE_OFFSET[i]) / WAVE_WIDTH[i];
+            if (x > -5 && x < 5) {
+                volts += WAVE_AMPLITUDE[i] * Math.exp(-0.5 * x * x);
+            }
+        }
+        return volts;
+    }
+}
@@ -0,0 +1,37 @@
+package com.ecgshirt;
+
+/**
+ * Packets of a {@link SyntheticEcg}, each as long as the connection allows.
+ */
+public final class SyntheticPacketSource implements EcgPacketSource {
+
+    private final SyntheticEcg mEcg;
+    private final long mPacketLimit;
+    private long mPacketCount;
+
+    /**
+     * @param ecg signal to packetize.
+     * @param packetLimit number of packets before the stream ends, or -1 for no end.
+     */
+    public SyntheticPacketSource(SyntheticEcg ecg, long packetLimit) {
+        mEcg = ecg;
+        mPacketLimit = packetLimit;
+    }
+
+    @Override
+    public int nextPacket(byte[] packet) {
+        if (mPacketLimit >= 0 && mPacketCount >= mPacketLimit) return -1;
+        mPacketCount++;
+        mEcg.nextPacket(packet, 0, packet.length);
+        return packet.length;
+    }
+
+    @Override
+    public double getSampleRate() {
+        return mEcg.getSampleRate();
+    }
+
+    @Override
+    public void close() {
+    }
+}
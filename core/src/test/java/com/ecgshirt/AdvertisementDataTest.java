@@ -0,0 +1,137 @@
+package com.ecgshirt;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AdvertisementDataTest {
+
+    private static final UUID HEART_RATE = UUID.fromString("0000180d-0000-1000-8000-00805f9b34fb");
+    private static final UUID BATTERY = UUID.fromString("0000180f-0000-1000-8000-00805f9b34fb");
+    private static final UUID ECG = UUID.fromString("7e4a8b5c-3f21-4d6e-9a0b-1c2d3e4f5a6b");
+
+    @Test
+    public void parsesSixteenBitServiceUuids() {
+        final AdvertisementData data = AdvertisementData.parse(bytes(
+                0x02, 0x01, 0x06,
+                0x05, 0x03, 0x0d, 0x18, 0x0f, 0x18));
+        assertEquals(Arrays.asList(HEART_RATE, BATTERY), data.getServiceUuids());
+        assertTrue(data.hasService(BATTERY));
+        assertFalse(data.hasService(ECG));
+        assertNull(data.getLocalName());
+        assertEquals(AdvertisementData.TX_POWER_UNKNOWN, data.getTxPower());
+    }
+
+    @Test
+    public void parsesOneHundredTwentyEightBitServiceUuids() {
+        final byte[] record = new byte[2 + 16];
+        record[0] = 17;
+        record[1] = 0x07;
+        System.arraycopy(littleEndian(ECG), 0, record, 2, 16);
+        final AdvertisementData data = AdvertisementData.parse(record);
+        assertEquals(Collections.singletonList(ECG), data.getServiceUuids());
+
+        // Incomplete lists count too, alongside the 16-bit ones
+        record[1] = 0x06;
+        final byte[] both = concat(bytes(0x03, 0x02, 0x0d, 0x18), record);
+        assertEquals(Arrays.asList(HEART_RATE, ECG),
+                AdvertisementData.parse(both).getServiceUuids());
+    }
+
+    @Test
+    public void parsesLocalNameAndTxPower() {
+        final AdvertisementData data = AdvertisementData.parse(bytes(
+                0x04, 0x08, 'E', 'C', 'G',
+                0x02, 0x0a, 0xfc,
+                0x0a, 0x09, 'E', 'C', 'G', ' ', 'S', 'h', 'i', 'r', 't'));
+        assertEquals("ECG Shirt", data.getLocalName());
+        assertEquals(-4, data.getTxPower());
+
+        // The complete name wins whichever comes first
+        assertEquals("ECG Shirt", AdvertisementData.parse(bytes(
+                0x0a, 0x09, 'E', 'C', 'G', ' ', 'S', 'h', 'i', 'r', 't',
+                0x04, 0x08, 'E', 'C', 'G')).getLocalName());
+        assertEquals("ECG", AdvertisementData.parse(bytes(
+                0x04, 0x08, 'E', 'C', 'G')).getLocalName());
+    }
+
+    @Test
+    public void stopsAtTrailingZeroPadding() {
+        final byte[] record = new byte[62];
+        System.arraycopy(bytes(0x03, 0x03, 0x0d, 0x18, 0x04, 0x09, 'E', 'C', 'G'), 0,
+                record, 0, 9);
+        final AdvertisementData data = AdvertisementData.parse(record);
+        assertEquals(Collections.singletonList(HEART_RATE), data.getServiceUuids());
+        assertEquals("ECG", data.getLocalName());
+    }
+
+    @Test
+    public void ignoresStructuresThatOverrunTheRecord() {
+        // The name claims more bytes than are left; what came before is kept
+        final AdvertisementData data = AdvertisementData.parse(bytes(
+                0x03, 0x03, 0x0d, 0x18,
+                0x10, 0x09, 'E', 'C', 'G'));
+        assertEquals(Collections.singletonList(HEART_RATE), data.getServiceUuids());
+        assertNull(data.getLocalName());
+
+        // A length byte with nothing after it
+        assertEquals(Collections.singletonList(HEART_RATE), AdvertisementData.parse(bytes(
+                0x03, 0x03, 0x0d, 0x18, 0x05)).getServiceUuids());
+    }
+
+    @Test
+    public void ignoresTruncatedUuids() {
+        // An odd byte after a 16-bit UUID, and a 128-bit list one byte short
+        assertEquals(Collections.singletonList(HEART_RATE), AdvertisementData.parse(bytes(
+                0x04, 0x03, 0x0d, 0x18, 0x0f)).getServiceUuids());
+        final byte[] record = new byte[2 + 15];
+        record[0] = 16;
+        record[1] = 0x07;
+        System.arraycopy(littleEndian(ECG), 0, record, 2, 15);
+        assertTrue(AdvertisementData.parse(record).getServiceUuids().isEmpty());
+
+        // A TX power level without its value
+        assertEquals(AdvertisementData.TX_POWER_UNKNOWN,
+                AdvertisementData.parse(bytes(0x01, 0x0a)).getTxPower());
+    }
+
+    @Test
+    public void parsesEmptyRecords() {
+        for (byte[] record : new byte[][] {null, new byte[0], new byte[31], bytes(0x00, 0x03)}) {
+            final AdvertisementData data = AdvertisementData.parse(record);
+            assertTrue(data.getServiceUuids().isEmpty());
+            assertNull(data.getLocalName());
+            assertEquals(AdvertisementData.TX_POWER_UNKNOWN, data.getTxPower());
+        }
+    }
+
+    private static byte[] littleEndian(UUID uuid) {
+        final byte[] bytes = new byte[16];
+        for (int i = 0; i < 8; i++) {
+            bytes[i] = (byte) (uuid.getLeastSignificantBits() >>> (8 * i));
+            bytes[8 + i] = (byte) (uuid.getMostSignificantBits() >>> (8 * i));
+        }
+        return bytes;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        final byte[] bytes = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, bytes, a.length, b.length);
+        return bytes;
+    }
+
+    private static byte[] bytes(int... values) {
+        final byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,144 @@
+package com.ecgshirt;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class BiquadTest {
+
+    private static final double SAMPLE_RATE = 200;
+    private static final double BUTTERWORTH_Q = 1 / Math.sqrt(2);
+
+    /* Coefficients b0, b1, b2, a1, a2 from the RBJ cookbook formulas at 200 Hz, worked out
+       independently in double precision */
+    private static final double[] LOW_PASS_40HZ = {
+            0.20657208382614792, 0.41314416765229584, 0.20657208382614792,
+            -0.3695273773512413, 0.19581571265583303};
+    private static final double[] HIGH_PASS_0_5HZ = {
+            0.9889542480671399, -1.9779084961342799, 0.9889542480671399,
+            -1.9777864837767638, 0.9780305084917961};
+    private static final double[] NOTCH_60HZ_Q30 = {
+            0.9843963899782295, 0.6083904274092417, 0.9843963899782295,
+            0.6083904274092417, 0.9687927799564593};
+
+    /* First samples of the impulse responses of the filters above, from the direct form I
+       difference equation */
+    private static final double[] LOW_PASS_40HZ_IMPULSE = {
+            0.20657208382614792, 0.48947820802255304, 0.34699762249808963,
+            0.03237759725539885, -0.055983178140620864, -0.02702735927474044,
+            0.0009750367348195458, 0.005652684385027523};
+    private static final double[] HIGH_PASS_0_5HZ_IMPULSE = {
+            0.9889542480671399, -0.02196815123347773, -0.021721490628222817,
+            -0.02147494845047983, -0.021228582260841223, -0.02098244831237705,
+            -0.02073660156563343, -0.020491095703616923};
+    private static final double[] NOTCH_60HZ_Q30_IMPULSE = {
+            0.9843963899782295, 0.009493086970272069, 0.024944771512840802,
+            -0.02437299431862141, -0.009338018108554638, 0.029293541750019015,
+            -0.008775305862954127, -0.02304055966216204};
+
+    private static final double EPSILON = 1e-12;
+
+    @Test
+    public void lowPassMatchesCookbook() {
+        final Biquad biquad = Biquad.lowPass(SAMPLE_RATE, 40, BUTTERWORTH_Q);
+        assertCoefficients(LOW_PASS_40HZ, biquad);
+        assertImpulseResponse(LOW_PASS_40HZ_IMPULSE, biquad);
+    }
+
+    @Test
+    public void highPassMatchesCookbook() {
+        final Biquad biquad = Biquad.highPass(SAMPLE_RATE, 0.5, BUTTERWORTH_Q);
+        assertCoefficients(HIGH_PASS_0_5HZ, biquad);
+        assertImpulseResponse(HIGH_PASS_0_5HZ_IMPULSE, biquad);
+    }
+
+    @Test
+    public void notchMatchesCookbook() {
+        final Biquad biquad = Biquad.notch(SAMPLE_RATE, 60, 30);
+        assertCoefficients(NOTCH_60HZ_Q30, biquad);
+        assertImpulseResponse(NOTCH_60HZ_Q30_IMPULSE, biquad);
+    }
+
+    @Test
+    public void resonatorHasAnalyticImpulseResponse() {
+        // 1 / (1 - 2r cos(t) z^-1 + r^2 z^-2) responds with r^n sin((n + 1) t) / sin(t)
+        final double r = 0.9;
+        final double theta = 0.3;
+        final Biquad biquad = new Biquad(1, 0, 0, -2 * r * Math.cos(theta), r * r);
+        for (int n = 0; n < 100; n++) {
+            final double expected = Math.pow(r, n) * Math.sin((n + 1) * theta) / Math.sin(theta);
+            assertEquals("h[" + n + "]", expected, biquad.process(n == 0 ? 1 : 0), EPSILON);
+        }
+    }
+
+    @Test
+    public void blockAndSampleProcessingAgree() {
+        final Biquad single = Biquad.lowPass(SAMPLE_RATE, 40, BUTTERWORTH_Q);
+        final Biquad block = Biquad.lowPass(SAMPLE_RATE, 40, BUTTERWORTH_Q);
+        final float[] samples = new float[64];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (float) Math.sin(i * 0.7) + (i % 5 == 0 ? 0.5f : 0);
+        }
+        final float[] expected = new float[samples.length];
+        for (int i = 0; i < samples.length; i++) {
+            expected[i] = (float) single.process(samples[i]);
+        }
+        block.process(samples, 0, 30);
+        block.process(samples, 30, samples.length - 30);
+        for (int i = 0; i < samples.length; i++) {
+            assertEquals(expected[i], samples[i], 1e-6f);
+        }
+    }
+
+    @Test
+    public void primedResetStartsInSteadyState() {
+        final Biquad biquad = Biquad.highPass(SAMPLE_RATE, 0.5, BUTTERWORTH_Q);
+        biquad.reset(1.5);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0, biquad.process(1.5), EPSILON);
+        }
+        final Biquad lowPass = Biquad.lowPass(SAMPLE_RATE, 40, BUTTERWORTH_Q);
+        lowPass.reset(1.5);
+        assertEquals(1.5, lowPass.process(1.5), EPSILON);
+    }
+
+    @Test
+    public void butterworthIsThreeDbDownAtCutoff() {
+        final double threeDb = Math.sqrt(0.5);
+        assertEquals(threeDb, gain(Biquad.lowPass(SAMPLE_RATE, 40, BUTTERWORTH_Q), 40), 1e-9);
+        assertEquals(threeDb, gain(Biquad.highPass(SAMPLE_RATE, 0.5, BUTTERWORTH_Q), 0.5), 1e-9);
+        assertEquals(0, gain(Biquad.notch(SAMPLE_RATE, 60, 30), 60), 1e-9);
+        assertEquals(1, gain(Biquad.notch(SAMPLE_RATE, 60, 30), 0), 1e-9);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsFrequencyAboveNyquist() {
+        Biquad.lowPass(SAMPLE_RATE, 100, BUTTERWORTH_Q);
+    }
+
+    private static void assertCoefficients(double[] expected, Biquad biquad) {
+        assertEquals(expected[0], biquad.getB0(), EPSILON);
+        assertEquals(expected[1], biquad.getB1(), EPSILON);
+        assertEquals(expected[2], biquad.getB2(), EPSILON);
+        assertEquals(expected[3], biquad.getA1(), EPSILON);
+        assertEquals(expected[4], biquad.getA2(), EPSILON);
+    }
+
+    private static void assertImpulseResponse(double[] expected, Biquad biquad) {
+        biquad.reset();
+        for (int n = 0; n < expected.length; n++) {
+            assertEquals("h[" + n + "]", expected[n], biquad.process(n == 0 ? 1 : 0), EPSILON);
+        }
+    }
+
+    // Magnitude of the frequency response at the given frequency.
+    private static double gain(Biquad biquad, double frequency) {
+        final double w = 2 * Math.PI * frequency / SAMPLE_RATE;
+        final double numRe = biquad.getB0() + biquad.getB1() * Math.cos(w)
+                + biquad.getB2() * Math.cos(2 * w);
+        final double numIm = -biquad.getB1() * Math.sin(w) - biquad.getB2() * Math.sin(2 * w);
+        final double denRe = 1 + biquad.getA1() * Math.cos(w) + biquad.getA2() * Math.cos(2 * w);
+        final double denIm = -biquad.getA1() * Math.sin(w) - biquad.getA2() * Math.sin(2 * w);
+        return Math.hypot(numRe, numIm) / Math.hypot(denRe, denIm);
+    }
+}
@@ -0,0 +1,155 @@
+package com.ecgshirt;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CharacteristicParsersTest {
+
+    private final GattMeasurement mMeasurement = new GattMeasurement();
+
+    @Test
+    public void parsesEightBitHeartRate() {
+        assertTrue(parseHeartRate(0x00, 72));
+        assertEquals(GattMeasurement.TYPE_HEART_RATE, mMeasurement.getType());
+        assertEquals(72, mMeasurement.getHeartRate());
+        assertEquals(GattMeasurement.CONTACT_UNSUPPORTED, mMeasurement.getSensorContact());
+        assertEquals(-1, mMeasurement.getEnergyExpended());
+        assertEquals(0, mMeasurement.getRrIntervalCount());
+
+        // Unsigned, not a negative byte
+        assertTrue(parseHeartRate(0x00, 0xf0));
+        assertEquals(240, mMeasurement.getHeartRate());
+    }
+
+    @Test
+    public void parsesSixteenBitHeartRate() {
+        assertTrue(parseHeartRate(0x01, 0x2c, 0x01));
+        assertEquals(300, mMeasurement.getHeartRate());
+        // Only one byte of a 16-bit heart rate
+        assertFalse(parseHeartRate(0x01, 0x2c));
+        assertEquals(GattMeasurement.TYPE_NONE, mMeasurement.getType());
+    }
+
+    @Test
+    public void parsesSensorContact() {
+        assertTrue(parseHeartRate(0x02, 60));
+        assertEquals(GattMeasurement.CONTACT_UNSUPPORTED, mMeasurement.getSensorContact());
+        assertTrue(parseHeartRate(0x04, 60));
+        assertEquals(GattMeasurement.CONTACT_NOT_DETECTED, mMeasurement.getSensorContact());
+        assertTrue(parseHeartRate(0x06, 60));
+        assertEquals(GattMeasurement.CONTACT_DETECTED, mMeasurement.getSensorContact());
+    }
+
+    @Test
+    public void parsesEnergyExpended() {
+        assertTrue(parseHeartRate(0x08, 60, 0x34, 0x12));
+        assertEquals(0x1234, mMeasurement.getEnergyExpended());
+        // After a 16-bit heart rate
+        assertTrue(parseHeartRate(0x09, 60, 0, 0xff, 0xff));
+        assertEquals(60, mMeasurement.getHeartRate());
+        assertEquals(0xffff, mMeasurement.getEnergyExpended());
+        // Flagged but missing
+        assertFalse(parseHeartRate(0x08, 60, 0x34));
+    }
+
+    @Test
+    public void parsesRrIntervals() {
+        // 16-bit heart rate, energy expended, three RR intervals and a stray byte
+        assertTrue(parseHeartRate(0x19, 75, 0, 10, 0,
+                0x00, 0x04, 0x33, 0x03, 0xff, 0xff, 0x01));
+        assertEquals(75, mMeasurement.getHeartRate());
+        assertEquals(10, mMeasurement.getEnergyExpended());
+        assertEquals(3, mMeasurement.getRrIntervalCount());
+        assertEquals(1024, mMeasurement.getRrInterval(0));
+        assertEquals(1000, mMeasurement.getRrIntervalMillis(0));
+        assertEquals(819, mMeasurement.getRrInterval(1));
+        assertEquals(800, mMeasurement.getRrIntervalMillis(1));
+        assertEquals(0xffff, mMeasurement.getRrInterval(2));
+
+        // A later value without intervals leaves none behind
+        assertTrue(parseHeartRate(0x10, 75));
+        assertEquals(0, mMeasurement.getRrIntervalCount());
+    }
+
+    @Test
+    public void decodesFloats() {
+        assertEquals(365f, GattFormat.getFloat(bytes(0x6d, 0x01, 0x00, 0x00), 0), 0);
+        // Negative exponents
+        assertEquals(36.5f, GattFormat.getFloat(bytes(0x6d, 0x01, 0x00, 0xff), 0), 1e-5f);
+        assertEquals(0.365f, GattFormat.getFloat(bytes(0x6d, 0x01, 0x00, 0xfd), 0), 1e-7f);
+        // Negative mantissa
+        assertEquals(-0.4f, GattFormat.getFloat(bytes(0xfc, 0xff, 0xff, 0xff), 0), 1e-7f);
+        assertEquals(-4000f, GattFormat.getFloat(bytes(0xfc, 0xff, 0xff, 0x03), 0), 0);
+        // At an offset
+        assertEquals(36.5f, GattFormat.getFloat(bytes(0, 0x6d, 0x01, 0x00, 0xff), 1), 1e-5f);
+        // Too short
+        assertTrue(Float.isNaN(GattFormat.getFloat(bytes(0x6d, 0x01, 0x00), 0)));
+        assertTrue(Float.isNaN(GattFormat.getFloat(null, 0)));
+    }
+
+    @Test
+    public void decodesSpecialFloats() {
+        // NaN, NRes and reserved
+        assertTrue(Float.isNaN(GattFormat.getFloat(bytes(0xff, 0xff, 0x7f, 0x00), 0)));
+        assertTrue(Float.isNaN(GattFormat.getFloat(bytes(0x00, 0x00, 0x80, 0x00), 0)));
+        assertTrue(Float.isNaN(GattFormat.getFloat(bytes(0x01, 0x00, 0x80, 0x00), 0)));
+        // The exponent does not matter
+        assertTrue(Float.isNaN(GattFormat.getFloat(bytes(0xff, 0xff, 0x7f, 0xff), 0)));
+        assertEquals(Float.POSITIVE_INFINITY,
+                GattFormat.getFloat(bytes(0xfe, 0xff, 0x7f, 0x00), 0), 0);
+        assertEquals(Float.NEGATIVE_INFINITY,
+                GattFormat.getFloat(bytes(0x02, 0x00, 0x80, 0x00), 0), 0);
+    }
+
+    @Test
+    public void parsesTemperatureInCelsiusOrFahrenheit() {
+        final CharacteristicParser parser = CharacteristicParsers.TEMPERATURE_MEASUREMENT;
+        assertTrue(parser.parse(bytes(0x00, 0x6d, 0x01, 0x00, 0xff), mMeasurement));
+        assertEquals(GattMeasurement.TYPE_TEMPERATURE, mMeasurement.getType());
+        assertEquals(36.5f, mMeasurement.getTemperature(), 1e-5f);
+
+        // 98.6 F, with a time stamp following
+        assertTrue(parser.parse(bytes(0x03, 0xda, 0x03, 0x00, 0xff,
+                0xe2, 0x07, 10, 18, 12, 0, 0), mMeasurement));
+        assertEquals(37f, mMeasurement.getTemperature(), 1e-4f);
+
+        assertFalse(parser.parse(bytes(0x00, 0xff, 0xff, 0x7f, 0x00), mMeasurement));
+        assertEquals(GattMeasurement.TYPE_NONE, mMeasurement.getType());
+        assertFalse(parser.parse(bytes(0x00, 0x6d, 0x01, 0x00), mMeasurement));
+    }
+
+    @Test
+    public void parsesStepCount() {
+        assertTrue(CharacteristicParsers.STEP_COUNT.parse(bytes(0x01, 0x02, 0x83), mMeasurement));
+        assertEquals(GattMeasurement.TYPE_STEP_COUNT, mMeasurement.getType());
+        assertEquals(0x830201, mMeasurement.getStepCount());
+        assertFalse(CharacteristicParsers.STEP_COUNT.parse(bytes(0x01, 0x02), mMeasurement));
+    }
+
+    @Test
+    public void findsParsersByCharacteristic() {
+        assertSame(CharacteristicParsers.HEART_RATE_MEASUREMENT, CharacteristicParsers.get(
+                UUID.fromString(SampleGattAttributes.HEART_RATE_MEASUREMENT)));
+        assertSame(CharacteristicParsers.TEMPERATURE_MEASUREMENT, CharacteristicParsers.get(
+                UUID.fromString(SampleGattAttributes.TEMPERATURE_MEASUREMENT)));
+        assertEquals(null, CharacteristicParsers.get(null));
+    }
+
+    private boolean parseHeartRate(int... value) {
+        return CharacteristicParsers.HEART_RATE_MEASUREMENT.parse(bytes(value), mMeasurement);
+    }
+
+    private static byte[] bytes(int... values) {
+        final byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,205 @@
+package com.ecgshirt;
+
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DeltaRiceCodecTest {
+
+    private static final int BLOCK = EcgSessionFormat.SAMPLES_PER_BLOCK;
+
+    @Test
+    public void randomBytesRoundTrip() {
+        final Random random = new Random(1);
+        final short[] samples = new short[20000];
+        for (int i = 0; i < samples.length; i++) samples[i] = (short) random.nextInt(256);
+        roundTrip(samples);
+    }
+
+    @Test
+    public void ecgRoundTrips() {
+        final short[] samples = new short[20000];
+        new SyntheticEcg(200, 72, 1).next(samples, 0, samples.length);
+        final int blocks = roundTrip(samples);
+        // Well under one byte a sample
+        assertTrue(blocks * BLOCK < samples.length * 6 / 10);
+    }
+
+    @Test
+    public void recordedSessionRoundTrips() throws IOException {
+        // Decoded from the compressed session, then coded and decoded again
+        final short[] samples = SessionFixture.receivedSamples();
+        final int blocks = roundTrip(samples);
+        // 4.4 bits a sample on this noisier signal
+        assertTrue(blocks * BLOCK < samples.length * 6 / 10);
+    }
+
+    @Test
+    public void recordedSessionRecodesToTheSameFile() throws IOException {
+        final File raw = File.createTempFile("raw", ".ecg");
+        final File compressed = File.createTempFile("compressed", ".ecg");
+        try {
+            assertEquals(36000, EcgSessionConverter.recode(SessionFixture.file(), raw,
+                    EcgSessionFormat.CODEC_NONE));
+            assertEquals(36000, EcgSessionConverter.recode(raw, compressed,
+                    EcgSessionFormat.CODEC_DELTA_RICE));
+            assertArrayEquals(bytes(SessionFixture.file()), bytes(compressed));
+        } finally {
+            raw.delete();
+            compressed.delete();
+        }
+    }
+
+    @Test
+    public void flatRunsTakeOneBitASample() {
+        final short[] samples = new short[3 * DeltaRiceCodec.maxSamples(BLOCK)];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) (i < samples.length / 2 ? 0 : 255);
+        }
+        roundTrip(samples);
+
+        // A flat block is filled to the last bit; only the first difference takes two,
+        // before the parameter has come down to 0
+        final DeltaRiceCodec.Encoder encoder = new DeltaRiceCodec.Encoder();
+        encoder.start(new byte[BLOCK], 0, BLOCK);
+        int count = 0;
+        while (encoder.put(128)) count++;
+        assertEquals(DeltaRiceCodec.maxSamples(BLOCK) - 1, count);
+        assertEquals(BLOCK, encoder.getLength());
+    }
+
+    @Test
+    public void fullScaleStepsAreEscaped() {
+        // Steps of +-128, the largest difference, after long flat runs that leave k at 0
+        final short[] samples = new short[10000];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) ((i / 100 & 1) == 0 ? 0 : 128);
+        }
+        roundTrip(samples);
+        // Alternating every sample keeps the escape going
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) ((i & 1) == 0 ? 255 : 127);
+        }
+        roundTrip(samples);
+
+        // An escaped sample takes MAX_SAMPLE_BITS
+        final DeltaRiceCodec.Encoder encoder = new DeltaRiceCodec.Encoder();
+        encoder.start(new byte[8], 0, 8);
+        assertTrue(encoder.put(0));
+        assertTrue(encoder.put(128));
+        assertEquals(1 + DeltaRiceCodec.MAX_SAMPLE_BITS / 8, encoder.getLength());
+    }
+
+    @Test
+    public void sampleThatDoesNotFitLeavesTheBlockAsItWas() {
+        final Random random = new Random(2);
+        final byte[] block = new byte[BLOCK];
+        final DeltaRiceCodec.Encoder encoder = new DeltaRiceCodec.Encoder();
+        encoder.start(block, 0, BLOCK);
+        final short[] samples = new short[DeltaRiceCodec.maxSamples(BLOCK)];
+        int count = 0;
+        int length;
+        while (true) {
+            final short sample = (short) random.nextInt(256);
+            length = encoder.getLength();
+            if (!encoder.put(sample)) break;
+            samples[count++] = sample;
+        }
+        assertEquals(count, encoder.getSampleCount());
+        assertEquals(length, encoder.getLength());
+        assertTrue(length > BLOCK - DeltaRiceCodec.MAX_SAMPLE_BITS / 8);
+        encoder.flushBits();
+        assertDecodes(block, BLOCK, samples, 0, encoder.getSampleCount());
+    }
+
+    @Test
+    public void flushedBlockKeepsGrowing() {
+        final short[] samples = new short[3000];
+        new SyntheticEcg(200, 72, 3).next(samples, 0, samples.length);
+        final byte[] block = new byte[BLOCK];
+        final DeltaRiceCodec.Encoder encoder = new DeltaRiceCodec.Encoder();
+        encoder.start(block, 0, BLOCK);
+        int count = 0;
+        while (count < samples.length && encoder.put(samples[count])) {
+            count++;
+            if (count % 7 == 0) {
+                // Every flush leaves a block that decodes as far as it goes
+                encoder.flushBits();
+                assertDecodes(block, encoder.getLength(), samples, 0, count);
+            }
+        }
+        encoder.flushBits();
+        assertDecodes(block, BLOCK, samples, 0, count);
+    }
+
+    @Test
+    public void emptyAndTinyBlocks() {
+        assertEquals(0, DeltaRiceCodec.maxSamples(0));
+        assertEquals(1, DeltaRiceCodec.maxSamples(1));
+        final DeltaRiceCodec.Encoder encoder = new DeltaRiceCodec.Encoder();
+        encoder.start(new byte[0], 0, 0);
+        assertFalse(encoder.put(1));
+        final byte[] block = new byte[1];
+        encoder.start(block, 0, 1);
+        assertTrue(encoder.put(200));
+        assertFalse(encoder.put(200));
+        encoder.flushBits();
+        assertDecodes(block, 1, new short[] {200}, 0, 1);
+    }
+
+    // Encodes the samples into as many blocks as it takes, every one filled to capacity,
+    // checks each decodes to its samples and returns the number of blocks.
+    private static int roundTrip(short[] samples) {
+        final byte[] block = new byte[BLOCK];
+        final DeltaRiceCodec.Encoder encoder = new DeltaRiceCodec.Encoder();
+        int blocks = 0;
+        int first = 0;
+        while (first < samples.length) {
+            // Garbage past the samples must not matter
+            Arrays.fill(block, (byte) 0x5a);
+            encoder.start(block, 0, BLOCK);
+            int count = 0;
+            while (first + count < samples.length && encoder.put(samples[first + count])) {
+                count++;
+            }
+            assertTrue(count > 0);
+            encoder.flushBits();
+            assertDecodes(block, encoder.getLength(), samples, first, count);
+            first += count;
+            blocks++;
+        }
+        return blocks;
+    }
+
+    private static byte[] bytes(File file) throws IOException {
+        final byte[] bytes = new byte[(int) file.length()];
+        final DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(bytes);
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+
+    private static void assertDecodes(byte[] block, int length, short[] expected, int first,
+                                      int count) {
+        final short[] decoded = new short[count + 1];
+        decoded[count] = -1;
+        assertEquals(count, DeltaRiceCodec.decode(block, 0, length, count, decoded, 0));
+        for (int i = 0; i < count; i++) {
+            assertEquals("sample " + (first + i), expected[first + i], decoded[i]);
+        }
+        assertEquals(-1, decoded[count]);
+    }
+}
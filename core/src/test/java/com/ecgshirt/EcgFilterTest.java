@@ -0,0 +1,59 @@
+package com.ecgshirt;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EcgFilterTest {
+
+    private static final double SAMPLE_RATE = EcgFilter.DEFAULT_SAMPLE_RATE;
+
+    @Test
+    public void removesOffsetFromTheFirstSample() {
+        final EcgFilter filter = new EcgFilter();
+        final float[] samples = new float[2000];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = 0.4f;
+        }
+        filter.process(samples, 0, samples.length);
+        for (float sample : samples) {
+            assertEquals(0, sample, 1e-3f);
+        }
+    }
+
+    @Test
+    public void passesQrsBandAndRejectsMains() {
+        assertEquals(1, amplitude(new EcgFilter(SAMPLE_RATE, EcgFilter.MAINS_60HZ), 10), 0.05);
+        assertTrue(amplitude(new EcgFilter(SAMPLE_RATE, EcgFilter.MAINS_60HZ), 60) < 0.01);
+        assertTrue(amplitude(new EcgFilter(SAMPLE_RATE, EcgFilter.MAINS_50HZ), 50) < 0.01);
+        assertTrue(amplitude(new EcgFilter(SAMPLE_RATE, EcgFilter.MAINS_60HZ), 0.05) < 0.05);
+    }
+
+    @Test
+    public void rawAndVoltBlocksAgree() {
+        final short[] raw = new short[400];
+        new SyntheticEcg(SAMPLE_RATE, 72, 3).next(raw, 0, raw.length);
+        final float[] fromRaw = new float[raw.length];
+        new EcgFilter().process(raw, 0, fromRaw, 0, raw.length);
+        final EcgFilter filter = new EcgFilter();
+        for (int i = 0; i < raw.length; i++) {
+            assertEquals(fromRaw[i], filter.process(EcgPacketDecoder.toVolts(raw[i])), 1e-5f);
+        }
+    }
+
+    // Amplitude of the filter's response to a unit sine, once it settled.
+    private static double amplitude(EcgFilter filter, double frequency) {
+        final int length = (int) (60 * SAMPLE_RATE);
+        final float[] samples = new float[length];
+        for (int i = 0; i < length; i++) {
+            samples[i] = (float) Math.sin(2 * Math.PI * frequency * i / SAMPLE_RATE);
+        }
+        filter.process(samples, 0, length);
+        double max = 0;
+        for (int i = length / 2; i < length; i++) {
+            max = Math.max(max, Math.abs(samples[i]));
+        }
+        return max;
+    }
+}
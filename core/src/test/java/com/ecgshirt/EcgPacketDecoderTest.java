@@ -0,0 +1,91 @@
+package com.ecgshirt;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class EcgPacketDecoderTest {
+
+    /* Bytes a million packets may allocate: none per packet, some slack for the
+       measurement itself */
+    private static final long ALLOCATION_SLACK = 4096;
+
+    @Test
+    public void decodesUnsignedSamples() {
+        final byte[] packet = {0, 1, 0x7f, (byte) 0x80, (byte) 0xfe, (byte) 0xff};
+        final short[] dst = new short[8];
+        assertEquals(6, EcgPacketDecoder.decode(packet, dst, 2));
+        assertArrayEquals(new short[]{0, 0, 0, 1, 127, 128, 254, 255}, dst);
+    }
+
+    @Test
+    public void decodesVoltsFromMinusOneToOne() {
+        final byte[] packet = {0, (byte) 0xff, (byte) 0x80};
+        final float[] dst = new float[3];
+        assertEquals(3, EcgPacketDecoder.decodeVolts(packet, dst, 0));
+        assertEquals(-1f, dst[0], 1e-6f);
+        assertEquals(1f, dst[1], 1e-6f);
+        assertEquals(128 * EcgPacketDecoder.VOLTS_PER_COUNT - 1, dst[2], 1e-6f);
+    }
+
+    @Test
+    public void limitsPacketToMaximumLength() {
+        final short[] dst = new short[EcgPacketDecoder.MAX_SAMPLES_PER_PACKET];
+        assertEquals(0, EcgPacketDecoder.decode(null, dst, 0));
+        assertEquals(EcgPacketDecoder.MAX_SAMPLES_PER_PACKET,
+                EcgPacketDecoder.decode(new byte[600], dst, 0));
+    }
+
+    @Test
+    public void samplesPerPacketFollowsMtu() {
+        assertEquals(EcgPacketDecoder.SAMPLES_PER_PACKET,
+                EcgPacketDecoder.samplesPerPacket(EcgPacketDecoder.DEFAULT_MTU));
+        assertEquals(244, EcgPacketDecoder.samplesPerPacket(247));
+        assertEquals(EcgPacketDecoder.MAX_SAMPLES_PER_PACKET,
+                EcgPacketDecoder.samplesPerPacket(1024));
+        assertEquals(0, EcgPacketDecoder.samplesPerPacket(0));
+    }
+
+    @Test
+    public void decodesMillionPacketsWithoutAllocating() {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        final byte[][] packets = new byte[256][EcgPacketDecoder.SAMPLES_PER_PACKET];
+        final SyntheticEcg ecg = new SyntheticEcg(200, 72, 1);
+        for (byte[] packet : packets) {
+            ecg.nextPacket(packet, 0, packet.length);
+        }
+        final short[] samples = new short[EcgPacketDecoder.SAMPLES_PER_PACKET];
+        final float[] volts = new float[EcgPacketDecoder.SAMPLES_PER_PACKET];
+        // Warm up, so the loop below runs compiled
+        long checksum = decode(packets, samples, volts, 100000);
+
+        final long thread = Thread.currentThread().getId();
+        final long before = threads.getThreadAllocatedBytes(thread);
+        checksum += decode(packets, samples, volts, 1000000);
+        final long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+        assertTrue("Allocated " + allocated + " bytes", allocated < ALLOCATION_SLACK);
+        assertTrue(checksum > 0);
+    }
+
+    private static long decode(byte[][] packets, short[] samples, float[] volts, int count) {
+        long checksum = 0;
+        for (int i = 0; i < count; i++) {
+            final byte[] packet = packets[i & (packets.length - 1)];
+            final int n = EcgPacketDecoder.decode(packet, samples, 0);
+            EcgPacketDecoder.decodeVolts(packet, volts, 0);
+            checksum += samples[n - 1] + (long) volts[0];
+        }
+        return checksum;
+    }
+}
@@ -0,0 +1,136 @@
+package com.ecgshirt;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EcgPacketPlacerTest {
+
+    private static final double SAMPLE_RATE = 200;
+    private static final int PACKET = EcgPacketDecoder.SAMPLES_PER_PACKET;
+    private static final long GAP_THRESHOLD_NS = 50000000;
+    private static final int PACKETS = 5000;
+
+    @Test
+    public void jitterIsNotPassedOnAsLoss() throws IOException {
+        final Stream stream = place(new PacketPacer(SAMPLE_RATE, 1, 80, 0, 11));
+        // The clock took late packets for a loss, then took it back
+        assertTrue(stream.mFlagged > 0);
+        assertEquals(0, stream.mLost);
+        assertEquals(0, stream.mLosses);
+        assertEquals(PACKETS * PACKET, stream.mPassed);
+        assertEquals(0, stream.mMisplaced);
+    }
+
+    @Test
+    public void lossIsPassedOnOnceSettled() throws IOException {
+        final PacketPacer pacer = new PacketPacer(SAMPLE_RATE, 1, 0, 0.05, 3);
+        final Stream stream = place(pacer);
+        assertTrue(stream.mLosses > 0);
+        assertEquals(stream.mClock.getLostSamples(), stream.mLost);
+        assertEquals(stream.mClock.getReceivedSamples(), stream.mPassed);
+        assertEquals(0, stream.mMisplaced);
+    }
+
+    @Test
+    public void lossAmidJitterKeepsTheCounts() throws IOException {
+        final Stream stream = place(new PacketPacer(SAMPLE_RATE, 1, 80, 0.05, 5));
+        assertTrue(stream.mLosses > 0);
+        // Whatever the clock settles on is what consumers see, contiguously
+        assertEquals(stream.mClock.getLostSamples(), stream.mLost);
+        assertEquals(stream.mClock.getReceivedSamples(), stream.mPassed);
+    }
+
+    @Test
+    public void resetPassesOnHeldPacketsAndStartsOver() {
+        final SampleClock clock = new SampleClock(SAMPLE_RATE, GAP_THRESHOLD_NS);
+        final Stream stream = new Stream(clock, null);
+        final EcgPacketPlacer placer = new EcgPacketPlacer(clock, stream);
+        final short[] packet = new short[PACKET];
+        final long period = PACKET * 5000000L;
+        for (int i = 1; i <= 10; i++) {
+            placer.onPacket(i * period, packet, 0, PACKET);
+        }
+        // A second late: held until the clock knows whether it was lost
+        assertTrue(placer.onPacket(12 * period + 1000000000L, packet, 0, PACKET) > 0);
+        assertEquals(PACKET, placer.getHeldSamples());
+        assertEquals(10 * PACKET, stream.mPassed);
+        placer.reset();
+        assertEquals(0, placer.getHeldSamples());
+        assertEquals(11 * PACKET, stream.mPassed);
+        assertEquals(1, stream.mLosses);
+        // The next packet starts the stream again
+        placer.onPacket(20 * period, packet, 0, PACKET);
+        assertEquals(PACKET, stream.mNextSample);
+    }
+
+    // Places every packet the pacer delivers, and checks each sample passed on against
+    // the sample the shirt took at that position.
+    private static Stream place(PacketPacer pacer) throws IOException {
+        final short[] taken = new short[PACKETS * PACKET];
+        new SyntheticEcg(SAMPLE_RATE, 72, 1).next(taken, 0, taken.length);
+        final SampleClock clock = new SampleClock(SAMPLE_RATE, GAP_THRESHOLD_NS);
+        final Stream stream = new Stream(clock, taken);
+        final EcgPacketPlacer placer = new EcgPacketPlacer(clock, stream);
+        final short[] packet = new short[PACKET];
+        for (int i = 0; i < PACKETS; i++) {
+            final long due = pacer.next(PACKET);
+            if (pacer.isLost()) continue;
+            if (stream.mBefore < 0) stream.mBefore = i * PACKET;
+            System.arraycopy(taken, i * PACKET, packet, 0, PACKET);
+            stream.mFlagged += placer.onPacket(due, packet, 0, PACKET);
+        }
+        placer.flush();
+        assertEquals(0, placer.getHeldSamples());
+        return stream;
+    }
+
+    private static final class Stream implements EcgPacketPlacer.Listener {
+        final SampleClock mClock;
+        final short[] mTaken;
+
+        /* Samples taken before the first one delivered */
+        long mBefore = -1;
+
+        /* Samples the clock counted as lost on arrival, taken back or not */
+        long mFlagged;
+
+        long mNextSample;
+        long mPassed;
+        long mLost;
+        int mLosses;
+        long mMisplaced;
+
+        Stream(SampleClock clock, short[] taken) {
+            mClock = clock;
+            mTaken = taken;
+        }
+
+        @Override
+        public void onLoss(long lostSamples) {
+            assertTrue(lostSamples > 0);
+            mLost += lostSamples;
+            mLosses++;
+            mNextSample += lostSamples;
+        }
+
+        @Override
+        public void onSamples(short[] samples, int offset, int count, long firstSample) {
+            // The stream starts over at sample 0 after a reset
+            if (firstSample == 0) mNextSample = 0;
+            // Contiguous with the samples and losses passed on before
+            assertEquals(mNextSample, firstSample);
+            for (int i = 0; mTaken != null && i < count; i++) {
+                final long position = mBefore + firstSample + i;
+                if (position >= mTaken.length || mTaken[(int) position] != samples[offset + i]) {
+                    mMisplaced++;
+                }
+            }
+            mNextSample += count;
+            mPassed += count;
+        }
+    }
+}
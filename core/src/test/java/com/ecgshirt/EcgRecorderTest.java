@@ -0,0 +1,163 @@
+package com.ecgshirt;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class EcgRecorderTest {
+
+    private static final double SAMPLE_RATE = 200;
+    private static final long START = 1500000000000L;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("recorder", ".ecg");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void recordsSamplesOnTheSampleClock() throws IOException {
+        final short[] samples = samples(1000, 0);
+        final EcgRecorder recorder = new EcgRecorder(mFile, "00:11:22:33:44:55", SAMPLE_RATE);
+        recorder.start(START);
+        for (int i = 0; i < samples.length; i += 20) {
+            recorder.append(samples, i, 20, START + i * 3);
+        }
+        recorder.stop();
+        assertNull(recorder.getError());
+
+        final EcgSessionReader reader = new EcgSessionReader(mFile);
+        try {
+            assertEquals(START, reader.getStartTime());
+            assertEquals(samples.length, reader.getSampleCount());
+            assertEquals(START, reader.getBlockTime(0));
+            assertSamples(reader, 0, samples, 0, samples.length);
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void recordingIsCompressedAndReadsBackExactly() throws IOException {
+        final short[] samples = samples(60 * (int) SAMPLE_RATE, 3);
+        final EcgRecorder recorder = new EcgRecorder(mFile, null, SAMPLE_RATE);
+        recorder.start(START);
+        for (int i = 0; i < samples.length; i += 20) {
+            recorder.append(samples, i, 20, START + i * 5);
+        }
+        recorder.stop();
+        assertNull(recorder.getError());
+        // Well under the byte a sample an uncompressed session takes
+        assertTrue(mFile.length() < samples.length * 6 / 10);
+
+        final EcgSessionReader reader = new EcgSessionReader(mFile);
+        try {
+            assertEquals(EcgSessionFormat.CODEC_DELTA_RICE, reader.getCodec());
+            assertEquals(samples.length, reader.getSampleCount());
+            assertSamples(reader, 0, samples, 0, samples.length);
+        } finally {
+            reader.close();
+        }
+        final MappedEcgSession mapped = new MappedEcgSession(mFile);
+        try {
+            assertEquals(-1, mapped.verify());
+            final short[] read = new short[samples.length];
+            assertEquals(samples.length, mapped.read(0, read, 0, read.length));
+            for (int i = 0; i < samples.length; i++) {
+                assertEquals("sample " + i, samples[i], read[i]);
+            }
+        } finally {
+            mapped.close();
+        }
+    }
+
+    @Test
+    public void droppedSamplesBecomeAGap() throws IOException {
+        final EcgRecorder recorder = new EcgRecorder(mFile, null, SAMPLE_RATE);
+        recorder.start();
+        // More than the ring holds in one go, so the end of it is dropped
+        final short[] burst = samples(20000, 0);
+        final int queued = recorder.append(burst, 0, burst.length, START);
+        final long dropped = burst.length - queued;
+        assertEquals(dropped, recorder.getDroppedSamples());
+        // Packets keep coming while the writer catches up; those that do not fit are
+        // dropped as well
+        final short[] after = samples(300, 7);
+        long first = burst.length;
+        long time = START;
+        while (true) {
+            time += 1500;
+            if (recorder.append(after, 0, after.length, time) > 0) break;
+            first += after.length;
+            Thread.yield();
+        }
+        recorder.stop();
+        assertNull(recorder.getError());
+
+        final EcgSessionReader reader = new EcgSessionReader(mFile);
+        try {
+            assertEquals(first + after.length, reader.getSampleCount());
+            final int block = reader.findBlockBySample(first);
+            assertEquals(first, reader.getBlockFirstSample(block));
+            assertEquals(EcgSessionFormat.BLOCK_FLAG_GAP,
+                    reader.getBlockFlags(block) & EcgSessionFormat.BLOCK_FLAG_GAP);
+            assertEquals(time, reader.getBlockTime(block));
+            assertSamples(reader, 0, burst, 0, queued);
+            assertSamples(reader, first, after, 0, after.length);
+            // The dropped samples read as lost
+            assertEquals(0, reader.read(queued, new short[10], 0, 10));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void knownLossSkipsSampleNumbers() throws IOException {
+        final EcgRecorder recorder = new EcgRecorder(mFile, null, SAMPLE_RATE);
+        recorder.start();
+        final short[] samples = samples(400, 0);
+        recorder.append(samples, 0, 200, START);
+        recorder.markGap(60);
+        recorder.append(samples, 200, 200, START + 1300);
+        recorder.stop();
+
+        final EcgSessionReader reader = new EcgSessionReader(mFile);
+        try {
+            assertEquals(460, reader.getSampleCount());
+            final int block = reader.findBlockBySample(260);
+            assertEquals(260, reader.getBlockFirstSample(block));
+            assertEquals(START + 1300, reader.getBlockTime(block));
+            assertSamples(reader, 260, samples, 200, 200);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static short[] samples(int count, int seed) {
+        final short[] samples = new short[count];
+        new SyntheticEcg(SAMPLE_RATE, 72, seed).next(samples, 0, count);
+        return samples;
+    }
+
+    private static void assertSamples(EcgSessionReader reader, long first,
+                                      short[] expected, int offset, int count) throws IOException {
+        final short[] actual = new short[count];
+        assertEquals(count, reader.read(first, actual, 0, count));
+        for (int i = 0; i < count; i++) {
+            assertEquals("sample " + (first + i), expected[offset + i], actual[i]);
+        }
+    }
+}
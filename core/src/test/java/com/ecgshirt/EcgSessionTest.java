@@ -0,0 +1,379 @@
+package com.ecgshirt;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class EcgSessionTest {
+
+    private static final double SAMPLE_RATE = 200;
+    private static final long START = 1500000000000L;
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final int[] CODECS = {
+            EcgSessionFormat.CODEC_NONE, EcgSessionFormat.CODEC_DELTA_RICE};
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final List<File> mFiles = new ArrayList<File>();
+
+    @Before
+    public void setUp() {
+        mFiles.clear();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : mFiles) {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void writtenSessionReadsBack() throws IOException {
+        final short[] samples = ecg(20000);
+        for (int codec : CODECS) {
+            final File file = newFile(".ecg");
+            final EcgSessionWriter writer = new EcgSessionWriter(file,
+                    new EcgSessionFormat.Header(ADDRESS, SAMPLE_RATE, START, codec));
+            // Odd sized appends with flushes in between, as the recorder does
+            for (int i = 0; i < samples.length; i += 333) {
+                final int count = Math.min(333, samples.length - i);
+                writer.append(samples, i, count, START + i * 5);
+                if (i % 999 == 0) writer.flush();
+            }
+            writer.close();
+
+            final EcgSessionReader reader = new EcgSessionReader(file);
+            try {
+                assertEquals(ADDRESS, reader.getDeviceAddress());
+                assertEquals(SAMPLE_RATE, reader.getSampleRate(), 0);
+                assertEquals(START, reader.getStartTime());
+                assertEquals(codec, reader.getCodec());
+                assertTrue(reader.hasIndex());
+                assertEquals(samples.length, reader.getSampleCount());
+                assertSamples(samples, reader);
+                assertLookups(reader);
+            } finally {
+                reader.close();
+            }
+
+            final MappedEcgSession mapped = new MappedEcgSession(file);
+            try {
+                assertEquals(-1, mapped.verify());
+                assertEquals(samples.length, mapped.getSampleCount());
+                final short[] read = new short[samples.length];
+                assertEquals(samples.length, mapped.read(0, read, 0, read.length));
+                for (int i = 0; i < samples.length; i++) {
+                    assertEquals("sample " + i, samples[i], read[i]);
+                    assertEquals(samples[i], mapped.getSample(i));
+                }
+                assertEquals(-1, mapped.getSample(samples.length));
+            } finally {
+                mapped.close();
+            }
+        }
+    }
+
+    @Test
+    public void sessionNotClosedIsReadFromBlockHeaders() throws IOException {
+        final short[] samples = ecg(5000);
+        for (int codec : CODECS) {
+            final File file = newFile(".ecg");
+            final EcgSessionWriter writer = new EcgSessionWriter(file,
+                    new EcgSessionFormat.Header(ADDRESS, SAMPLE_RATE, START, codec));
+            try {
+                writer.append(samples, 0, samples.length, START);
+                // Written out, including the partially filled block, but no index
+                writer.flush();
+
+                final EcgSessionReader reader = new EcgSessionReader(file);
+                try {
+                    assertFalse(reader.hasIndex());
+                    assertEquals(samples.length, reader.getSampleCount());
+                    assertSamples(samples, reader);
+                    assertLookups(reader);
+                } finally {
+                    reader.close();
+                }
+                final MappedEcgSession mapped = new MappedEcgSession(file);
+                try {
+                    assertEquals(samples.length, mapped.getSampleCount());
+                    assertEquals(samples[4321], mapped.getSample(4321));
+                    assertEquals(2000, mapped.getSampleAtTime(START + 10000));
+                } finally {
+                    mapped.close();
+                }
+            } finally {
+                writer.close();
+            }
+        }
+    }
+
+    @Test
+    public void corruptBlockFailsItsCrc() throws IOException {
+        final short[] samples = ecg(3000);
+        for (int codec : CODECS) {
+            final File file = newFile(".ecg");
+            final EcgSessionWriter writer = new EcgSessionWriter(file,
+                    new EcgSessionFormat.Header(ADDRESS, SAMPLE_RATE, START, codec));
+            writer.append(samples, 0, samples.length, START);
+            writer.close();
+
+            final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                final long position = EcgSessionFormat.blockOffset(1)
+                        + EcgSessionFormat.BLOCK_HEADER_SIZE + 10;
+                raf.seek(position);
+                final int value = raf.read();
+                raf.seek(position);
+                raf.write(value ^ 0x10);
+            } finally {
+                raf.close();
+            }
+
+            final EcgSessionReader reader = new EcgSessionReader(file);
+            try {
+                reader.readBlock(0, new short[EcgSessionFormat.MAX_SAMPLES_PER_BLOCK], 0);
+                try {
+                    reader.readBlock(1, new short[EcgSessionFormat.MAX_SAMPLES_PER_BLOCK], 0);
+                    fail("Corrupt block read");
+                } catch (IOException expected) {
+                    // Reported by the CRC check
+                }
+            } finally {
+                reader.close();
+            }
+            final MappedEcgSession mapped = new MappedEcgSession(file);
+            try {
+                assertEquals(1, mapped.verify());
+            } finally {
+                mapped.close();
+            }
+        }
+    }
+
+    @Test
+    public void sessionsAreUncompressedUnlessAsked() {
+        assertEquals(EcgSessionFormat.CODEC_NONE,
+                new EcgSessionFormat.Header(ADDRESS, SAMPLE_RATE, START).codec);
+    }
+
+    @Test
+    public void threadsReadCompressedSessionTogether() throws Exception {
+        final short[] samples = ecg(40000);
+        final File file = newFile(".ecg");
+        final EcgSessionWriter writer = new EcgSessionWriter(file, new EcgSessionFormat.Header(
+                ADDRESS, SAMPLE_RATE, START, EcgSessionFormat.CODEC_DELTA_RICE));
+        writer.append(samples, 0, samples.length, START);
+        writer.close();
+
+        final MappedEcgSession mapped = new MappedEcgSession(file);
+        try {
+            final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+            final Thread[] threads = new Thread[4];
+            for (int t = 0; t < threads.length; t++) {
+                final int seed = t;
+                threads[t] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            final Random random = new Random(seed);
+                            final short[] read = new short[700];
+                            for (int i = 0; i < 2000; i++) {
+                                final int first = random.nextInt(samples.length - read.length);
+                                assertEquals(read.length,
+                                        mapped.read(first, read, 0, read.length));
+                                for (int j = 0; j < read.length; j++) {
+                                    assertEquals(samples[first + j], read[j]);
+                                }
+                                assertEquals(samples[first], mapped.getSample(first));
+                            }
+                        } catch (Throwable e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                });
+                threads[t].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            if (failure.get() != null) throw new AssertionError(failure.get());
+        } finally {
+            mapped.close();
+        }
+    }
+
+    @Test
+    public void gapsKeepTheirTimeAndLostSamples() throws IOException {
+        final short[] samples = ecg(1000);
+        final File file = newFile(".ecg");
+        final EcgSessionWriter writer = new EcgSessionWriter(file,
+                new EcgSessionFormat.Header(ADDRESS, SAMPLE_RATE, START));
+        writer.append(samples, 0, 500, START);
+        writer.markGap(100);
+        writer.append(samples, 500, 500, START + 3000);
+        writer.close();
+
+        final EcgSessionReader reader = new EcgSessionReader(file);
+        try {
+            assertEquals(1100, reader.getSampleCount());
+            final int block = reader.findBlockBySample(600);
+            assertEquals(600, reader.getBlockFirstSample(block));
+            assertEquals(START + 3000, reader.getBlockTime(block));
+            assertEquals(EcgSessionFormat.BLOCK_FLAG_GAP, reader.getBlockFlags(block));
+            assertEquals(block, reader.findBlockByTime(START + 3000));
+            assertEquals(0, reader.read(550, new short[10], 0, 10));
+            assertEquals(500, reader.read(0, new short[600], 0, 600));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void textConvertsToSessionAndBack() throws IOException {
+        final short[] samples = ecg(1234);
+        final SimpleDateFormat format =
+                new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+        final File text = newFile(".txt");
+        final Writer out = new OutputStreamWriter(new FileOutputStream(text), ASCII);
+        try {
+            for (int i = 0; i < samples.length; i++) {
+                out.write(format.format(new Date(START + i * 5)) + ", " + samples[i] + "\n");
+            }
+        } finally {
+            out.close();
+        }
+
+        final File session = newFile(".ecg");
+        assertEquals(samples.length,
+                EcgSessionConverter.textToSession(text, session, ADDRESS, SAMPLE_RATE));
+        final EcgSessionReader reader = new EcgSessionReader(session);
+        try {
+            assertEquals(START, reader.getBlockTime(0));
+            assertSamples(samples, reader);
+        } finally {
+            reader.close();
+        }
+
+        final File back = newFile(".txt");
+        assertEquals(samples.length, EcgSessionConverter.sessionToText(session, back));
+        assertEquals(lines(text), lines(back));
+    }
+
+    @Test
+    public void recodingKeepsEverySample() throws IOException {
+        final short[] samples = ecg(30000);
+        final File raw = newFile(".ecg");
+        final EcgSessionWriter writer = new EcgSessionWriter(raw, new EcgSessionFormat.Header(
+                ADDRESS, SAMPLE_RATE, START, EcgSessionFormat.CODEC_NONE));
+        writer.append(samples, 0, 10000, START);
+        writer.markGap(42);
+        writer.append(samples, 10000, 20000, START + 60000);
+        writer.close();
+
+        final File compressed = newFile(".ecg");
+        assertEquals(30042, EcgSessionConverter.recode(raw, compressed,
+                EcgSessionFormat.CODEC_DELTA_RICE));
+        assertTrue(compressed.length() < raw.length());
+        final File again = newFile(".ecg");
+        EcgSessionConverter.recode(compressed, again, EcgSessionFormat.CODEC_NONE);
+
+        final EcgSessionReader reader = new EcgSessionReader(again);
+        try {
+            assertEquals(EcgSessionFormat.CODEC_NONE, reader.getCodec());
+            assertEquals(30042, reader.getSampleCount());
+            final int block = reader.findBlockBySample(10042);
+            assertEquals(10042, reader.getBlockFirstSample(block));
+            assertEquals(START + 60000, reader.getBlockTime(block));
+            final short[] read = new short[20000];
+            assertEquals(20000, reader.read(10042, read, 0, read.length));
+            for (int i = 0; i < read.length; i++) {
+                assertEquals(samples[10000 + i], read[i]);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private File newFile(String suffix) throws IOException {
+        final File file = File.createTempFile("session", suffix);
+        mFiles.add(file);
+        return file;
+    }
+
+    private static short[] ecg(int count) {
+        final short[] samples = new short[count];
+        new SyntheticEcg(SAMPLE_RATE, 72, 1).next(samples, 0, count);
+        return samples;
+    }
+
+    private static void assertSamples(short[] expected, EcgSessionReader reader)
+            throws IOException {
+        final short[] block = new short[EcgSessionFormat.MAX_SAMPLES_PER_BLOCK];
+        int next = 0;
+        for (int b = 0; b < reader.getBlockCount(); b++) {
+            assertEquals(next, reader.getBlockFirstSample(b));
+            final int count = reader.readBlock(b, block, 0);
+            for (int i = 0; i < count; i++) {
+                assertEquals("sample " + (next + i), expected[next + i], block[i]);
+            }
+            next += count;
+        }
+        assertEquals(expected.length, next);
+
+        final short[] read = new short[expected.length];
+        assertEquals(expected.length - 1000, reader.read(1000, read, 0, read.length));
+        for (int i = 1000; i < expected.length; i++) {
+            assertEquals(expected[i], read[i - 1000]);
+        }
+    }
+
+    // Times and sample numbers find the block that holds them.
+    private static void assertLookups(EcgSessionReader reader) throws IOException {
+        for (int b = 0; b < reader.getBlockCount(); b++) {
+            final long first = reader.getBlockFirstSample(b);
+            assertEquals(b, reader.findBlockBySample(first));
+            assertEquals(b, reader.findBlockByTime(reader.getBlockTime(b)));
+            if (b > 0) assertEquals(b - 1, reader.findBlockBySample(first - 1));
+        }
+        assertEquals(0, reader.findBlockByTime(START - 1000));
+    }
+
+    private static List<String> lines(File file) throws IOException {
+        final List<String> lines = new ArrayList<String>();
+        final BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), ASCII));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+}
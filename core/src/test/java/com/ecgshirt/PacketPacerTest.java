@@ -0,0 +1,159 @@
+package com.ecgshirt;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/* Packet sources are driven through a pacer as ReplayGattSource drives them, on a fake
+   clock: every packet arrives exactly when the pacer says it is due. */
+public class PacketPacerTest {
+
+    private static final double SAMPLE_RATE = 200;
+    private static final int PACKET = EcgPacketDecoder.SAMPLES_PER_PACKET;
+    private static final long GAP_THRESHOLD_NS = 50000000;
+
+    @Test
+    public void syntheticStreamArrivesInRealTime() throws IOException {
+        final EcgPacketSource source = new SyntheticPacketSource(
+                new SyntheticEcg(SAMPLE_RATE, 72, 1), 1000);
+        final PacketPacer pacer = PacketPacer.realTime(SAMPLE_RATE);
+        final SampleClock clock = new SampleClock(SAMPLE_RATE, GAP_THRESHOLD_NS);
+        final byte[] packet = new byte[PACKET];
+        long samples = 0;
+        int length;
+        while ((length = source.nextPacket(packet)) >= 0) {
+            final long due = pacer.next(length);
+            samples += length;
+            // A packet is due once its last sample was taken
+            assertEquals(samples * 5000000, due);
+            assertEquals(0, clock.onPacket(due, length, SampleClock.NO_SEQUENCE));
+        }
+        assertEquals(1000 * PACKET, samples);
+        assertEquals(1000, pacer.getPacketCount());
+        assertEquals(samples, clock.getNextSample());
+        assertEquals(0, clock.getLostSamples());
+    }
+
+    @Test
+    public void jitterAndLossFollowTheSeed() {
+        final PacketPacer first = new PacketPacer(SAMPLE_RATE, 1, 30, 0.1, 7);
+        final PacketPacer second = new PacketPacer(SAMPLE_RATE, 1, 30, 0.1, 7);
+        long last = 0;
+        for (int i = 0; i < 10000; i++) {
+            final long due = first.next(PACKET);
+            assertEquals(due, second.next(PACKET));
+            assertEquals(first.isLost(), second.isLost());
+            // Never before the previous packet, nor later than the jitter allows
+            assertTrue(due >= last);
+            assertTrue(due - (i + 1) * PACKET * 5000000L <= 30000000);
+            last = due;
+        }
+        assertEquals(1000, first.getLostCount(), 100);
+    }
+
+    @Test
+    public void sampleClockFindsPacketsLostByThePacer() throws IOException {
+        final EcgPacketSource source = new SyntheticPacketSource(
+                new SyntheticEcg(SAMPLE_RATE, 72, 2), 5000);
+        final PacketPacer pacer = new PacketPacer(SAMPLE_RATE, 1, 0, 0.05, 3);
+        final SampleClock clock = new SampleClock(SAMPLE_RATE, GAP_THRESHOLD_NS);
+        final byte[] packet = new byte[PACKET];
+        // Samples paced before the clock started, and those lost since
+        long before = -1;
+        long lost = 0;
+        long lostAtEnd = 0;
+        int length;
+        while ((length = source.nextPacket(packet)) >= 0) {
+            final long due = pacer.next(length);
+            if (pacer.isLost()) {
+                lostAtEnd += length;
+                continue;
+            }
+            if (before < 0) {
+                before = pacer.getPacketCount() * PACKET - length;
+            } else {
+                lost += lostAtEnd;
+            }
+            lostAtEnd = 0;
+            clock.onPacket(due, length, SampleClock.NO_SEQUENCE);
+            // Every delivered packet is placed where the shirt took it
+            assertEquals(pacer.getPacketCount() * PACKET, before + clock.getNextSample());
+        }
+        assertTrue(lost > 0);
+        assertEquals(lost, clock.getLostSamples());
+        assertEquals(5000 * PACKET - before - lost - lostAtEnd, clock.getReceivedSamples());
+    }
+
+    @Test
+    public void sessionReplaysItsSamplesAndSkipsGaps() throws IOException {
+        final short[] samples = new short[3000];
+        new SyntheticEcg(SAMPLE_RATE, 72, 4).next(samples, 0, samples.length);
+        final File file = File.createTempFile("replay", ".ecg");
+        try {
+            final EcgSessionWriter writer = new EcgSessionWriter(file,
+                    new EcgSessionFormat.Header(null, SAMPLE_RATE, 0));
+            writer.append(samples, 0, 1000, 0);
+            writer.markGap(500);
+            writer.append(samples, 1000, 2000, 7500);
+            writer.close();
+
+            // Twice as fast as recorded
+            final EcgPacketSource source = new SessionPacketSource(file, false);
+            final PacketPacer pacer = new PacketPacer(source.getSampleRate(), 2, 0, 0, 0);
+            final List<Short> replayed = new ArrayList<Short>();
+            final byte[] packet = new byte[PACKET];
+            long due = 0;
+            int length;
+            while ((length = source.nextPacket(packet)) >= 0) {
+                due = pacer.next(length);
+                for (int i = 0; i < length; i++) {
+                    replayed.add((short) (packet[i] & 0xff));
+                }
+            }
+            source.close();
+
+            assertEquals(samples.length, replayed.size());
+            for (int i = 0; i < samples.length; i++) {
+                assertEquals("sample " + i, samples[i], (short) replayed.get(i));
+            }
+            // The lost samples take no time in the replay
+            assertEquals(samples.length * 2500000L, due);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void loopingSessionStartsOver() throws IOException {
+        final short[] samples = new short[210];
+        new SyntheticEcg(SAMPLE_RATE, 72, 5).next(samples, 0, samples.length);
+        final File file = File.createTempFile("replay", ".ecg");
+        try {
+            final EcgSessionWriter writer = new EcgSessionWriter(file,
+                    new EcgSessionFormat.Header(null, SAMPLE_RATE, 0));
+            writer.append(samples, 0, samples.length, 0);
+            writer.close();
+
+            final EcgPacketSource source = new SessionPacketSource(file, true);
+            final byte[] packet = new byte[PACKET];
+            int position = 0;
+            for (int i = 0; i < 100; i++) {
+                final int length = source.nextPacket(packet);
+                assertTrue(length > 0);
+                for (int j = 0; j < length; j++) {
+                    assertEquals(samples[position], packet[j] & 0xff);
+                    position = (position + 1) % samples.length;
+                }
+            }
+            source.close();
+        } finally {
+            file.delete();
+        }
+    }
+}
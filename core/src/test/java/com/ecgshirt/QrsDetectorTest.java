@@ -0,0 +1,163 @@
+package com.ecgshirt;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class QrsDetectorTest {
+
+    private static final double SAMPLE_RATE = 200;
+    private static final int HEART_RATE = 72;
+
+    /* Allowed difference to the generated RR interval, which varies by up to 5% */
+    private static final int RR_TOLERANCE_MS = 60;
+
+    /* Samples at 200 Hz an R-peak may be placed off an annotated one: 75 ms, half the
+       usual 150 ms matching window */
+    private static final int MAX_PEAK_ERROR = 15;
+
+    /* Samples an RR interval between normal beats may be off, in muscle noise */
+    private static final int MAX_RR_ERROR = 8;
+
+    /* Samples after its R-peak by which a beat must be reported: one integration window */
+    private static final int MAX_DELAY = 30;
+
+    @Test
+    public void measuresHeartRate() {
+        final QrsDetector detector = new QrsDetector(SAMPLE_RATE);
+        final List<Integer> intervals = feed(detector, new SyntheticEcg(SAMPLE_RATE, HEART_RATE, 1),
+                (int) (30 * SAMPLE_RATE));
+        assertTrue(intervals.size() > 25);
+        for (int interval : intervals) {
+            assertEquals(60000 / HEART_RATE, interval, RR_TOLERANCE_MS);
+        }
+        assertEquals(HEART_RATE, detector.getAverageHeartRate(), 3);
+    }
+
+    @Test
+    public void measuresNoIntervalAcrossAGap() {
+        final QrsDetector detector = new QrsDetector(SAMPLE_RATE);
+        final SyntheticEcg ecg = new SyntheticEcg(SAMPLE_RATE, HEART_RATE, 2);
+        feed(detector, ecg, (int) (10 * SAMPLE_RATE));
+        final long lastBeat = detector.getLastRPeak();
+
+        // Lose 1.3 s of signal, so the next beat in the stream is not the next beat
+        final int lost = 260;
+        ecg.next(new short[lost], 0, lost);
+        detector.markGap(lost);
+        assertEquals(0, detector.getLastRrInterval());
+
+        final List<Integer> intervals = new ArrayList<Integer>();
+        final short[] sample = new short[1];
+        long firstBeat = -1;
+        for (int i = 0; i < 10 * SAMPLE_RATE; i++) {
+            ecg.next(sample, 0, 1);
+            if (detector.process(EcgPacketDecoder.toVolts(sample[0]))) {
+                if (firstBeat < 0) {
+                    firstBeat = detector.getLastRPeak();
+                    // The beat before the gap is not taken as the previous one
+                    assertEquals(0, detector.getLastRrInterval());
+                } else {
+                    intervals.add(detector.getLastRrIntervalMillis());
+                }
+            }
+        }
+        // Positions count the lost samples
+        assertTrue(firstBeat > lastBeat + lost);
+        assertEquals(10 * SAMPLE_RATE + lost + 10 * SAMPLE_RATE, detector.getSampleCount(), 0);
+        assertTrue(intervals.size() > 8);
+        for (int interval : intervals) {
+            assertEquals(60000 / HEART_RATE, interval, RR_TOLERANCE_MS);
+        }
+    }
+
+    @Test
+    public void findsTheAnnotatedBeatsOfARecordedSession() throws IOException {
+        final List<long[]> beats = SessionFixture.beats();
+        final MappedEcgSession session = new MappedEcgSession(SessionFixture.file());
+        final QrsDetector detector = new QrsDetector(session.getSampleRate());
+        // Positions of the beats that are expected, past the learning period
+        final int learning = (int) (2 * session.getSampleRate());
+        int expected = 0;
+        for (long[] beat : beats) {
+            if (beat[0] >= learning) expected++;
+        }
+
+        int detected = 0;
+        int intervals = 0;
+        long errorSum = 0;
+        boolean afterGap = false;
+        long lost = 0;
+        try {
+            for (long i = 0; i < session.getSampleCount(); i++) {
+                final int sample = session.getSample(i);
+                if (sample < 0) {
+                    lost++;
+                    continue;
+                }
+                if (lost > 0) {
+                    detector.markGap(lost);
+                    lost = 0;
+                    afterGap = true;
+                }
+                if (!detector.process(EcgPacketDecoder.toVolts(sample))) continue;
+
+                final long rPeak = detector.getLastRPeak();
+                final int beat = annotatedBeat(beats, rPeak);
+                assertTrue("no beat at " + rPeak, beat >= 0);
+                assertTrue(beats.get(beat)[0] >= learning);
+                assertTrue("late at " + rPeak, detector.getSampleCount() - rPeak <= MAX_DELAY);
+                detected++;
+
+                final int rr = detector.getLastRrInterval();
+                if (afterGap || beat == 0) {
+                    // The beat before may have been lost
+                    assertEquals(0, rr);
+                    afterGap = false;
+                } else if (rr > 0) {
+                    final long annotated = beats.get(beat)[0] - beats.get(beat - 1)[0];
+                    // Ventricular beats are wide, so their peak is less sharply placed
+                    final boolean ventricular = beats.get(beat)[1] + beats.get(beat - 1)[1] > 0;
+                    assertEquals("RR at " + rPeak, annotated, rr,
+                            ventricular ? MAX_PEAK_ERROR : MAX_RR_ERROR);
+                    errorSum += Math.abs(rr - annotated);
+                    intervals++;
+                }
+            }
+        } finally {
+            session.close();
+        }
+        assertEquals(expected, detected);
+        assertTrue(intervals > 200);
+        // Mostly to the sample
+        assertTrue(errorSum < intervals);
+    }
+
+    // Index of the annotated beat whose R-peak is within MAX_PEAK_ERROR of a position,
+    // or -1.
+    private static int annotatedBeat(List<long[]> beats, long position) {
+        for (int i = 0; i < beats.size(); i++) {
+            if (Math.abs(beats.get(i)[0] - position) <= MAX_PEAK_ERROR) return i;
+        }
+        return -1;
+    }
+
+    // Feeds samples and returns the RR intervals of the beats detected, in ms.
+    private static List<Integer> feed(QrsDetector detector, SyntheticEcg ecg, int count) {
+        final List<Integer> intervals = new ArrayList<Integer>();
+        final short[] samples = new short[count];
+        ecg.next(samples, 0, count);
+        for (short sample : samples) {
+            if (detector.process(EcgPacketDecoder.toVolts(sample))
+                    && detector.getLastRrInterval() > 0) {
+                intervals.add(detector.getLastRrIntervalMillis());
+            }
+        }
+        return intervals;
+    }
+}
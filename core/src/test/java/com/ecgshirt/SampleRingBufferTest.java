@@ -0,0 +1,75 @@
+package com.ecgshirt;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class SampleRingBufferTest {
+
+    @Test
+    public void drainsInOrderAcrossWrapArounds() {
+        final SampleRingBuffer ring = new SampleRingBuffer(16);
+        final short[] batch = new short[16];
+        short next = 0;
+        short expected = 0;
+        for (int i = 0; i < 100; i++) {
+            final short[] samples = new short[1 + i % 7];
+            for (int j = 0; j < samples.length; j++) samples[j] = next++;
+            assertEquals(samples.length, ring.write(samples, 0, samples.length));
+            final int count = ring.drain(batch, 0, batch.length);
+            assertEquals(samples.length, count);
+            for (int j = 0; j < count; j++) assertEquals(expected++, batch[j]);
+            assertEquals(expected, ring.getReadSequence());
+        }
+    }
+
+    @Test
+    public void skippedSamplesTakeSequenceNumbersButNoRoom() {
+        final SampleRingBuffer ring = new SampleRingBuffer(16);
+        final short[] samples = {1, 2, 3, 4, 5, 6};
+        final short[] batch = new short[16];
+        ring.write(samples, 0, 3);
+        ring.skip(100);
+        ring.skip(20);
+        assertEquals(123, ring.getWriteSequence());
+        ring.write(samples, 3, 3);
+        assertEquals(6, ring.size());
+
+        // A drain stops before the skip, the next one starts after it
+        assertEquals(3, ring.drain(batch, 0, batch.length));
+        assertEquals(3, ring.getReadSequence());
+        assertEquals(3, ring.drain(batch, 0, batch.length));
+        assertEquals(4, batch[0]);
+        assertEquals(126, ring.getReadSequence());
+        assertEquals(0, ring.drain(batch, 0, batch.length));
+    }
+
+    @Test
+    public void droppedSamplesAreSkipped() {
+        final SampleRingBuffer ring = new SampleRingBuffer(4);
+        final short[] samples = {1, 2, 3, 4, 5, 6};
+        final short[] batch = new short[4];
+        assertEquals(4, ring.write(samples, 0, 6));
+        assertEquals(2, ring.getDroppedSamples());
+        assertEquals(0, ring.write(samples, 0, 1));
+        assertEquals(3, ring.getDroppedSamples());
+        assertEquals(4, ring.drain(batch, 0, batch.length));
+        ring.write(samples, 5, 1);
+        // The samples after the dropped ones are numbered as if they had fit
+        assertEquals(1, ring.drain(batch, 0, batch.length));
+        assertEquals(6, batch[0]);
+        assertEquals(4 + 3 + 1, ring.getReadSequence());
+    }
+
+    @Test
+    public void skipAllPassesSkippedSamples() {
+        final SampleRingBuffer ring = new SampleRingBuffer(16);
+        final short[] samples = {1, 2, 3};
+        ring.write(samples, 0, 3);
+        ring.skip(10);
+        ring.write(samples, 0, 3);
+        assertEquals(6, ring.skipAll());
+        assertEquals(16, ring.getReadSequence());
+        assertEquals(ring.getWriteSequence(), ring.getReadSequence());
+    }
+}
@@ -0,0 +1,78 @@
+package com.ecgshirt;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The session file checked in with the tests, "session-3min.ecg", and its beat
+ * annotations, "session-3min.beats".
+ *
+ * The session is three minutes at 200 Hz written by {@link EcgRecorder}, compressed, in
+ * 20-sample packets. No recording from a shirt is checked in yet, so the stream was
+ * simulated, harder than {@link SyntheticEcg}: the heart rate goes from 70 to 105 bpm
+ * and back, with respiratory variation, three premature ventricular beats, baseline
+ * wander and motion steps, 50 Hz hum, bursts of muscle noise, and two runs of lost
+ * packets (40 samples at 61 s, 120 samples at 127 s) recorded as gaps.
+ *
+ * The annotations list the R-peak of every beat that was received, one per line as its
+ * sample number in the session followed by "N" for a normal beat or "V" for a
+ * ventricular one.
+ */
+final class SessionFixture {
+
+    static final String SESSION = "session-3min.ecg";
+    static final String BEATS = "session-3min.beats";
+
+    /** Samples received: the session's sample count less the samples lost in its gaps. */
+    static final int RECEIVED_SAMPLES = 36000 - 40 - 120;
+
+    private SessionFixture() {
+    }
+
+    static File file() throws IOException {
+        try {
+            return new File(SessionFixture.class.getResource(SESSION).toURI());
+        } catch (URISyntaxException e) {
+            throw new IOException(e.toString());
+        }
+    }
+
+    /** Reads every sample received, without the gaps. */
+    static short[] receivedSamples() throws IOException {
+        final short[] samples = new short[RECEIVED_SAMPLES];
+        final EcgSessionReader reader = new EcgSessionReader(file());
+        try {
+            int count = 0;
+            for (int block = 0; block < reader.getBlockCount(); block++) {
+                count += reader.readBlock(block, samples, count);
+            }
+            if (count != samples.length) throw new IOException("read " + count + " samples");
+        } finally {
+            reader.close();
+        }
+        return samples;
+    }
+
+    /** Annotated beats, each {sample number, 1 if ventricular or else 0}. */
+    static List<long[]> beats() throws IOException {
+        final List<long[]> beats = new ArrayList<long[]>();
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(
+                SessionFixture.class.getResourceAsStream(BEATS), Charset.forName("US-ASCII")));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.trim().split(" ");
+                beats.add(new long[] {Long.parseLong(fields[0]), "V".equals(fields[1]) ? 1 : 0});
+            }
+        } finally {
+            reader.close();
+        }
+        return beats;
+    }
+}
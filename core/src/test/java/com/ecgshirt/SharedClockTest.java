@@ -0,0 +1,260 @@
+package com.ecgshirt;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/* Several simulated devices on one heart, streaming at once to the clock they share, as
+   BluetoothLeService.clockMillis() is shared by its connections. Each shirt has its own
+   sample clock, started at its own time and drifting its own way, its own pacer, placer
+   and detector, stamping samples as DeviceConnection does; a heart rate sensor sends
+   measurements that are stamped when they arrive. */
+public class SharedClockTest {
+
+    private static final double SAMPLE_RATE = 200;
+    private static final int PACKET = EcgPacketDecoder.SAMPLES_PER_PACKET;
+    private static final long GAP_THRESHOLD_NS = 50000000;
+    private static final long SECOND_NS = 1000000000L;
+    private static final long DURATION_NS = 150 * SECOND_NS;
+
+    /* Latency of every notification: a connection interval */
+    private static final long LATENCY_NS = 7500000;
+
+    /* Largest random delay of a notification, and the chance of losing one */
+    private static final double JITTER_MS = 30;
+    private static final double LOSS_RATE = 0.02;
+
+    /* Time the heart rate sensor takes to report a beat */
+    private static final long SENSOR_DELAY_NS = 60000000;
+
+    /* Two samples */
+    private static final long TOLERANCE_NS = 10000000;
+
+    /* Time a clock takes to see the smallest latency; beats before are not compared */
+    private static final long SETTLE_NS = 10 * SECOND_NS;
+
+    /* Time the second shirt starts, between two ticks of the first shirt's clock */
+    private static final long SECOND_START_NS = 3301700000L;
+
+    @Test
+    public void streamsOfSeveralDevicesLineUp() {
+        final long[] beats = beats();
+        final Shirt first = new Shirt(beats, 0, -80, 1);
+        final Shirt second = new Shirt(beats, SECOND_START_NS, 150, 2);
+        final HeartRateSensor sensor = new HeartRateSensor(beats, 3);
+
+        // Deliver everything in the order it arrives
+        while (true) {
+            final long next = Math.min(first.mNextArrival,
+                    Math.min(second.mNextArrival, sensor.nextArrival()));
+            if (next >= DURATION_NS) break;
+            if (next == first.mNextArrival) {
+                first.deliver();
+            } else if (next == second.mNextArrival) {
+                second.deliver();
+            } else {
+                sensor.deliver();
+            }
+        }
+        assertTrue(first.mClock.getLostSamples() > 0);
+        assertTrue(second.mClock.getLostSamples() > 0);
+
+        // The same beat has the same time on both shirts
+        int matched = 0;
+        for (int i = 0; i < beats.length; i++) {
+            if (first.mBeatTimes[i] == 0 || second.mBeatTimes[i] == 0) continue;
+            if (beats[i] < SECOND_START_NS + SETTLE_NS) continue;
+            assertEquals("beat " + i, first.mBeatTimes[i], second.mBeatTimes[i],
+                    TOLERANCE_NS);
+            // The time a sample was taken is its time less a sample and the latency
+            assertEquals("beat " + i, beats[i],
+                    first.mBeatTimes[i] - first.mPeriodNanos - LATENCY_NS, TOLERANCE_NS);
+            matched++;
+        }
+        assertTrue(matched > 120);
+
+        // Each heart rate measurement comes after the beat on the shirts, by the time the
+        // sensor takes, and measures the same RR interval
+        int measured = 0;
+        for (int i = 1; i < beats.length; i++) {
+            if (sensor.mArrivals[i] == 0 || first.mBeatTimes[i] == 0
+                    || first.mBeatTimes[i - 1] == 0 || beats[i] < SETTLE_NS) {
+                continue;
+            }
+            final long delay = sensor.mArrivals[i] - first.mBeatTimes[i];
+            assertTrue("beat " + i, delay >= SENSOR_DELAY_NS - TOLERANCE_NS);
+            assertTrue("beat " + i, delay <= SENSOR_DELAY_NS + (long) (JITTER_MS * 1000000)
+                    + TOLERANCE_NS);
+            assertEquals("beat " + i, (first.mBeatTimes[i] - first.mBeatTimes[i - 1]) / 1000000,
+                    sensor.mRrMillis[i], TOLERANCE_NS / 1000000);
+            measured++;
+        }
+        assertTrue(measured > 120);
+    }
+
+    // Times of the heart beats, 0.8 s apart give or take 5%.
+    private static long[] beats() {
+        final List<Long> beats = new ArrayList<Long>();
+        long time = 400000000;
+        for (int k = 0; time < DURATION_NS; k++) {
+            beats.add(time);
+            time += (long) (800000000 * (1 + 0.05 * Math.sin(k / 3.0)));
+        }
+        final long[] times = new long[beats.size()];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = beats.get(i);
+        }
+        return times;
+    }
+
+    // The heart's signal at a time, in volts: an R wave and a T wave per beat.
+    private static float volts(long[] beats, long time) {
+        double volts = 0;
+        for (long beat : beats) {
+            final double t = (time - beat) / 1e9;
+            if (t < -0.1) break;
+            if (t > 0.6) continue;
+            volts += 0.9 * Math.exp(-0.5 * (t / 0.012) * (t / 0.012))
+                    + 0.25 * Math.exp(-0.5 * ((t - 0.25) / 0.04) * ((t - 0.25) / 0.04));
+        }
+        return (float) volts;
+    }
+
+    private static final class Shirt implements EcgPacketPlacer.Listener {
+        final long[] mBeats;
+        final long mStartNanos;
+        final long mPeriodNanos;
+        final PacketPacer mPacer;
+        final SampleClock mClock = new SampleClock(SAMPLE_RATE, GAP_THRESHOLD_NS);
+        final EcgPacketPlacer mPlacer = new EcgPacketPlacer(mClock, this);
+        final QrsDetector mDetector = new QrsDetector(SAMPLE_RATE);
+        final short[] mPacket = new short[PACKET];
+
+        /* Time each beat was found at, on the shared clock; 0 if it was not */
+        final long[] mBeatTimes;
+
+        long mSamplesTaken;
+        long mNextArrival;
+
+        /* First sample after the last loss */
+        long mGapEnd = -1;
+
+        /**
+         * @param startNanos time the shirt takes its first sample.
+         * @param driftPpm how much faster its sample clock runs than it should.
+         */
+        Shirt(long[] beats, long startNanos, double driftPpm, long seed) {
+            mBeats = beats;
+            mStartNanos = startNanos;
+            final double rate = SAMPLE_RATE * (1 + driftPpm / 1e6);
+            mPeriodNanos = Math.round(1e9 / rate);
+            mPacer = new PacketPacer(rate, 1, JITTER_MS, LOSS_RATE, seed);
+            mBeatTimes = new long[beats.length];
+            next();
+        }
+
+        // Takes the samples of the next packet delivered, and works out when it arrives.
+        private void next() {
+            long due;
+            do {
+                due = mPacer.next(PACKET);
+                for (int i = 0; i < PACKET; i++) {
+                    final float volts = volts(mBeats, mStartNanos + mSamplesTaken * mPeriodNanos);
+                    mPacket[i] = (short) Math.round((volts + 1) / EcgPacketDecoder.VOLTS_PER_COUNT);
+                    mSamplesTaken++;
+                }
+            } while (mPacer.isLost());
+            mNextArrival = mStartNanos + due + LATENCY_NS;
+        }
+
+        void deliver() {
+            mPlacer.onPacket(mNextArrival, mPacket, 0, PACKET);
+            next();
+        }
+
+        @Override
+        public void onLoss(long lostSamples) {
+            mDetector.markGap(lostSamples);
+            mGapEnd = mDetector.getSampleCount();
+        }
+
+        @Override
+        public void onSamples(short[] samples, int offset, int count, long firstSample) {
+            for (int i = 0; i < count; i++) {
+                if (!mDetector.process(EcgPacketDecoder.toVolts(samples[offset + i]))) {
+                    continue;
+                }
+                // The detector starts over after a loss, and places the R-peak of a beat
+                // cut by it less well
+                final long rPeak = mDetector.getLastRPeak();
+                if (mGapEnd >= 0 && rPeak - mGapEnd < SAMPLE_RATE / 5) continue;
+                // Stamped the way DeviceConnection stamps the samples it records
+                final long time = mClock.getSampleTimeNanos(rPeak);
+                mBeatTimes[nearestBeat(mBeats, time - mPeriodNanos - LATENCY_NS)] = time;
+            }
+        }
+    }
+
+    private static final class HeartRateSensor {
+        final long[] mBeats;
+        final Random mRandom;
+        final GattMeasurement mMeasurement = new GattMeasurement();
+
+        /* Arrival of the measurement sent for each beat, and the RR interval it reported;
+           0 if it was lost */
+        final long[] mArrivals;
+        final int[] mRrMillis;
+
+        int mNextBeat = 1;
+        long mNextArrival;
+
+        HeartRateSensor(long[] beats, long seed) {
+            mBeats = beats;
+            mRandom = new Random(seed);
+            mArrivals = new long[beats.length];
+            mRrMillis = new int[beats.length];
+            schedule();
+        }
+
+        long nextArrival() {
+            return mNextBeat < mBeats.length ? mNextArrival : Long.MAX_VALUE;
+        }
+
+        private void schedule() {
+            while (mNextBeat < mBeats.length) {
+                if (mRandom.nextDouble() >= LOSS_RATE) {
+                    mNextArrival = mBeats[mNextBeat] + SENSOR_DELAY_NS + LATENCY_NS
+                            + (long) (mRandom.nextDouble() * JITTER_MS * 1000000);
+                    return;
+                }
+                mNextBeat++;
+            }
+        }
+
+        void deliver() {
+            // Flags: contact supported and detected, RR intervals present
+            final int rr = (int) Math.round((mBeats[mNextBeat] - mBeats[mNextBeat - 1])
+                    * GattMeasurement.RR_UNITS_PER_SECOND / 1e9);
+            final byte[] value = {0x16, 75, (byte) rr, (byte) (rr >> 8)};
+            assertTrue(CharacteristicParsers.HEART_RATE_MEASUREMENT.parse(value, mMeasurement));
+            // Stamped when it arrives, as every measurement broadcast is
+            mArrivals[mNextBeat] = mNextArrival;
+            mRrMillis[mNextBeat] = mMeasurement.getRrIntervalMillis(0);
+            mNextBeat++;
+            schedule();
+        }
+    }
+
+    private static int nearestBeat(long[] beats, long time) {
+        int nearest = 0;
+        for (int i = 1; i < beats.length; i++) {
+            if (Math.abs(beats[i] - time) < Math.abs(beats[nearest] - time)) nearest = i;
+        }
+        return nearest;
+    }
+}